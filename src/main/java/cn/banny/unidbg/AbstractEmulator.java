@@ -3,14 +3,17 @@ package cn.banny.unidbg;
 import cn.banny.unidbg.arm.Arguments;
 import cn.banny.unidbg.arm.context.RegisterContext;
 import cn.banny.unidbg.debugger.Debugger;
+import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.memory.MemoryBlock;
 import cn.banny.unidbg.memory.MemoryBlockImpl;
 import cn.banny.unidbg.memory.SvcMemory;
+import cn.banny.unidbg.pointer.CStringReader;
 import cn.banny.unidbg.pointer.UnicornPointer;
+import cn.banny.unidbg.pointer.UnicornStructure;
 import cn.banny.unidbg.spi.Dlfcn;
+import cn.banny.unidbg.spi.Snapshotable;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
-import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -42,29 +45,69 @@ public abstract class AbstractEmulator implements Emulator {
 
     protected long timeout = DEFAULT_TIMEOUT;
 
+    private long instructionBudget;
+    long callInstructionBudget; // set by NativeCallHandle, overrides instructionBudget
+
+    private final StopCountingUnicorn stopCounter;
+
+    volatile Watchdog.Watch watch;
+
+    volatile TraceSession traceSession;
+    volatile TraceSession.Dispatcher traceDispatcher;
+
+    /**
+     * pointer size of {@link UnicornStructure#calculateSize(Class)} on this thread, structures over emulator memory use
+     * the pointer size of that emulator
+     * @deprecated use {@link UnicornStructure#calculateSize(Emulator, Class)}
+     */
+    @Deprecated
     public static final ThreadLocal<Integer> POINTER_SIZE = new ThreadLocal<>();
-    static {
-        POINTER_SIZE.set(Native.POINTER_SIZE);
-    }
 
     private final RegisterContext registerContext;
 
+    private static final int PID = Integer.parseInt(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+
+    protected final EmulatorBuilder options;
+
+    private final Map<String, Long> startupTimings = new LinkedHashMap<>();
+
     public AbstractEmulator(int unicorn_arch, int unicorn_mode, String processName) {
+        this(unicorn_arch, unicorn_mode, EmulatorBuilder.create().setProcessName(processName));
+    }
+
+    public AbstractEmulator(int unicorn_arch, int unicorn_mode, EmulatorBuilder options) {
         super();
 
-        this.unicorn = new Unicorn(unicorn_arch, unicorn_mode);
-        this.processName = processName == null ? "unidbg" : processName;
+        long start = System.nanoTime();
+        this.options = options;
+        this.stopCounter = new StopCountingUnicorn(unicorn_arch, unicorn_mode);
+        this.unicorn = stopCounter;
+        this.stringReader = new CStringReader(unicorn);
+        this.processName = options.getProcessName() == null ? "unidbg" : options.getProcessName();
         this.registerContext = createRegisterContext(unicorn);
 
         this.readHook = new TraceMemoryHook();
         this.writeHook = new TraceMemoryHook();
         this.codeHook = new AssemblyCodeDumper(this);
 
-        String name = ManagementFactory.getRuntimeMXBean().getName();
-        String pid = name.split("@")[0];
-        this.pid = Integer.parseInt(pid);
+        this.pid = PID;
+        recordStartupPhase("unicorn", start);
+    }
+
+    /**
+     * @return start of the next phase
+     */
+    protected final long recordStartupPhase(String phase, long start) {
+        long now = System.nanoTime();
+        startupTimings.put(phase, now - start);
+        return now;
+    }
 
-        POINTER_SIZE.set(getPointerSize());
+    /**
+     * @return nanoseconds spent by each construction phase in order
+     */
+    public final Map<String, Long> getStartupTimings() {
+        return Collections.unmodifiableMap(startupTimings);
     }
 
     protected abstract RegisterContext createRegisterContext(Unicorn unicorn);
@@ -121,6 +164,9 @@ public abstract class AbstractEmulator implements Emulator {
             return debugger;
         }
 
+        if (!options.isDebuggerEnabled()) {
+            throw new UnsupportedOperationException("debugger disabled");
+        }
         debugger = createDebugger(softBreakpoint);
         if (debugger == null) {
             throw new UnsupportedOperationException();
@@ -184,6 +230,9 @@ public abstract class AbstractEmulator implements Emulator {
 
     @Override
     public final void traceCode(long begin, long end) {
+        if (!options.isCapstoneEnabled()) {
+            throw new UnsupportedOperationException("capstone disabled");
+        }
         traceInstruction = true;
         traceInstructionBegin = begin;
         traceInstructionEnd = end;
@@ -212,74 +261,241 @@ public abstract class AbstractEmulator implements Emulator {
      * @param timeout  Duration to emulate the code (in microseconds). When this value is 0, we will emulate the code in infinite time, until the code is finished.
      */
     protected final Number emulate(long begin, long until, long timeout, boolean entry) {
-        final Pointer pointer = UnicornPointer.pointer(this, begin);
         long start = 0;
         PrintStream redirect = null;
+        boolean traceHooks = traceMemoryRead || traceMemoryWrite || traceInstruction || batchRedirect != null;
+        boolean countStats = statsEnabled;
+        if (countStats && emulateDepth++ == 0) {
+            runningStats = new EmulationStats();
+        }
         try {
-            POINTER_SIZE.set(getPointerSize());
-
-            if (traceOutFile != null) {
-                try {
-                    redirect = new PrintStream(traceOutFile);
-                } catch (FileNotFoundException e) {
-                    log.warn("Set trace out file failed", e);
-                }
+            if (traceHooks) {
+                redirect = addTraceHooks(entry);
             }
-
-            if (entry) {
-                if (traceMemoryRead) {
-                    traceMemoryRead = false;
-                    readHook.redirect = redirect;
-                    unicorn.hook_add(readHook, traceMemoryReadBegin, traceMemoryReadEnd, this);
-                }
-                if (traceMemoryWrite) {
-                    traceMemoryWrite = false;
-                    writeHook.redirect = redirect;
-                    unicorn.hook_add(writeHook, traceMemoryWriteBegin, traceMemoryWriteEnd, this);
-                }
+            TraceSession traceSession = this.traceSession;
+            if (traceSession != null) {
+                traceSession.enter();
             }
-            if (traceInstruction) {
-                traceInstruction = false;
-                codeHook.initialize(traceInstructionBegin, traceInstructionEnd);
-                codeHook.redirect = redirect;
-                unicorn.hook_add(codeHook, traceInstructionBegin, traceInstructionEnd, this);
+            if (log.isDebugEnabled()) {
+                log.debug("emulate " + UnicornPointer.pointer(this, begin) + " started sp=" + getStackPointer());
+            }
+            long budget = callInstructionBudget > 0 ? callInstructionBudget : instructionBudget;
+            int stopCount = stopCounter.stopCount;
+            stringReader.endCache(); // the guest writes memory
+            Watchdog.Watch watch = this.watch;
+            if (watch != null) {
+                watch.enter(begin);
             }
-            log.debug("emulate " + pointer + " started sp=" + getStackPointer());
             start = System.currentTimeMillis();
-            unicorn.emu_start(begin, until, timeout, (long) 0);
+            try {
+                unicorn.emu_start(begin, until, timeout, budget);
+            } finally {
+                if (watch != null) {
+                    watch.exit();
+                }
+            }
+            if (watch != null) {
+                watch.checkCancelled();
+            }
+            if (budget > 0) {
+                checkInstructionBudget(until, timeout, budget, stopCount, start);
+            }
             return (Number) unicorn.reg_read(getPointerSize() == 4 ? ArmConst.UC_ARM_REG_R0 : Arm64Const.UC_ARM64_REG_X0);
+        } catch (InstructionBudgetExceededException | EmulationCancelledException e) {
+            log.warn("emulate " + UnicornPointer.pointer(this, begin) + " " + e.getMessage() + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+            throw e;
         } catch (RuntimeException e) {
             if (!entry && e instanceof UnicornException) {
-                log.warn("emulate " + pointer + " failed: sp=" + getStackPointer() + ", offset=" + (System.currentTimeMillis() - start) + "ms", e);
+                log.warn("emulate " + UnicornPointer.pointer(this, begin) + " failed: sp=" + getStackPointer() + ", offset=" + (System.currentTimeMillis() - start) + "ms", e);
                 return -1;
             }
 
-            if (log.isDebugEnabled()) {
+            if (log.isDebugEnabled() && options.isDebuggerEnabled()) {
                 e.printStackTrace();
                 attach().debug();
                 IOUtils.closeQuietly(this);
                 throw e;
             } else {
-                log.warn("emulate " + pointer + " exception sp=" + getStackPointer() + ", msg=" + e.getMessage() + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+                log.warn("emulate " + UnicornPointer.pointer(this, begin) + " exception sp=" + getStackPointer() + ", msg=" + e.getMessage() + ", offset=" + (System.currentTimeMillis() - start) + "ms");
                 return -1;
             }
         } finally {
-            if (entry) {
-                unicorn.hook_del(readHook);
-                unicorn.hook_del(writeHook);
-                readHook.redirect = null;
-                writeHook.redirect = null;
+            if (countStats && --emulateDepth == 0) {
+                runningStats.finish();
+                lastStats = runningStats;
+                runningStats = null;
+            }
+            if (traceHooks && batchDepth == 0) {
+                removeTraceHooks(entry);
+                IOUtils.closeQuietly(redirect);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("emulate " + UnicornPointer.pointer(this, begin) + " finished sp=" + getStackPointer() + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+    }
+
+    /**
+     * one shot trace requested by {@link #traceRead()}, {@link #traceWrite()} and {@link #traceCode()}, see {@link TraceSession} for tracing many calls
+     * @return trace output
+     */
+    private PrintStream addTraceHooks(boolean entry) {
+        PrintStream redirect = null;
+        if (batchRedirect != null) {
+            redirect = batchRedirect;
+        } else if (traceOutFile != null) {
+            try {
+                redirect = new PrintStream(traceOutFile);
+            } catch (FileNotFoundException e) {
+                log.warn("Set trace out file failed", e);
+            }
+            if (batchDepth > 0) {
+                batchRedirect = redirect;
+            }
+        }
+
+        if (entry) {
+            if (traceMemoryRead) {
+                traceMemoryRead = false;
+                readHook.redirect = redirect;
+                unicorn.hook_add(readHook, traceMemoryReadBegin, traceMemoryReadEnd, this);
+            }
+            if (traceMemoryWrite) {
+                traceMemoryWrite = false;
+                writeHook.redirect = redirect;
+                unicorn.hook_add(writeHook, traceMemoryWriteBegin, traceMemoryWriteEnd, this);
             }
-            unicorn.hook_del(codeHook);
-            codeHook.redirect = null;
-            log.debug("emulate " + pointer + " finished sp=" + getStackPointer() + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (traceInstruction) {
+            traceInstruction = false;
+            codeHook.initialize(traceInstructionBegin, traceInstructionEnd);
+            codeHook.redirect = redirect;
+            unicorn.hook_add(codeHook, traceInstructionBegin, traceInstructionEnd, this);
+        }
+        return redirect;
+    }
 
-            IOUtils.closeQuietly(redirect);
+    /**
+     * unicorn stops silently when the count is reached: not at until, not stopped from java and not timed out
+     */
+    private void checkInstructionBudget(long until, long timeout, long budget, int stopCount, long start) {
+        long pc = ((Number) unicorn.reg_read(getPointerSize() == 4 ? ArmConst.UC_ARM_REG_PC : Arm64Const.UC_ARM64_REG_PC)).longValue();
+        if (getPointerSize() == 4) {
+            pc &= 0xffffffffL;
+        }
+        if ((pc & ~1L) == (until & ~1L) || stopCounter.stopCount != stopCount) {
+            return;
+        }
+        if (timeout > 0 && (System.currentTimeMillis() - start) * 1000 >= timeout) {
+            return;
+        }
+        throw new InstructionBudgetExceededException(pc, budget);
+    }
+
+    @Override
+    public void setInstructionBudget(long instructionBudget) {
+        this.instructionBudget = instructionBudget;
+    }
+
+    private boolean statsEnabled;
+    private boolean statsHookInstalled;
+    private int emulateDepth;
+    private EmulationStats runningStats;
+    private EmulationStats lastStats;
+
+    @Override
+    public void setStatsEnabled(boolean statsEnabled) {
+        if (statsEnabled && !statsHookInstalled) {
+            unicorn.hook_add(new BlockHook() {
+                @Override
+                public void hook(Unicorn u, long address, int size, Object user) {
+                    EmulationStats stats = runningStats;
+                    if (stats != null) {
+                        stats.onBlock(countInstructions(u, address, size));
+                    }
+                }
+            }, 1, 0, this);
+            statsHookInstalled = true; // kept installed: unicorn can not remove native hooks
+        }
+        this.statsEnabled = statsEnabled;
+        if (!statsEnabled) {
+            lastStats = null;
+        }
+    }
+
+    /**
+     * @return instructions of the basic block about to run
+     */
+    protected abstract int countInstructions(Unicorn unicorn, long address, int size);
+
+    @Override
+    public EmulationStats getLastStats() {
+        return lastStats;
+    }
+
+    @Override
+    public EmulationStats getRunningStats() {
+        return runningStats;
+    }
+
+    private final CStringReader stringReader;
+
+    @Override
+    public CStringReader getStringReader() {
+        return stringReader;
+    }
+
+    private static class StopCountingUnicorn extends Unicorn {
+        volatile int stopCount;
+        StopCountingUnicorn(int arch, int mode) {
+            super(arch, mode);
+        }
+        @Override
+        public void emu_stop() throws UnicornException {
+            stopCount++;
+            super.emu_stop();
+        }
+    }
+
+    private void removeTraceHooks(boolean entry) {
+        if (entry) {
+            unicorn.hook_del(readHook);
+            unicorn.hook_del(writeHook);
+            readHook.redirect = null;
+            writeHook.redirect = null;
+        }
+        unicorn.hook_del(codeHook);
+        codeHook.redirect = null;
+    }
+
+    private int batchDepth;
+    private PrintStream batchRedirect;
+
+    /**
+     * keep trace hooks and the trace output stream installed by {@link #emulate(long, long, long, boolean)} until {@link #endBatch()}
+     */
+    final void beginBatch() {
+        batchDepth++;
+    }
+
+    final void endBatch() {
+        if (batchDepth <= 0) {
+            throw new IllegalStateException("not in batch");
+        }
+        if (--batchDepth == 0) {
+            removeTraceHooks(true);
+            IOUtils.closeQuietly(batchRedirect);
+            batchRedirect = null;
         }
     }
 
     protected abstract Pointer getStackPointer();
 
+    /**
+     * call begin with the argument registers and stack already set up, used by {@link NativeCallHandle}
+     */
+    protected abstract Number eCall(long begin);
+
     private boolean closed;
 
     @Override
@@ -342,6 +558,132 @@ public abstract class AbstractEmulator implements Emulator {
         return numbers.toArray(new Number[0]);
     }
 
+    private VM dalvikVM;
+
+    @Override
+    public final VM createDalvikVM(File apkFile) {
+        if (!options.isDalvikVMEnabled()) {
+            throw new UnsupportedOperationException("dalvik vm disabled");
+        }
+        dalvikVM = createDalvikVMInternal(apkFile);
+        return dalvikVM;
+    }
+
+    protected abstract VM createDalvikVMInternal(File apkFile);
+
+    @Override
+    public final VM getDalvikVM() {
+        return dalvikVM;
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        Memory memory = getMemory();
+        memory.trackDirtyPages(null); // capture real permissions
+
+        long context = unicorn.context_alloc();
+        try {
+            unicorn.context_save(context);
+
+            List<Snapshot.Region> regions = new ArrayList<>();
+            for (MemRegion region : unicorn.mem_regions()) {
+                long end = region.end + 1; // unicorn region end is inclusive
+                byte[] data = unicorn.mem_read(region.begin, end - region.begin);
+                regions.add(new Snapshot.Region(region.begin, end, region.perms, data));
+            }
+
+            Object memoryState = memory instanceof Snapshotable ? ((Snapshotable) memory).saveState() : null;
+            Object syscallState = getSyscallHandler() instanceof Snapshotable ? ((Snapshotable) getSyscallHandler()).saveState() : null;
+            Object vmState = dalvikVM instanceof Snapshotable ? ((Snapshotable) dalvikVM).saveState() : null;
+            Snapshot snapshot = new Snapshot(unicorn, context, regions, memoryState, syscallState, vmState);
+            if (log.isDebugEnabled()) {
+                log.debug("snapshot " + snapshot);
+            }
+            return snapshot;
+        } catch (RuntimeException e) {
+            unicorn.free(context);
+            throw e;
+        }
+    }
+
+    @Override
+    public void restore(Snapshot snapshot) {
+        if (!snapshot.isOwnedBy(unicorn)) {
+            throw new IllegalArgumentException("snapshot not taken from this emulator");
+        }
+
+        if (!getMemory().resetDirtyPages(snapshot)) {
+            restoreMemory(snapshot);
+        }
+        unicorn.context_restore(snapshot.getContext());
+
+        if (snapshot.memoryState != null) {
+            ((Snapshotable) getMemory()).restoreState(snapshot.memoryState);
+        }
+        if (snapshot.syscallState != null) {
+            ((Snapshotable) getSyscallHandler()).restoreState(snapshot.syscallState);
+        }
+        if (snapshot.vmState != null && dalvikVM instanceof Snapshotable) {
+            ((Snapshotable) dalvikVM).restoreState(snapshot.vmState);
+        }
+    }
+
+    private void restoreMemory(Snapshot snapshot) {
+        getMemory().trackDirtyPages(null);
+
+        restoreRegions(snapshot.regions);
+        for (Snapshot.Region region : snapshot.regions) {
+            getMemory().write(region.begin, region.data);
+        }
+    }
+
+    /**
+     * make the mapped regions and permissions identical to the saved ones, content is not written
+     */
+    final void restoreRegions(List<Snapshot.Region> regions) {
+        Map<Long, Snapshot.Region> saved = new HashMap<>(regions.size() * 2);
+        for (Snapshot.Region region : regions) {
+            saved.put(region.begin, region);
+        }
+        Map<Long, MemRegion> mapped = new HashMap<>();
+        for (MemRegion region : unicorn.mem_regions()) {
+            Snapshot.Region old = saved.get(region.begin);
+            if (old != null && old.end == region.end + 1) {
+                mapped.put(region.begin, region);
+            } else {
+                unicorn.mem_unmap(region.begin, region.end + 1 - region.begin); // mapped after snapshot
+            }
+        }
+        for (Snapshot.Region region : regions) {
+            MemRegion current = mapped.get(region.begin);
+            if (current == null) {
+                unicorn.mem_map(region.begin, region.getSize(), region.perms); // unmapped after snapshot
+            } else if (current.perms != region.perms) {
+                unicorn.mem_protect(region.begin, region.getSize(), region.perms);
+            }
+        }
+    }
+
+    /**
+     * registers the unicorn binding has no id for, saved with the image
+     */
+    protected long[] readSystemRegisters() {
+        return new long[0];
+    }
+
+    protected void writeSystemRegisters(long[] values) {
+    }
+
+    @Override
+    public void saveImage(File file) throws IOException {
+        EmulatorImage.save(this, dalvikVM, file);
+    }
+
+    @Override
+    public void loadImage(File file) throws IOException {
+        EmulatorImage.load(this, dalvikVM, file);
+    }
+
     private final Map<String, Object> context = new HashMap<>();
 
     @Override
@@ -0,0 +1,198 @@
+package cn.banny.unidbg;
+
+import cn.banny.unidbg.linux.android.dvm.DvmClass;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * asynchronous facade confining an emulator to one dedicated thread.
+ * Calls are queued in a bounded queue, a full queue fails the future with {@link RejectedExecutionException}.
+ * A call past its deadline fails with {@link TimeoutException}, a running call is stopped by a {@link Watchdog}
+ * on deadline or {@link Future#cancel(boolean)}, so the emulator must not be watched by another watchdog.
+ * A stopped call leaves the guest in the middle of the function, set a recovery snapshot to restore afterwards.
+ */
+public class AsyncEmulator<T extends Emulator> implements Closeable {
+
+    private static final Log log = LogFactory.getLog(AsyncEmulator.class);
+
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+    private static final ScheduledThreadPoolExecutor DEADLINE_TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "unidbg-deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        DEADLINE_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * repeats emu_stop until the emulation returned, a single stop is lost before emu_start or between nested starts
+     */
+    private static final Watchdog WATCHDOG = new Watchdog();
+
+    private final T emulator;
+    private final ThreadPoolExecutor executor;
+
+    private final Set<Call<?>> calls = Collections.newSetFromMap(new ConcurrentHashMap<Call<?>, Boolean>());
+
+    private volatile long defaultTimeoutNanos;
+    private volatile Snapshot recoverySnapshot;
+
+    public AsyncEmulator(T emulator, int queueCapacity) {
+        this.emulator = emulator;
+        final String threadName = "unidbg-" + emulator.getProcessName() + "-" + THREAD_ID.incrementAndGet();
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * deadline of the convenience call methods, 0 means none
+     */
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        this.defaultTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * restored on the emulator thread after a call was stopped
+     */
+    public void setRecoverySnapshot(Snapshot recoverySnapshot) {
+        this.recoverySnapshot = recoverySnapshot;
+    }
+
+    public T getEmulator() {
+        return emulator;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public <V> CompletableFuture<V> submit(EmulatorTask<T, V> task) {
+        return submit(task, defaultTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param timeout deadline measured from submission, 0 means none
+     */
+    public <V> CompletableFuture<V> submit(EmulatorTask<T, V> task, long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        final Call<V> call = new Call<>(task, timeoutNanos <= 0 ? 0 : System.nanoTime() + timeoutNanos);
+        calls.add(call);
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            calls.remove(call);
+            call.completeExceptionally(e);
+            return call;
+        }
+        if (timeoutNanos > 0) {
+            call.timer = DEADLINE_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (call.completeExceptionally(new TimeoutException("deadline exceeded"))) {
+                        call.token.cancel();
+                    }
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        return call;
+    }
+
+    public CompletableFuture<Number> callStaticJniMethodAsync(final DvmClass dvmClass, final String method, final Object... args) {
+        return submit(new EmulatorTask<T, Number>() {
+            @Override
+            public Number call(T emulator) {
+                return dvmClass.callStaticJniMethod(emulator, method, args);
+            }
+        });
+    }
+
+    public CompletableFuture<Number> callFunctionAsync(final Module module, final String symbolName, final Object... args) {
+        return submit(new EmulatorTask<T, Number>() {
+            @Override
+            public Number call(T emulator) throws Exception {
+                return module.callFunction(emulator, symbolName, args)[0];
+            }
+        });
+    }
+
+    private class Call<V> extends CompletableFuture<V> implements Runnable {
+        private final EmulatorTask<T, V> task;
+        private final long deadline;
+        private final CancelToken token = new CancelToken();
+        private volatile ScheduledFuture<?> timer;
+        Call(EmulatorTask<T, V> task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        @Override
+        public void run() {
+            try {
+                if (isDone()) { // cancelled or timed out while queued
+                    return;
+                }
+                if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                    completeExceptionally(new TimeoutException("deadline exceeded in queue"));
+                    return;
+                }
+
+                try (Watchdog.Watch ignored = WATCHDOG.watch(emulator, 0, TimeUnit.NANOSECONDS, token).recoverTo(recoverySnapshot)) {
+                    complete(task.call(emulator));
+                } catch (Throwable t) {
+                    completeExceptionally(t);
+                } finally {
+                    ScheduledFuture<?> timer = this.timer;
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                }
+            } finally {
+                calls.remove(this);
+            }
+        }
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                token.cancel();
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * cancel queued calls, stop the running call and wait for the emulator thread, the emulator is not closed
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (Call<?> call : calls) { // queued and running
+            call.cancel(false);
+        }
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("emulator thread did not terminate: " + emulator);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package cn.banny.unidbg;
+
+/**
+ * receives the results of {@link NativeCallHandle#batch(Iterable, BatchCallback)} in input order
+ */
+public interface BatchCallback {
+
+    /**
+     * @param handle read output buffers with {@link NativeCallHandle#getBytes(int, int)}, they are overwritten by the next item
+     * @param result r0 or x0
+     */
+    void onResult(int index, NativeCallHandle handle, long result);
+
+}
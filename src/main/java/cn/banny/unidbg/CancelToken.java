@@ -0,0 +1,18 @@
+package cn.banny.unidbg;
+
+/**
+ * cancellation signal checked by the {@link Watchdog}, e.g. fired when the client disconnects
+ */
+public class CancelToken {
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
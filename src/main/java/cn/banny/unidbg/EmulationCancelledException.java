@@ -0,0 +1,22 @@
+package cn.banny.unidbg;
+
+/**
+ * emulation stopped by the {@link Watchdog} on deadline or cancel token
+ */
+public class EmulationCancelledException extends RuntimeException {
+
+    private final String library;
+
+    public EmulationCancelledException(String reason, String library) {
+        super(reason + ": " + library);
+        this.library = library;
+    }
+
+    /**
+     * library of the emulated function, <code>null</code> if unknown
+     */
+    public String getLibrary() {
+        return library;
+    }
+
+}
@@ -0,0 +1,148 @@
+package cn.banny.unidbg;
+
+import cn.banny.unidbg.linux.android.dvm.VM;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * counters of one outermost emulation, enabled by {@link Emulator#setStatsEnabled(boolean)} and read with
+ * {@link Emulator#getLastStats()} after eFunc, callStaticJniMethod or callJniMethod returns.
+ * Instructions are counted per basic block, thumb blocks are read back to tell 16 from 32-bit instructions.
+ */
+public class EmulationStats {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private static final ClassValue<Boolean> JNI_SVC = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            Class<?> enclosing = type.getEnclosingClass();
+            return enclosing != null && VM.class.isAssignableFrom(enclosing);
+        }
+    };
+
+    private long instructions;
+    private long blocks;
+    private final Map<Integer, Integer> syscalls = new TreeMap<>();
+    private int svcCalls;
+    private int jniCalls;
+    private long bytesMapped;
+    private long bytesUnmapped;
+
+    private final long startNanos;
+    private final long startCpuNanos;
+    private long wallNanos;
+    private long cpuNanos;
+
+    EmulationStats() {
+        this.startNanos = System.nanoTime();
+        this.startCpuNanos = cpuTime();
+    }
+
+    private static long cpuTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+    }
+
+    final void onBlock(int instructions) {
+        blocks++;
+        this.instructions += instructions;
+    }
+
+    final void finish() {
+        wallNanos = System.nanoTime() - startNanos;
+        cpuNanos = cpuTime() - startCpuNanos;
+    }
+
+    public void onSyscall(int NR) {
+        Integer count = syscalls.get(NR);
+        syscalls.put(NR, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * svc callbacks registered by the {@link VM} are counted as JNI calls too
+     */
+    public void onSvc(Svc svc) {
+        svcCalls++;
+        if (JNI_SVC.get(svc.getClass())) {
+            jniCalls++;
+        }
+    }
+
+    public void onMap(long size) {
+        bytesMapped += size;
+    }
+
+    public void onUnmap(long size) {
+        bytesUnmapped += size;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return call count by syscall number
+     */
+    public Map<Integer, Integer> getSyscalls() {
+        return Collections.unmodifiableMap(syscalls);
+    }
+
+    public int getSyscallCount() {
+        int count = 0;
+        for (int n : syscalls.values()) {
+            count += n;
+        }
+        return count;
+    }
+
+    public int getSvcCalls() {
+        return svcCalls;
+    }
+
+    public int getJniCalls() {
+        return jniCalls;
+    }
+
+    public long getBytesMapped() {
+        return bytesMapped;
+    }
+
+    public long getBytesUnmapped() {
+        return bytesUnmapped;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return cpu time of the emulator thread, 0 if not supported by the jvm
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "EmulationStats{" +
+                "instructions=" + instructions +
+                ", blocks=" + blocks +
+                ", syscalls=" + syscalls +
+                ", svcCalls=" + svcCalls +
+                ", jniCalls=" + jniCalls +
+                ", bytesMapped=" + bytesMapped +
+                ", bytesUnmapped=" + bytesUnmapped +
+                ", wall=" + wallNanos / 1000 + "us" +
+                ", cpu=" + cpuNanos / 1000 + "us" +
+                '}';
+    }
+
+}
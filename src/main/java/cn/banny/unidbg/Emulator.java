@@ -5,6 +5,7 @@ import cn.banny.unidbg.debugger.Debugger;
 import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.memory.SvcMemory;
+import cn.banny.unidbg.pointer.CStringReader;
 import cn.banny.unidbg.spi.*;
 import unicorn.Unicorn;
 
@@ -112,6 +113,11 @@ public interface Emulator extends Closeable, Disassembler, ValuePair {
      */
     VM createDalvikVM(File apkFile);
 
+    /**
+     * @return <code>null</code> if createDalvikVM not called
+     */
+    VM getDalvikVM();
+
     String getLibraryExtension();
     String getLibraryPath();
     LibraryFile createURLibraryFile(URL url, String libName);
@@ -123,6 +129,55 @@ public interface Emulator extends Closeable, Disassembler, ValuePair {
      */
     void setTimeout(long timeout);
 
+    /**
+     * stop every emulation after the given count of instructions and throw {@link InstructionBudgetExceededException},
+     * 0 means unlimited. Unlike the timeout the stop point does not depend on machine load.
+     */
+    void setInstructionBudget(long instructionBudget);
+
+    /**
+     * collect {@link EmulationStats} for every outermost emulation
+     */
+    void setStatsEnabled(boolean statsEnabled);
+
+    /**
+     * @return stats of the last finished outermost emulation, <code>null</code> if disabled
+     */
+    EmulationStats getLastStats();
+
+    /**
+     * @return stats of the running emulation, <code>null</code> if disabled or not running
+     */
+    EmulationStats getRunningStats();
+
+    /**
+     * reader of guest C strings, caches pages while a syscall is handled
+     */
+    CStringReader getStringReader();
+
     <T extends RegisterContext> T getContext();
 
+    /**
+     * capture memory, registers, loader counters, file descriptors and dalvik objects, stops dirty page tracking
+     */
+    Snapshot snapshot();
+
+    /**
+     * rewind to the snapshot, regions mapped after the snapshot are unmapped
+     * only copies back written pages when the snapshot is tracked with {@link cn.banny.unidbg.memory.Memory#trackDirtyPages(Snapshot)}
+     */
+    void restore(Snapshot snapshot);
+
+    /**
+     * write memory, registers, loaded modules, svc and dalvik registrations to an image file
+     */
+    void saveImage(File file) throws IOException;
+
+    /**
+     * boot from an image instead of loading libraries, the emulator must be freshly created
+     * with the same hook listeners and dalvik vm as when the image was saved.
+     * @throws IOException image is stale: library content changed or svc layout differs
+     */
+    void loadImage(File file) throws IOException;
+
 }
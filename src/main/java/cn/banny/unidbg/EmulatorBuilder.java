@@ -0,0 +1,98 @@
+package cn.banny.unidbg;
+
+import cn.banny.unidbg.ios.DarwinARM64Emulator;
+import cn.banny.unidbg.ios.DarwinARMEmulator;
+import cn.banny.unidbg.linux.android.AndroidARM64Emulator;
+import cn.banny.unidbg.linux.android.AndroidARMEmulator;
+import cn.banny.unidbg.unix.VirtualClock;
+
+/**
+ * emulator construction options, subsystems not needed by pooled workers can be switched off.
+ * Construction phase timings are reported by {@link AbstractEmulator#getStartupTimings()}.
+ */
+public class EmulatorBuilder {
+
+    public static EmulatorBuilder create() {
+        return new EmulatorBuilder();
+    }
+
+    private String processName;
+    private boolean debugger = true;
+    private boolean capstone = true;
+    private boolean dalvikVM = true;
+    private VirtualClock clock;
+
+    public EmulatorBuilder setProcessName(String processName) {
+        this.processName = processName;
+        return this;
+    }
+
+    /**
+     * {@link Emulator#attach()} throws {@link UnsupportedOperationException}, emulation errors are not debugged interactively
+     */
+    public EmulatorBuilder disableDebugger() {
+        this.debugger = false;
+        return this;
+    }
+
+    /**
+     * disassemble and instruction trace throw {@link UnsupportedOperationException}
+     */
+    public EmulatorBuilder disableCapstone() {
+        this.capstone = false;
+        return this;
+    }
+
+    /**
+     * {@link Emulator#createDalvikVM(java.io.File)} throws {@link UnsupportedOperationException}
+     */
+    public EmulatorBuilder disableDalvikVM() {
+        this.dalvikVM = false;
+        return this;
+    }
+
+    /**
+     * guest time source, default is {@link VirtualClock#real()}
+     */
+    public EmulatorBuilder setClock(VirtualClock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    public String getProcessName() {
+        return processName;
+    }
+
+    public boolean isDebuggerEnabled() {
+        return debugger;
+    }
+
+    public boolean isCapstoneEnabled() {
+        return capstone;
+    }
+
+    public boolean isDalvikVMEnabled() {
+        return dalvikVM;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public AndroidARMEmulator buildAndroidARM() {
+        return new AndroidARMEmulator(this);
+    }
+
+    public AndroidARM64Emulator buildAndroidARM64() {
+        return new AndroidARM64Emulator(this);
+    }
+
+    public DarwinARMEmulator buildDarwinARM() {
+        return new DarwinARMEmulator(this);
+    }
+
+    public DarwinARM64Emulator buildDarwinARM64() {
+        return new DarwinARM64Emulator(this);
+    }
+
+}
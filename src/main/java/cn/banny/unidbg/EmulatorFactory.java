@@ -0,0 +1,27 @@
+package cn.banny.unidbg;
+
+import java.io.IOException;
+
+/**
+ * emulator factory for EmulatorPool
+ */
+public interface EmulatorFactory<T extends Emulator> {
+
+    /**
+     * create a new emulator, set library resolver here
+     */
+    T createEmulator();
+
+    /**
+     * called exactly once per emulator: load library and call JNI_OnLoad,
+     * keep vm or dvm class with {@link Emulator#set(String, Object)}
+     */
+    void initialize(T emulator) throws IOException;
+
+    /**
+     * health check
+     * @return <code>false</code> to destroy the emulator
+     */
+    boolean validate(T emulator);
+
+}
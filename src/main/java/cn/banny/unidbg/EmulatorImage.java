@@ -0,0 +1,273 @@
+package cn.banny.unidbg;
+
+import cn.banny.unidbg.linux.android.dvm.VM;
+import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.spi.ImageSerializable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import unicorn.Arm64Const;
+import unicorn.ArmConst;
+import unicorn.MemRegion;
+import unicorn.Unicorn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * on-disk image of an initialized emulator.
+ * <pre>
+ * int magic, int version, int headerLength
+ * header: emulator class, pointer size, registers, loader, svc memory, dalvik vm, region table
+ * padding to page boundary
+ * region data in table order
+ * </pre>
+ * The region data is read through a read-only file mapping, but the unicorn java binding only takes
+ * <code>byte[]</code>, so every region is still copied into guest memory in chunks.
+ */
+class EmulatorImage {
+
+    private static final Log log = LogFactory.getLog(EmulatorImage.class);
+
+    private static final int MAGIC = 0x756e6964; // unid
+    private static final int VERSION = 4;
+
+    private static final int DATA_ALIGN = 0x1000;
+    private static final int CHUNK_SIZE = 0x100000;
+
+    private static final int[][] ARM_REGISTERS = registers(
+            range(ArmConst.UC_ARM_REG_R0, ArmConst.UC_ARM_REG_R12, 4),
+            new int[][] {
+                    { ArmConst.UC_ARM_REG_SP, 4 },
+                    { ArmConst.UC_ARM_REG_LR, 4 },
+                    { ArmConst.UC_ARM_REG_PC, 4 },
+                    { ArmConst.UC_ARM_REG_CPSR, 4 },
+            },
+            range(ArmConst.UC_ARM_REG_D0, ArmConst.UC_ARM_REG_D31, 8),
+            new int[][] {
+                    { ArmConst.UC_ARM_REG_FPSCR, 4 },
+                    { ArmConst.UC_ARM_REG_FPEXC, 4 },
+                    { ArmConst.UC_ARM_REG_C13_C0_3, 4 },
+            });
+
+    private static final int[][] ARM64_REGISTERS = registers(
+            range(Arm64Const.UC_ARM64_REG_X0, Arm64Const.UC_ARM64_REG_X28, 8),
+            new int[][] {
+                    { Arm64Const.UC_ARM64_REG_FP, 8 },
+                    { Arm64Const.UC_ARM64_REG_LR, 8 },
+                    { Arm64Const.UC_ARM64_REG_SP, 8 },
+                    { Arm64Const.UC_ARM64_REG_PC, 8 },
+                    { Arm64Const.UC_ARM64_REG_NZCV, 8 },
+            },
+            range(Arm64Const.UC_ARM64_REG_Q0, Arm64Const.UC_ARM64_REG_Q31, 16),
+            new int[][] {
+                    { Arm64Const.UC_ARM64_REG_TPIDR_EL0, 8 },
+                    { Arm64Const.UC_ARM64_REG_TPIDRRO_EL0, 8 },
+            });
+
+    private static int[][] range(int first, int last, int size) {
+        int[][] registers = new int[last - first + 1][];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = new int[] { first + i, size };
+        }
+        return registers;
+    }
+
+    private static int[][] registers(int[][]... groups) {
+        List<int[]> list = new ArrayList<>();
+        for (int[][] group : groups) {
+            for (int[] register : group) {
+                list.add(register);
+            }
+        }
+        return list.toArray(new int[0][]);
+    }
+
+    static void save(AbstractEmulator emulator, VM vm, File file) throws IOException {
+        Memory memory = emulator.getMemory();
+        if (!(memory instanceof ImageSerializable) || !(emulator.getSvcMemory() instanceof ImageSerializable)) {
+            throw new UnsupportedOperationException("image not supported: " + memory.getClass().getSimpleName());
+        }
+        if (vm != null && !(vm instanceof ImageSerializable)) {
+            throw new UnsupportedOperationException("image not supported: " + vm.getClass().getSimpleName());
+        }
+        memory.trackDirtyPages(null);
+
+        long start = System.currentTimeMillis();
+        Unicorn unicorn = emulator.getUnicorn();
+        MemRegion[] regions = unicorn.mem_regions();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(baos);
+        header.writeUTF(emulator.getClass().getName());
+        header.writeInt(emulator.getPointerSize());
+        int[][] registers = emulator.getPointerSize() == 4 ? ARM_REGISTERS : ARM64_REGISTERS;
+        header.writeInt(registers.length);
+        for (int[] register : registers) {
+            header.writeInt(register[0]);
+            header.writeInt(register[1]);
+            header.write(readRegister(unicorn, register[0], register[1]));
+        }
+        long[] systemRegisters = emulator.readSystemRegisters();
+        header.writeInt(systemRegisters.length);
+        for (long value : systemRegisters) {
+            header.writeLong(value);
+        }
+        ((ImageSerializable) memory).writeImage(header);
+        ((ImageSerializable) emulator.getSvcMemory()).writeImage(header);
+        header.writeBoolean(vm != null);
+        if (vm != null) {
+            ((ImageSerializable) vm).writeImage(header);
+        }
+        header.writeInt(regions.length);
+        for (MemRegion region : regions) {
+            header.writeLong(region.begin);
+            header.writeLong(region.end + 1); // unicorn region end is inclusive
+            header.writeInt(region.perms);
+        }
+        header.flush();
+
+        long size = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(baos.size());
+            baos.writeTo(out);
+            out.write(new byte[(int) (dataOffset(baos.size()) - 12 - baos.size())]);
+
+            for (MemRegion region : regions) {
+                long end = region.end + 1;
+                for (long address = region.begin; address < end; address += CHUNK_SIZE) {
+                    out.write(unicorn.mem_read(address, Math.min(CHUNK_SIZE, end - address)));
+                }
+                size += end - region.begin;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("save image regions=" + regions.length + ", size=0x" + Long.toHexString(size) + ", file=" + file + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    static void load(AbstractEmulator emulator, VM vm, File file) throws IOException {
+        Memory memory = emulator.getMemory();
+        long start = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("not an emulator image: " + file);
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported image version: " + version);
+            }
+            byte[] data = new byte[raf.readInt()];
+            raf.readFully(data);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+
+            String emulatorClass = header.readUTF();
+            if (!emulatorClass.equals(emulator.getClass().getName()) || header.readInt() != emulator.getPointerSize()) {
+                throw new IOException("image created by " + emulatorClass);
+            }
+            int[][] registers = new int[header.readInt()][];
+            byte[][] values = new byte[registers.length][];
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = new int[] { header.readInt(), header.readInt() };
+                values[i] = new byte[registers[i][1]];
+                header.readFully(values[i]);
+            }
+            long[] systemRegisters = new long[header.readInt()];
+            for (int i = 0; i < systemRegisters.length; i++) {
+                systemRegisters[i] = header.readLong();
+            }
+
+            if (!(memory instanceof ImageSerializable) || !(emulator.getSvcMemory() instanceof ImageSerializable)) {
+                throw new UnsupportedOperationException("image not supported: " + memory.getClass().getSimpleName());
+            }
+            memory.trackDirtyPages(null);
+            ((ImageSerializable) memory).readImage(header);
+            ((ImageSerializable) emulator.getSvcMemory()).readImage(header);
+            if (header.readBoolean()) {
+                if (!(vm instanceof ImageSerializable)) {
+                    throw new IOException("image contains dalvik vm state, call createDalvikVM before loadImage");
+                }
+                ((ImageSerializable) vm).readImage(header);
+            }
+
+            int count = header.readInt();
+            List<Snapshot.Region> regions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                regions.add(new Snapshot.Region(header.readLong(), header.readLong(), header.readInt(), null));
+            }
+            emulator.restoreRegions(regions);
+
+            Unicorn unicorn = emulator.getUnicorn();
+            long offset = dataOffset(data.length);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (Snapshot.Region region : regions) {
+                if (region.getSize() > Integer.MAX_VALUE) {
+                    throw new IOException("region too large: 0x" + Long.toHexString(region.begin));
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, region.getSize());
+                for (long address = region.begin; buffer.hasRemaining(); address += CHUNK_SIZE) {
+                    memory.write(address, read(buffer, chunk));
+                }
+                offset += region.getSize();
+            }
+
+            emulator.writeSystemRegisters(systemRegisters); // runs guest code, before pc is restored
+            for (int i = 0; i < registers.length; i++) {
+                writeRegister(unicorn, registers[i][0], values[i]);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("load image file=" + file + ", offset=" + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * little endian value of the register, the Number api of the binding reads 64 bits at most
+     */
+    @SuppressWarnings("deprecation") // 128-bit vector registers are only available as byte[]
+    private static byte[] readRegister(Unicorn unicorn, int regId, int size) {
+        if (size > 8) {
+            return unicorn.reg_read(regId, size);
+        }
+        long value = ((Number) unicorn.reg_read(regId)).longValue();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (value >>> (i * 8));
+        }
+        return data;
+    }
+
+    @SuppressWarnings("deprecation") // 128-bit vector registers are only available as byte[]
+    private static void writeRegister(Unicorn unicorn, int regId, byte[] data) {
+        if (data.length > 8) {
+            unicorn.reg_write(regId, data);
+            return;
+        }
+        long value = 0;
+        for (int i = 0; i < data.length; i++) {
+            value |= (data[i] & 0xffL) << (i * 8);
+        }
+        unicorn.reg_write(regId, value);
+    }
+
+    private static byte[] read(ByteBuffer buffer, byte[] chunk) {
+        if (buffer.remaining() < chunk.length) {
+            chunk = new byte[buffer.remaining()];
+        }
+        buffer.get(chunk);
+        return chunk;
+    }
+
+    private static long dataOffset(int headerLength) {
+        long end = 12 + headerLength;
+        return (end + DATA_ALIGN - 1) & -DATA_ALIGN;
+    }
+
+}
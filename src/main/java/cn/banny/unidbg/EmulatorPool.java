@@ -0,0 +1,330 @@
+package cn.banny.unidbg;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * pre-warmed emulator pool: every emulator is created and initialized once by the factory,
+ * worker threads lease an emulator and give it back after use.
+ */
+public class EmulatorPool<T extends Emulator> implements Closeable {
+
+    private static final Log log = LogFactory.getLog(EmulatorPool.class);
+
+    private static class Idle<T> {
+        final T emulator;
+        final long idleSince;
+        Idle(T emulator, long idleSince) {
+            this.emulator = emulator;
+            this.idleSince = idleSince;
+        }
+    }
+
+    private final EmulatorFactory<T> factory;
+    private final int maxSize;
+
+    private final LinkedBlockingDeque<Idle<T>> idleQueue = new LinkedBlockingDeque<>();
+    private final Set<T> leased = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    private final AtomicInteger size = new AtomicInteger();
+
+    private long maxIdleNanos;
+    private boolean testOnLease;
+    private boolean testOnReturn = true;
+
+    private volatile boolean closed;
+
+    public EmulatorPool(EmulatorFactory<T> factory, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize=" + maxSize);
+        }
+
+        this.factory = factory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * idle emulators older than maxIdle are destroyed and rebuilt on demand, 0 means never.
+     */
+    public void setMaxIdle(long maxIdle, TimeUnit unit) {
+        this.maxIdleNanos = unit.toNanos(maxIdle);
+    }
+
+    public void setTestOnLease(boolean testOnLease) {
+        this.testOnLease = testOnLease;
+    }
+
+    public void setTestOnReturn(boolean testOnReturn) {
+        this.testOnReturn = testOnReturn;
+    }
+
+    /**
+     * create and initialize emulators until the pool is full
+     */
+    public void warmUp() {
+        T emulator;
+        while ((emulator = tryCreate()) != null) {
+            idleQueue.offerFirst(new Idle<>(emulator, System.nanoTime()));
+        }
+    }
+
+    public T lease() throws InterruptedException {
+        return lease(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout 0 means wait forever
+     * @return <code>null</code> if timeout
+     */
+    public T lease(long timeout, TimeUnit unit) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = timeout <= 0 ? Long.MAX_VALUE : start + unit.toNanos(timeout);
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("pool closed");
+            }
+
+            Idle<T> idle = idleQueue.pollFirst();
+            T emulator = null;
+            if (idle == null) {
+                emulator = tryCreate();
+            }
+            if (idle == null && emulator == null) {
+                long remaining = deadline == Long.MAX_VALUE ? TimeUnit.SECONDS.toNanos(1) : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeoutCount.incrementAndGet();
+                    return null;
+                }
+                idle = idleQueue.pollFirst(remaining, TimeUnit.NANOSECONDS);
+                if (idle == null) {
+                    continue;
+                }
+            }
+            if (idle != null) {
+                if (isExpired(idle, System.nanoTime())) {
+                    destroy(idle.emulator, "expired");
+                    continue;
+                }
+                if (testOnLease && !validate(idle.emulator)) {
+                    destroy(idle.emulator, "validate failed on lease");
+                    continue;
+                }
+                emulator = idle.emulator;
+            }
+
+            leased.add(emulator);
+            long wait = System.nanoTime() - start;
+            leaseCount.incrementAndGet();
+            totalWaitNanos.addAndGet(wait);
+            updateMaxWait(wait);
+            return emulator;
+        }
+    }
+
+    /**
+     * give back the leased emulator
+     */
+    public void release(T emulator) {
+        if (!leased.remove(emulator)) {
+            throw new IllegalArgumentException("emulator not leased from this pool: " + emulator);
+        }
+
+        if (closed) {
+            destroy(emulator, "pool closed");
+        } else if (isTraced(emulator)) {
+            destroy(emulator, "traced");
+        } else if (testOnReturn && !validate(emulator)) {
+            destroy(emulator, "validate failed on return");
+        } else {
+            idleQueue.offerFirst(new Idle<>(emulator, System.nanoTime()));
+        }
+    }
+
+    /**
+     * destroy the leased emulator instead of giving it back, e.g. after a crash
+     */
+    public void invalidate(T emulator) {
+        if (!leased.remove(emulator)) {
+            throw new IllegalArgumentException("emulator not leased from this pool: " + emulator);
+        }
+        destroy(emulator, "invalidated");
+    }
+
+    /**
+     * destroy idle emulators exceeding max idle time
+     * @return evicted count
+     */
+    public int evictIdle() {
+        if (maxIdleNanos <= 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        int count = 0;
+        for (Iterator<Idle<T>> iterator = idleQueue.descendingIterator(); iterator.hasNext(); ) {
+            Idle<T> idle = iterator.next();
+            if (isExpired(idle, now) && idleQueue.removeLastOccurrence(idle)) {
+                destroy(idle.emulator, "expired");
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isExpired(Idle<T> idle, long now) {
+        return maxIdleNanos > 0 && now - idle.idleSince > maxIdleNanos;
+    }
+
+    /**
+     * trace hooks cannot be removed, a traced emulator would slow down every later lease
+     */
+    private static boolean isTraced(Emulator emulator) {
+        return emulator instanceof AbstractEmulator && ((AbstractEmulator) emulator).traceDispatcher != null;
+    }
+
+    private boolean validate(T emulator) {
+        try {
+            return factory.validate(emulator);
+        } catch (RuntimeException e) {
+            log.warn("validate emulator failed", e);
+            return false;
+        }
+    }
+
+    private T tryCreate() {
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        T emulator = null;
+        try {
+            emulator = factory.createEmulator();
+            factory.initialize(emulator);
+            createdCount.incrementAndGet();
+            totalCreateNanos.addAndGet(System.nanoTime() - start);
+            if (log.isDebugEnabled()) {
+                log.debug("create emulator: offset=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, size=" + size.get());
+            }
+            return emulator;
+        } catch (IOException | RuntimeException e) {
+            size.decrementAndGet();
+            IOUtils.closeQuietly(emulator);
+            throw new IllegalStateException("create emulator failed", e);
+        }
+    }
+
+    private void destroy(T emulator, String reason) {
+        size.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("destroy emulator: " + reason);
+        }
+        IOUtils.closeQuietly(emulator);
+    }
+
+    private void updateMaxWait(long wait) {
+        long max;
+        while (wait > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, wait)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        Idle<T> idle;
+        while ((idle = idleQueue.pollFirst()) != null) {
+            destroy(idle.emulator, "pool closed");
+        }
+    }
+
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong totalCreateNanos = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getIdleCount() {
+        return idleQueue.size();
+    }
+
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    public long getTotalWait(TimeUnit unit) {
+        return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getAverageWait(TimeUnit unit) {
+        long count = leaseCount.get();
+        return count == 0 ? 0 : unit.convert(totalWaitNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    public long getAverageCreate(TimeUnit unit) {
+        long count = createdCount.get();
+        return count == 0 ? 0 : unit.convert(totalCreateNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "EmulatorPool{" +
+                "size=" + size.get() +
+                ", maxSize=" + maxSize +
+                ", idle=" + idleQueue.size() +
+                ", active=" + leased.size() +
+                ", leases=" + leaseCount.get() +
+                ", timeouts=" + timeoutCount.get() +
+                ", created=" + createdCount.get() +
+                ", destroyed=" + destroyedCount.get() +
+                ", avgWait=" + getAverageWait(TimeUnit.MICROSECONDS) + "us" +
+                ", maxWait=" + getMaxWait(TimeUnit.MICROSECONDS) + "us" +
+                '}';
+    }
+}
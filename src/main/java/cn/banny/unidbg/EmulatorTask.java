@@ -0,0 +1,10 @@
+package cn.banny.unidbg;
+
+/**
+ * work run on the thread owning the emulator, see {@link AsyncEmulator}
+ */
+public interface EmulatorTask<T extends Emulator, V> {
+
+    V call(T emulator) throws Exception;
+
+}
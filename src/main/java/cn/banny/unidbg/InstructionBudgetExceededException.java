@@ -0,0 +1,28 @@
+package cn.banny.unidbg;
+
+/**
+ * emulation stopped because the instruction budget ran out, see {@link Emulator#setInstructionBudget(long)}
+ */
+public class InstructionBudgetExceededException extends RuntimeException {
+
+    private final long pc;
+    private final long instructionCount;
+
+    public InstructionBudgetExceededException(long pc, long instructionCount) {
+        super("instruction budget exceeded: pc=0x" + Long.toHexString(pc) + ", instructions=" + instructionCount);
+        this.pc = pc;
+        this.instructionCount = instructionCount;
+    }
+
+    public long getPc() {
+        return pc;
+    }
+
+    /**
+     * instructions executed before the stop, equals the budget
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+}
@@ -5,6 +5,7 @@ import unicorn.Unicorn;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -43,6 +44,36 @@ public abstract class Module {
         return symbol.call(emulator, args);
     }
 
+    /**
+     * resolve the symbol once for repeated calls
+     */
+    public final NativeCallHandle createCallHandle(Emulator emulator, String symbolName, NativeCallHandle.Type... types) throws IOException {
+        Symbol symbol = findSymbolByName(symbolName, false);
+        if (symbol == null) {
+            throw new IllegalStateException("find symbol failed: " + symbolName);
+        }
+        if (symbol.isUndef()) {
+            throw new IllegalStateException(symbolName + " is NOT defined");
+        }
+
+        return NativeCallHandle.create(emulator, symbol.getAddress(), types);
+    }
+
+    /**
+     * call the symbol once per argument tuple, argument types are taken from the first tuple
+     * @return count of calls
+     */
+    public final int callFunctionBatch(Emulator emulator, String symbolName, Iterable<Object[]> tuples, BatchCallback callback) throws IOException {
+        Iterator<Object[]> iterator = tuples.iterator();
+        if (!iterator.hasNext()) {
+            return 0;
+        }
+        Object[] first = iterator.next();
+        try (NativeCallHandle handle = createCallHandle(emulator, symbolName, NativeCallHandle.typesOf(first))) {
+            return handle.batch(first, iterator, callback);
+        }
+    }
+
     public final Symbol findSymbolByName(String name) throws IOException {
         return findSymbolByName(name, true);
     }
@@ -71,6 +102,10 @@ public abstract class Module {
         return --referenceCount;
     }
 
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
     private boolean forceCallInit;
 
     public boolean isForceCallInit() {
@@ -101,6 +136,10 @@ public abstract class Module {
         this.entryPoint = entryPoint;
     }
 
+    public long getEntryPoint() {
+        return entryPoint;
+    }
+
     public  abstract int callEntry(Emulator emulator, Object... args);
 
 }
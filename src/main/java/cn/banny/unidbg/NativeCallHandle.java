@@ -0,0 +1,302 @@
+package cn.banny.unidbg;
+
+import cn.banny.unidbg.arm.ARM;
+import cn.banny.unidbg.linux.android.dvm.DvmClass;
+import cn.banny.unidbg.linux.android.dvm.DvmObject;
+import cn.banny.unidbg.linux.android.dvm.Hashable;
+import cn.banny.unidbg.linux.android.dvm.VM;
+import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.memory.MemoryBlock;
+import cn.banny.unidbg.pointer.UnicornPointer;
+import unicorn.Arm64Const;
+import unicorn.ArmConst;
+import unicorn.Unicorn;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * native function resolved once with a fixed argument shape.
+ * Arguments are set with primitive setters, byte arrays are copied into guest buffers owned by the handle,
+ * so a call does not allocate java objects except the boxed register values exchanged with unicorn.
+ * A handle is bound to one emulator and is not thread safe.
+ */
+public class NativeCallHandle implements Closeable {
+
+    public enum Type {
+        /**
+         * int, pointer or jobject hash, one register or stack slot
+         */
+        WORD,
+        /**
+         * 64-bit integer, on arm32 an even register pair or an 8 byte aligned stack slot as of the AAPCS
+         */
+        LONG,
+        /**
+         * byte array copied into a guest buffer, passed as pointer
+         */
+        BYTES
+    }
+
+    public static NativeCallHandle create(Emulator emulator, long address, Type... types) {
+        return new NativeCallHandle((AbstractEmulator) emulator, address, null, new long[0], types);
+    }
+
+    /**
+     * JNIEnv and jclass are bound, jobject arguments are added to the local references of the vm
+     */
+    public static NativeCallHandle createJni(Emulator emulator, DvmClass dvmClass, long address, Type... types) {
+        long[] prefix = new long[] { ((UnicornPointer) dvmClass.vm.getJNIEnv()).peer, dvmClass.hashCode() };
+        return new NativeCallHandle((AbstractEmulator) emulator, address, dvmClass.vm, prefix, types);
+    }
+
+    /**
+     * byte[] and String are passed as BYTES, Long as LONG, anything else as WORD
+     */
+    public static Type[] typesOf(Object... args) {
+        Type[] types = new Type[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof byte[] || args[i] instanceof String) {
+                types[i] = Type.BYTES;
+            } else {
+                types[i] = args[i] instanceof Long ? Type.LONG : Type.WORD;
+            }
+        }
+        return types;
+    }
+
+    private final AbstractEmulator emulator;
+    private final VM vm;
+    private final Unicorn unicorn;
+    private final long address;
+    private final int fixed;
+    private final Type[] types;
+    private final long[] values;
+    private final MemoryBlock[] buffers;
+
+    private final int pointerSize;
+    private final int[] regArgs;
+    private final int spRegister;
+    private final int[] registers; // first argument register of each value, -1 if passed on the stack
+    private final int[] stackOffsets;
+    private final boolean[] pairs; // value takes two registers or 8 stack bytes
+    private final byte[] stack;
+
+    private long instructionBudget;
+
+    private NativeCallHandle(AbstractEmulator emulator, long address, VM vm, long[] prefix, Type... types) {
+        this.emulator = emulator;
+        this.vm = vm;
+        this.unicorn = emulator.getUnicorn();
+        this.address = address;
+        this.fixed = prefix.length;
+        this.types = types;
+        this.values = Arrays.copyOf(prefix, prefix.length + types.length);
+        this.buffers = new MemoryBlock[types.length];
+
+        this.pointerSize = emulator.getPointerSize();
+        this.regArgs = ARM.getRegArgs(emulator);
+        this.spRegister = pointerSize == 4 ? ArmConst.UC_ARM_REG_SP : Arm64Const.UC_ARM64_REG_SP;
+        this.registers = new int[values.length];
+        this.stackOffsets = new int[values.length];
+        this.pairs = new boolean[values.length];
+        int register = 0;
+        int stackSize = 0;
+        for (int i = 0; i < values.length; i++) {
+            boolean pair = pointerSize == 4 && i >= fixed && types[i - fixed] == Type.LONG;
+            int size = pair ? 8 : pointerSize;
+            if (pair) {
+                register = (register + 1) & ~1;
+            }
+            pairs[i] = pair;
+            if (register + size / pointerSize <= regArgs.length) {
+                registers[i] = register;
+                register += size / pointerSize;
+            } else {
+                register = regArgs.length; // no back filling of registers after the first stack argument
+                stackSize = (stackSize + size - 1) & -size;
+                registers[i] = -1;
+                stackOffsets[i] = stackSize;
+                stackSize += size;
+            }
+        }
+        this.stack = new byte[(int) ARM.alignSize(stackSize, 16)];
+    }
+
+    /**
+     * instruction budget of every call through this handle, overrides the emulator budget, 0 means use the emulator budget
+     */
+    public NativeCallHandle setInstructionBudget(long instructionBudget) {
+        this.instructionBudget = instructionBudget;
+        return this;
+    }
+
+    public NativeCallHandle setInt(int index, int value) {
+        return setLong(index, value);
+    }
+
+    public NativeCallHandle setLong(int index, long value) {
+        if (types[index] != Type.LONG) {
+            checkType(index, Type.WORD);
+        }
+        values[fixed + index] = value;
+        return this;
+    }
+
+    /**
+     * set an argument with the conversions of {@link cn.banny.unidbg.linux.LinuxModule#emulateFunction(Emulator, long, Object...)},
+     * strings are passed as NUL terminated utf-8
+     */
+    public NativeCallHandle set(int index, Object value) {
+        if (types[index] == Type.BYTES) {
+            if (value instanceof String) {
+                byte[] data = ((String) value).getBytes(StandardCharsets.UTF_8);
+                return setBytes(index, Arrays.copyOf(data, data.length + 1));
+            } else if (value instanceof byte[]) {
+                return setBytes(index, (byte[]) value);
+            }
+        } else if (value == null) {
+            return setLong(index, 0);
+        } else if (value instanceof Number) {
+            return setLong(index, ((Number) value).longValue());
+        } else if (value instanceof DvmObject && vm != null) {
+            return setInt(index, vm.addLocalObject((DvmObject) value));
+        } else if (value instanceof Hashable) {
+            return setInt(index, value.hashCode());
+        } else if (value instanceof UnicornPointer) {
+            return setLong(index, ((UnicornPointer) value).peer);
+        }
+        throw new IllegalArgumentException("argument " + index + " is " + types[index] + ": " + value);
+    }
+
+    /**
+     * the guest buffer only grows, pass the same array again to resend unchanged data
+     */
+    public NativeCallHandle setBytes(int index, byte[] data) {
+        checkType(index, Type.BYTES);
+        MemoryBlock block = buffers[index];
+        if (block == null || block.getPointer().getSize() < data.length) {
+            if (block != null) {
+                block.free(true);
+            }
+            block = emulator.getMemory().malloc(Math.max(data.length, 1), true);
+            buffers[index] = block;
+        }
+        block.getPointer().write(0, data, 0, data.length);
+        values[fixed + index] = block.getPointer().peer;
+        return this;
+    }
+
+    /**
+     * read back a BYTES argument written by the native function, the unicorn binding allocates the array
+     */
+    public byte[] getBytes(int index, int length) {
+        checkType(index, Type.BYTES);
+        if (buffers[index] == null) {
+            throw new IllegalStateException("bytes not set: " + index);
+        }
+        return buffers[index].getPointer().getByteArray(0, length);
+    }
+
+    /**
+     * @return r0 or x0, 32-bit results are sign extended
+     */
+    public long call() {
+        Memory memory = emulator.getMemory();
+        long spBackup = memory.getStackPoint();
+        long arenaMark = memory.getArgumentArena().mark();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (registers[i] == -1) {
+                    putBytes(stack, stackOffsets[i], values[i], pairs[i] ? 8 : pointerSize);
+                } else if (pairs[i]) {
+                    writeRegister(regArgs[registers[i]], values[i] & 0xffffffffL);
+                    writeRegister(regArgs[registers[i] + 1], values[i] >>> 32);
+                } else {
+                    writeRegister(regArgs[registers[i]], values[i]);
+                }
+            }
+            if (stack.length > 0) {
+                long sp = (spBackup - stack.length) & -16L;
+                memory.setStackPoint(sp);
+                memory.write(sp, stack);
+            }
+            emulator.callInstructionBudget = instructionBudget;
+            return emulator.eCall(address).longValue();
+        } finally {
+            emulator.callInstructionBudget = 0;
+            if (memory.getStackPoint() != spBackup) {
+                memory.setStackPoint(spBackup);
+            } else {
+                writeRegister(spRegister, spBackup);
+            }
+            memory.getArgumentArena().release(arenaMark);
+        }
+    }
+
+    /**
+     * call once per tuple in one emulator, trace hooks stay installed and argument buffers are reused.
+     * jobject local references are deleted after each result was delivered.
+     * @return count of calls
+     */
+    public int batch(Iterable<Object[]> tuples, BatchCallback callback) {
+        Iterator<Object[]> iterator = tuples.iterator();
+        return iterator.hasNext() ? batch(iterator.next(), iterator, callback) : 0;
+    }
+
+    /**
+     * @param first tuple already taken from <code>rest</code>, to peek at the argument types without iterating twice
+     * @see #batch(Iterable, BatchCallback)
+     */
+    public int batch(Object[] first, Iterator<Object[]> rest, BatchCallback callback) {
+        int index = 0;
+        emulator.beginBatch();
+        try {
+            for (Object[] args = first; args != null; args = rest.hasNext() ? rest.next() : null) {
+                if (args.length != types.length) {
+                    throw new IllegalArgumentException("tuple " + index + " expected " + types.length + " arguments: " + args.length);
+                }
+                for (int i = 0; i < args.length; i++) {
+                    set(i, args[i]);
+                }
+                long result = call();
+                callback.onResult(index++, this, result);
+                if (vm != null) {
+                    vm.deleteLocalRefs();
+                }
+            }
+        } finally {
+            emulator.endBatch();
+        }
+        return index;
+    }
+
+    private void writeRegister(int regId, long value) {
+        unicorn.reg_write(regId, value);
+    }
+
+    private static void putBytes(byte[] data, int offset, long value, int size) {
+        for (int i = 0; i < size; i++) {
+            data[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private void checkType(int index, Type type) {
+        if (types[index] != type) {
+            throw new IllegalArgumentException("argument " + index + " is " + types[index]);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] != null) {
+                buffers[i].free(true);
+                buffers[i] = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package cn.banny.unidbg;
+
+import unicorn.Unicorn;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * point-in-time emulator state: mapped memory, cpu context (including VFP/NEON and TLS register),
+ * loader counters, file descriptors and dalvik object tables.
+ * A snapshot can be restored many times, call {@link #close()} to free the cpu context.
+ */
+public class Snapshot implements Closeable {
+
+    public static class Region {
+        public final long begin;
+        public final long end;
+        public final int perms;
+        public final byte[] data;
+        Region(long begin, long end, int perms, byte[] data) {
+            this.begin = begin;
+            this.end = end;
+            this.perms = perms;
+            this.data = data;
+        }
+        public long getSize() {
+            return end - begin;
+        }
+    }
+
+    private final Unicorn unicorn;
+    private long context;
+    final List<Region> regions;
+    final Object memoryState;
+    final Object syscallState;
+    final Object vmState;
+
+    Snapshot(Unicorn unicorn, long context, List<Region> regions, Object memoryState, Object syscallState, Object vmState) {
+        this.unicorn = unicorn;
+        this.context = context;
+        this.regions = regions;
+        this.memoryState = memoryState;
+        this.syscallState = syscallState;
+        this.vmState = vmState;
+    }
+
+    final long getContext() {
+        if (context == 0) {
+            throw new IllegalStateException("snapshot closed");
+        }
+        return context;
+    }
+
+    final boolean isOwnedBy(Unicorn unicorn) {
+        return this.unicorn == unicorn;
+    }
+
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    public long getMemorySize() {
+        long size = 0;
+        for (Region region : regions) {
+            size += region.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (context != 0) {
+            unicorn.free(context);
+            context = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{" +
+                "regions=" + regions.size() +
+                ", memorySize=0x" + Long.toHexString(getMemorySize()) +
+                '}';
+    }
+}
@@ -0,0 +1,325 @@
+package cn.banny.unidbg;
+
+import org.apache.commons.io.IOUtils;
+import unicorn.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * trace window spanning many emulations, hooks are installed once on the first {@link #start()} and kept until
+ * {@link #close()}, output goes through a buffered writer.
+ * <pre>
+ * TraceSession session = new TraceSession(emulator, new File("trace.log")).traceCode().addModule("libnative.so");
+ * session.start();
+ * ...
+ * session.stop();
+ * session.rotate(new File("trace.1.log"));
+ * </pre>
+ * Address ranges and modules filter on the pc for instruction and memory events, no filter means everything.
+ * The unicorn hooks are shared by the sessions of an emulator and stay installed after {@link #close()},
+ * see {@link Dispatcher}.
+ */
+public class TraceSession implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AbstractEmulator emulator;
+
+    private boolean read, write, code;
+    private final List<long[]> ranges = new ArrayList<>();
+    private final Set<String> modules = new LinkedHashSet<>();
+
+    private volatile long[][] filters; // [begin, end), includes loaded modules
+
+    private PrintStream out;
+    private boolean installed;
+    private volatile boolean running;
+
+    private final TraceMemoryHook memoryHook = new TraceMemoryHook();
+    private final AssemblyCodeDumper codeDumper;
+
+    /**
+     * @param outFile <code>null</code> means standard output
+     */
+    public TraceSession(Emulator emulator, File outFile) throws IOException {
+        this.emulator = (AbstractEmulator) emulator;
+        this.codeDumper = new AssemblyCodeDumper(emulator);
+        this.codeDumper.initialize(1, 0);
+        open(outFile);
+    }
+
+    public TraceSession traceRead() {
+        checkNotInstalled();
+        this.read = true;
+        return this;
+    }
+
+    public TraceSession traceWrite() {
+        checkNotInstalled();
+        this.write = true;
+        return this;
+    }
+
+    public TraceSession traceCode() {
+        checkNotInstalled();
+        this.code = true;
+        return this;
+    }
+
+    /**
+     * @param end exclusive
+     */
+    public TraceSession addRange(long begin, long end) {
+        checkNotInstalled();
+        ranges.add(new long[]{begin, end});
+        return this;
+    }
+
+    /**
+     * the module may be loaded after the session was started
+     */
+    public TraceSession addModule(String moduleName) {
+        checkNotInstalled();
+        modules.add(moduleName);
+        return this;
+    }
+
+    private void checkNotInstalled() {
+        if (installed) {
+            throw new IllegalStateException("trace session already started");
+        }
+    }
+
+    /**
+     * trace following emulations until {@link #stop()}.
+     * The first start installs the unicorn hooks for good: every later emulation of this emulator pays a callback
+     * per instruction or memory access traced, even after {@link #stop()} or {@link #close()},
+     * and an {@link EmulatorPool} destroys the emulator instead of taking it back.
+     */
+    public synchronized void start() {
+        if (out == null) {
+            throw new IllegalStateException("trace session closed");
+        }
+        if (!installed) {
+            if (emulator.traceSession != null) {
+                throw new IllegalStateException("emulator already traced: " + emulator);
+            }
+            install();
+            emulator.traceSession = this;
+            installed = true;
+        }
+        running = true;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * flush and close the current output and continue with the new file
+     * @param outFile <code>null</code> means standard output
+     */
+    public synchronized void rotate(File outFile) throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("trace session closed");
+        }
+        closeOut();
+        open(outFile);
+    }
+
+    private void open(File outFile) throws IOException {
+        if (outFile == null) {
+            out = System.out;
+        } else {
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE), false);
+        }
+        memoryHook.redirect = out;
+        codeDumper.redirect = out;
+    }
+
+    private void closeOut() {
+        out.flush();
+        if (out != System.out) {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void install() {
+        resolveModules();
+
+        Dispatcher dispatcher = emulator.traceDispatcher;
+        if (dispatcher == null) {
+            dispatcher = new Dispatcher(emulator);
+            emulator.traceDispatcher = dispatcher;
+        }
+        if (code && ranges.size() == 1 && modules.isEmpty()) {
+            long[] range = ranges.get(0);
+            dispatcher.install(code, read, write, range[0], range[1] - 1);
+        } else {
+            dispatcher.install(code, read, write, 1, 0);
+        }
+    }
+
+    /**
+     * called by the emulator thread before emu_start, resolves modules loaded since the last call
+     */
+    final void enter() {
+        if (running && filters.length < ranges.size() + modules.size()) {
+            resolveModules();
+        }
+    }
+
+    private synchronized void resolveModules() {
+        List<long[]> list = new ArrayList<>(ranges);
+        for (String name : modules) {
+            Module module = emulator.getMemory().findModule(name);
+            if (module != null) {
+                list.add(new long[]{module.base, module.base + module.size});
+            }
+        }
+        filters = list.toArray(new long[0][]);
+    }
+
+    private boolean accept(long pc) {
+        if (ranges.isEmpty() && modules.isEmpty()) {
+            return true;
+        }
+        for (long[] filter : filters) {
+            if (pc >= filter[0] && pc < filter[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long readPC(Unicorn u) {
+        if (emulator.getPointerSize() == 4) {
+            return ((Number) u.reg_read(ArmConst.UC_ARM_REG_PC)).intValue() & 0xffffffffL;
+        } else {
+            return ((Number) u.reg_read(Arm64Const.UC_ARM64_REG_PC)).longValue();
+        }
+    }
+
+    private void onCode(Unicorn u, long address, int size, Object user) {
+        if (code && running && accept(address)) {
+            synchronized (this) {
+                codeDumper.hook(u, address, size, user);
+            }
+        }
+    }
+
+    private void onRead(Unicorn u, long address, int size, Object user) {
+        if (read && running && accept(readPC(u))) {
+            synchronized (this) {
+                memoryHook.hook(u, address, size, user);
+            }
+        }
+    }
+
+    private void onWrite(Unicorn u, long address, int size, long value, Object user) {
+        if (write && running && accept(readPC(u))) {
+            synchronized (this) {
+                memoryHook.hook(u, address, size, value, user);
+            }
+        }
+    }
+
+    /**
+     * unicorn hooks of one emulator forwarding to its current session.
+     * The unicorn 1.0.1 binding applies the range of the first code hook to every code hook and its hook_del removes nothing,
+     * so each hook is added once and filtered by the session, it stays installed until the emulator is closed
+     * and costs a callback per instruction or memory access even without a running session.
+     * The code hook covers the single range of the first session tracing code, everything otherwise.
+     */
+    static final class Dispatcher {
+        private final AbstractEmulator emulator;
+        private boolean code, read, write;
+        private long codeBegin, codeEnd;
+
+        Dispatcher(AbstractEmulator emulator) {
+            this.emulator = emulator;
+        }
+
+        /**
+         * @param end inclusive, <code>begin &gt; end</code> means everything
+         */
+        synchronized void install(boolean code, boolean read, boolean write, long begin, long end) {
+            Unicorn unicorn = emulator.getUnicorn();
+            if (code && this.code && codeBegin <= codeEnd && (begin > end || begin < codeBegin || end > codeEnd)) {
+                throw new IllegalStateException("code hook installed for [0x" + Long.toHexString(codeBegin) + ", 0x" + Long.toHexString(codeEnd) + "] only");
+            }
+            if (code && !this.code) {
+                unicorn.hook_add(codeHook, begin, end, emulator);
+                this.code = true;
+                this.codeBegin = begin;
+                this.codeEnd = end;
+            }
+            if (read && !this.read) {
+                unicorn.hook_add(readHook, 1, 0, emulator);
+                this.read = true;
+            }
+            if (write && !this.write) {
+                unicorn.hook_add(writeHook, 1, 0, emulator);
+                this.write = true;
+            }
+        }
+
+        private final CodeHook codeHook = new CodeHook() {
+            @Override
+            public void hook(Unicorn u, long address, int size, Object user) {
+                TraceSession session = emulator.traceSession;
+                if (session != null) {
+                    session.onCode(u, address, size, user);
+                }
+            }
+        };
+
+        private final ReadHook readHook = new ReadHook() {
+            @Override
+            public void hook(Unicorn u, long address, int size, Object user) {
+                TraceSession session = emulator.traceSession;
+                if (session != null) {
+                    session.onRead(u, address, size, user);
+                }
+            }
+        };
+
+        private final WriteHook writeHook = new WriteHook() {
+            @Override
+            public void hook(Unicorn u, long address, int size, long value, Object user) {
+                TraceSession session = emulator.traceSession;
+                if (session != null) {
+                    session.onWrite(u, address, size, value, user);
+                }
+            }
+        };
+    }
+
+    /**
+     * stop tracing, detach from the emulator and close the output, the shared hooks stay installed
+     */
+    @Override
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        running = false;
+        if (installed) {
+            emulator.traceSession = null;
+        }
+        closeOut();
+        out = null;
+    }
+
+}
@@ -0,0 +1,207 @@
+package cn.banny.unidbg;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * monitor thread stopping running emulations across all emulators when a deadline passes or a cancel token fires.
+ * <pre>
+ * try (Watchdog.Watch watch = watchdog.watch(emulator, 200, TimeUnit.MILLISECONDS, token).recoverTo(snapshot)) {
+ *     dvmClass.callStaticJniMethod(emulator, method, args);
+ * }
+ * </pre>
+ * A stopped call throws {@link EmulationCancelledException}, closing the watch restores the recovery snapshot
+ * so the emulator can be reused.
+ */
+public class Watchdog implements Closeable {
+
+    private static final Log log = LogFactory.getLog(Watchdog.class);
+
+    private static final String UNKNOWN_LIBRARY = "<unknown>";
+
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private final ConcurrentMap<String, AtomicLong> cancellations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService monitor;
+
+    public Watchdog() {
+        this(10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param period interval of the deadline and cancel token checks
+     */
+    public Watchdog(long period, TimeUnit unit) {
+        this.monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unidbg-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.monitor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (Watch watch : watches) {
+                    try {
+                        watch.check(now);
+                    } catch (RuntimeException e) {
+                        log.warn("watchdog check failed", e);
+                    }
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * guard every emulation of the emulator until the watch is closed, one watch per emulator at a time
+     * @param timeout 0 means no deadline
+     * @param token <code>null</code> means no cancel token
+     */
+    public Watch watch(Emulator emulator, long timeout, TimeUnit unit, CancelToken token) {
+        AbstractEmulator abstractEmulator = (AbstractEmulator) emulator;
+        if (abstractEmulator.watch != null) {
+            throw new IllegalStateException("emulator already watched: " + emulator);
+        }
+
+        long timeoutNanos = unit.toNanos(timeout);
+        Watch watch = new Watch(abstractEmulator, timeoutNanos <= 0 ? 0 : System.nanoTime() + timeoutNanos, token);
+        abstractEmulator.watch = watch;
+        watches.add(watch);
+        return watch;
+    }
+
+    public Watch watch(Emulator emulator, long timeout, TimeUnit unit) {
+        return watch(emulator, timeout, unit, null);
+    }
+
+    /**
+     * @return cancellation count by library name
+     */
+    public Map<String, Long> getCancellations() {
+        Map<String, Long> map = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : cancellations.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
+    public int getWatchCount() {
+        return watches.size();
+    }
+
+    public class Watch implements Closeable {
+
+        private final AbstractEmulator emulator;
+        private final long deadline;
+        private final CancelToken token;
+
+        private Snapshot recoverySnapshot;
+
+        private volatile String reason;
+        private volatile int running;
+        private long entryAddress;
+        private boolean counted;
+
+        private Watch(AbstractEmulator emulator, long deadline, CancelToken token) {
+            this.emulator = emulator;
+            this.deadline = deadline;
+            this.token = token;
+        }
+
+        /**
+         * restored when the watch is closed after a cancellation
+         */
+        public Watch recoverTo(Snapshot snapshot) {
+            this.recoverySnapshot = snapshot;
+            return this;
+        }
+
+        public boolean isCancelled() {
+            return reason != null;
+        }
+
+        private void check(long now) {
+            if (reason == null) {
+                if (token != null && token.isCancelled()) {
+                    reason = "cancelled";
+                } else if (deadline != 0 && now - deadline >= 0) {
+                    reason = "deadline exceeded";
+                }
+            }
+            if (reason != null && running > 0) {
+                emulator.getUnicorn().emu_stop(); // repeated every period: a stop issued right before emu_start is lost
+            }
+        }
+
+        /**
+         * called by the emulator thread before emu_start
+         */
+        final void enter(long begin) {
+            if (running++ == 0) {
+                entryAddress = begin;
+            }
+            if (reason != null) {
+                running--;
+                throw cancelled();
+            }
+        }
+
+        /**
+         * called by the emulator thread after emu_start
+         */
+        final void exit() {
+            running--;
+        }
+
+        final void checkCancelled() {
+            if (reason != null) {
+                throw cancelled();
+            }
+        }
+
+        private EmulationCancelledException cancelled() {
+            Module module = emulator.getMemory().findModuleByAddress(entryAddress);
+            String library = module == null ? UNKNOWN_LIBRARY : module.name;
+            if (!counted) {
+                counted = true;
+                AtomicLong count = cancellations.get(library);
+                if (count == null) {
+                    AtomicLong old = cancellations.putIfAbsent(library, count = new AtomicLong());
+                    if (old != null) {
+                        count = old;
+                    }
+                }
+                count.incrementAndGet();
+            }
+            return new EmulationCancelledException(reason, library);
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+            emulator.watch = null;
+            if (reason != null && recoverySnapshot != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("restore emulator after " + reason + ": " + emulator);
+                }
+                emulator.restore(recoverySnapshot);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        monitor.shutdownNow();
+    }
+
+}
@@ -6,13 +6,15 @@ import capstone.Capstone;
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
 import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.pointer.CStringReader;
 import com.sun.jna.Pointer;
 import unicorn.Arm64Const;
 import unicorn.ArmConst;
 import unicorn.Unicorn;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -433,7 +435,7 @@ public class ARM {
             Arm64Const.UC_ARM64_REG_NZCV
     };
 
-    private static int[] getRegArgs(Emulator emulator) {
+    public static int[] getRegArgs(Emulator emulator) {
         return emulator.getPointerSize() == 4 ? ARM_ARG_REGS : ARM64_ARG_REGS;
     }
 
@@ -445,6 +447,28 @@ public class ARM {
         return ARM64_REGS;
     }
 
+    /**
+     * little endian machine code of precomputed instruction words, no assembler needed at runtime
+     */
+    public static byte[] toMachineCode(int... instructions) {
+        ByteBuffer buffer = ByteBuffer.allocate(instructions.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int instruction : instructions) {
+            buffer.putInt(instruction);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return size bytes filled with the instruction word
+     */
+    public static byte[] fillInstruction(int size, int instruction) {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            buffer.putInt(instruction);
+        }
+        return buffer.array();
+    }
+
     private static final int ALIGN_SIZE_BASE = 0x10;
 
     public static int alignSize(int size) {
@@ -456,28 +480,11 @@ public class ARM {
     }
 
     public static String readCString(Unicorn unicorn, long address) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(0x1000);
-        int size = 0;
-        try {
-            while (true) {
-                byte[] oneByte = unicorn.mem_read(address, 1);
-                size += oneByte.length;
-
-                if (size > 0x1000) {
-                    throw new IllegalStateException("read utf8 string failed");
-                }
-
-                if (oneByte[0] == 0) {
-                    break;
-                }
-                baos.write(oneByte);
-                address += oneByte.length;
-            }
-
-            return baos.toString("UTf-8");
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        String str = CStringReader.read(unicorn, address, StandardCharsets.UTF_8, 0x1000);
+        if (str == null) {
+            throw new IllegalStateException("read utf8 string failed");
         }
+        return str;
     }
 
     private static final Pattern LDR_PATTERN = Pattern.compile("\\w+,\\s\\[pc,\\s#(0x)?(\\w+)]");
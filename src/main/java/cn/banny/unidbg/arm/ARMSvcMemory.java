@@ -5,20 +5,26 @@ import cn.banny.unidbg.Svc;
 import cn.banny.unidbg.memory.MemRegion;
 import cn.banny.unidbg.memory.SvcMemory;
 import cn.banny.unidbg.pointer.UnicornPointer;
+import cn.banny.unidbg.spi.ImageSerializable;
 import cn.banny.unidbg.spi.SyscallHandler;
 import unicorn.Unicorn;
 import unicorn.UnicornConst;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class ARMSvcMemory implements SvcMemory {
+public class ARMSvcMemory implements SvcMemory, ImageSerializable {
 
     private UnicornPointer base;
+    private final int size;
 
     ARMSvcMemory(Unicorn unicorn, long base, int size, Emulator emulator) {
+        this.size = size;
         this.base = UnicornPointer.pointer(emulator, base);
         assert this.base != null;
         this.base.setSize(size);
@@ -28,6 +34,11 @@ public class ARMSvcMemory implements SvcMemory {
 
     private final List<MemRegion> memRegions = new ArrayList<>();
 
+    @Override
+    public long getMappedSize() {
+        return size;
+    }
+
     @Override
     public MemRegion findRegion(long addr) {
         for (MemRegion region : memRegions) {
@@ -84,4 +95,27 @@ public class ARMSvcMemory implements SvcMemory {
         return svc.onRegister(this, number);
     }
 
+    @Override
+    public void writeImage(DataOutput out) throws IOException {
+        out.writeInt(thumbSvcNumber);
+        out.writeInt(armSvcNumber);
+        out.writeLong(base.peer);
+    }
+
+    /**
+     * svc callbacks are java objects: they are registered again by the emulator, dalvik vm and hook listeners,
+     * here only check that they got the same numbers and trampolines.
+     */
+    @Override
+    public void readImage(DataInput in) throws IOException {
+        int thumbSvcNumber = in.readInt();
+        int armSvcNumber = in.readInt();
+        long base = in.readLong();
+        if (thumbSvcNumber != this.thumbSvcNumber || armSvcNumber != this.armSvcNumber || base != this.base.peer) {
+            throw new IOException("svc layout differs: thumbSvcNumber=" + this.thumbSvcNumber + "/" + thumbSvcNumber +
+                    ", armSvcNumber=" + this.armSvcNumber + "/" + armSvcNumber +
+                    ", base=0x" + Long.toHexString(this.base.peer) + "/0x" + Long.toHexString(base));
+        }
+    }
+
 }
@@ -2,6 +2,7 @@ package cn.banny.unidbg.arm;
 
 import capstone.Capstone;
 import cn.banny.unidbg.AbstractEmulator;
+import cn.banny.unidbg.EmulatorBuilder;
 import cn.banny.unidbg.arm.context.RegisterContext;
 import cn.banny.unidbg.arm.context.UnicornArm64RegisterContext;
 import cn.banny.unidbg.pointer.UnicornPointer;
@@ -28,6 +29,8 @@ import unicorn.UnicornConst;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public abstract class AbstractARM64Emulator extends AbstractEmulator implements ARMEmulator {
 
@@ -37,14 +40,19 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
     private final UnixSyscallHandler syscallHandler;
     private final SvcMemory svcMemory;
 
-    private final Capstone capstoneArm64;
+    private Capstone capstoneArm64;
     protected static final long LR = 0xffffff80001f0000L;
 
     private final Dlfcn dlfcn;
 
     public AbstractARM64Emulator(String processName) {
-        super(UnicornConst.UC_ARCH_ARM64, UnicornConst.UC_MODE_ARM, processName);
+        this(EmulatorBuilder.create().setProcessName(processName));
+    }
+
+    public AbstractARM64Emulator(EmulatorBuilder options) {
+        super(UnicornConst.UC_ARCH_ARM64, UnicornConst.UC_MODE_ARM, options);
 
+        long start = System.nanoTime();
         Cpsr.getArm64(unicorn).switchUserMode();
 
         unicorn.hook_add(new EventMemHook() {
@@ -57,15 +65,94 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
 
         this.svcMemory = new ARMSvcMemory(unicorn, 0xffffe0000L, 0x10000, this);
         this.syscallHandler = createSyscallHandler(svcMemory);
+        if (options.getClock() != null) {
+            syscallHandler.setClock(options.getClock());
+        }
 
         enableVFP();
+        start = recordStartupPhase("cpu", start);
         this.memory = createMemory(syscallHandler);
         this.dlfcn = createDyld(svcMemory);
         this.memory.addHookListener(dlfcn);
 
         unicorn.hook_add(syscallHandler, this);
+        start = recordStartupPhase("memory", start);
+
+        setupTraps();
+        recordStartupPhase("traps", start);
+    }
+
+    private static final int B_0 = 0x14000000; // b #0
+
+    private static final byte[] TRAP_PAGE = ARM.fillInstruction(0x10000, B_0);
+
+    /**
+     * unicorn 1.0.1 has no register id for fpcr and fpsr, they are moved through x0 and x1 by these stubs in the trap page
+     */
+    private static final long READ_FP_CONTROL = LR + 0x8000; // mrs x0, fpcr; mrs x1, fpsr
+    private static final long WRITE_FP_CONTROL = LR + 0x8010; // msr fpcr, x0; msr fpsr, x1
+
+    static {
+        ByteBuffer buffer = ByteBuffer.wrap(TRAP_PAGE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt((int) (READ_FP_CONTROL - LR), 0xd53b4400);
+        buffer.putInt((int) (READ_FP_CONTROL - LR + 4), 0xd53b4421);
+        buffer.putInt((int) (WRITE_FP_CONTROL - LR), 0xd51b4400);
+        buffer.putInt((int) (WRITE_FP_CONTROL - LR + 4), 0xd51b4421);
+    }
+
+    protected void setupTraps() {
+        unicorn.mem_map(LR, 0x10000, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_EXEC);
+        unicorn.mem_write(LR, TRAP_PAGE);
+    }
+
+    /**
+     * @return fpcr and fpsr
+     */
+    @Override
+    protected long[] readSystemRegisters() {
+        return runFpControl(READ_FP_CONTROL, 0, 0);
+    }
+
+    @Override
+    protected void writeSystemRegisters(long[] values) {
+        if (values.length == 2) {
+            runFpControl(WRITE_FP_CONTROL, values[0], values[1]);
+        }
+    }
 
-        this.capstoneArm64 = new Capstone(Capstone.CS_ARCH_ARM64, Capstone.CS_MODE_ARM);
+    /**
+     * x0, x1 and pc are preserved
+     */
+    private long[] runFpControl(long stub, long x0, long x1) {
+        Number pc = (Number) unicorn.reg_read(Arm64Const.UC_ARM64_REG_PC);
+        Number oldX0 = (Number) unicorn.reg_read(Arm64Const.UC_ARM64_REG_X0);
+        Number oldX1 = (Number) unicorn.reg_read(Arm64Const.UC_ARM64_REG_X1);
+        try {
+            unicorn.reg_write(Arm64Const.UC_ARM64_REG_X0, x0);
+            unicorn.reg_write(Arm64Const.UC_ARM64_REG_X1, x1);
+            unicorn.emu_start(stub, stub + 8, 0, 0);
+            return new long[] {
+                    ((Number) unicorn.reg_read(Arm64Const.UC_ARM64_REG_X0)).longValue(),
+                    ((Number) unicorn.reg_read(Arm64Const.UC_ARM64_REG_X1)).longValue()
+            };
+        } finally {
+            unicorn.reg_write(Arm64Const.UC_ARM64_REG_X0, oldX0);
+            unicorn.reg_write(Arm64Const.UC_ARM64_REG_X1, oldX1);
+            unicorn.reg_write(Arm64Const.UC_ARM64_REG_PC, pc);
+        }
+    }
+
+    /**
+     * capstone engine is created on first use
+     */
+    private synchronized Capstone getCapstone() {
+        if (!options.isCapstoneEnabled()) {
+            throw new UnsupportedOperationException("capstone disabled");
+        }
+        if (capstoneArm64 == null) {
+            capstoneArm64 = new Capstone(Capstone.CS_ARCH_ARM64, Capstone.CS_MODE_ARM);
+        }
+        return capstoneArm64;
     }
 
     @Override
@@ -103,7 +190,9 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
             io.close();
         }
 
-        capstoneArm64.close();
+        if (capstoneArm64 != null) {
+            capstoneArm64.close();
+        }
     }
 
     @Override
@@ -142,6 +231,9 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
 
     @Override
     public boolean printAssemble(PrintStream out, long address, int size) {
+        if (!options.isCapstoneEnabled()) {
+            return false;
+        }
         printAssemble(out, disassemble(address, size, 0), address);
         return true;
     }
@@ -149,7 +241,7 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
     @Override
     public Capstone.CsInsn[] disassemble(long address, int size, long count) {
         byte[] code = unicorn.mem_read(address, size);
-        return capstoneArm64.disasm(code, address, count);
+        return getCapstone().disasm(code, address, count);
     }
 
     @Override
@@ -157,7 +249,7 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
         if (thumb) {
             throw new IllegalStateException();
         }
-        return capstoneArm64.disasm(code, address);
+        return getCapstone().disasm(code, address);
     }
 
     private void printAssemble(PrintStream out, Capstone.CsInsn[] insns, long address) {
@@ -171,6 +263,11 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
         out.print(sb.toString());
     }
 
+    @Override
+    protected int countInstructions(Unicorn unicorn, long address, int size) {
+        return size / 4;
+    }
+
     @Override
     public int getPointerSize() {
         return 8;
@@ -184,27 +281,37 @@ public abstract class AbstractARM64Emulator extends AbstractEmulator implements
     @Override
     public Number[] eFunc(long begin, Number... arguments) {
         long spBackup = memory.getStackPoint();
+        long arenaMark = memory.getArgumentArena().mark();
         try {
             unicorn.reg_write(Arm64Const.UC_ARM64_REG_LR, LR);
             final Arguments args = ARM.initArgs(this, arguments);
             return eFunc(begin, args, LR, true);
         } finally {
             memory.setStackPoint(spBackup);
+            memory.getArgumentArena().release(arenaMark);
         }
     }
 
     @Override
     public void eInit(long begin, Number... arguments) {
         long spBackup = memory.getStackPoint();
+        long arenaMark = memory.getArgumentArena().mark();
         try {
             unicorn.reg_write(Arm64Const.UC_ARM64_REG_LR, LR);
             final Arguments args = ARM.initArgs(this, arguments);
             eFunc(begin, args, LR, false);
         } finally {
             memory.setStackPoint(spBackup);
+            memory.getArgumentArena().release(arenaMark);
         }
     }
 
+    @Override
+    protected Number eCall(long begin) {
+        unicorn.reg_write(Arm64Const.UC_ARM64_REG_LR, LR);
+        return emulate(begin, LR, timeout, true);
+    }
+
     @Override
     public Number eEntry(long begin, long sp) {
         long spBackup = memory.getStackPoint();
@@ -2,6 +2,7 @@ package cn.banny.unidbg.arm;
 
 import capstone.Capstone;
 import cn.banny.unidbg.AbstractEmulator;
+import cn.banny.unidbg.EmulatorBuilder;
 import cn.banny.unidbg.arm.context.RegisterContext;
 import cn.banny.unidbg.arm.context.UnicornArm32RegisterContext;
 import cn.banny.unidbg.pointer.UnicornPointer;
@@ -40,13 +41,18 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
     private final UnixSyscallHandler syscallHandler;
     private final SvcMemory svcMemory;
 
-    private final Capstone capstoneArm, capstoneThumb;
+    private Capstone capstoneArm, capstoneThumb;
 
     private final Dlfcn dlfcn;
 
     public AbstractARMEmulator(String processName) {
-        super(UnicornConst.UC_ARCH_ARM, UnicornConst.UC_MODE_ARM, processName);
+        this(EmulatorBuilder.create().setProcessName(processName));
+    }
+
+    public AbstractARMEmulator(EmulatorBuilder options) {
+        super(UnicornConst.UC_ARCH_ARM, UnicornConst.UC_MODE_ARM, options);
 
+        long start = System.nanoTime();
         Cpsr.getArm(unicorn).switchUserMode();
 
         unicorn.hook_add(new EventMemHook() {
@@ -59,20 +65,41 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
 
         this.svcMemory = new ARMSvcMemory(unicorn, 0xfffe0000L, 0x10000, this);
         this.syscallHandler = createSyscallHandler(svcMemory);
+        if (options.getClock() != null) {
+            syscallHandler.setClock(options.getClock());
+        }
 
         enableVFP();
+        start = recordStartupPhase("cpu", start);
         this.memory = createMemory(syscallHandler);
         this.dlfcn = createDyld(svcMemory);
         this.memory.addHookListener(dlfcn);
 
         unicorn.hook_add(syscallHandler, this);
-
-        this.capstoneArm = new Capstone(Capstone.CS_ARCH_ARM, Capstone.CS_MODE_ARM);
-        // this.capstoneArm.setDetail(Capstone.CS_OPT_ON);
-        this.capstoneThumb = new Capstone(Capstone.CS_ARCH_ARM, Capstone.CS_MODE_THUMB);
-        // this.capstoneThumb.setDetail(Capstone.CS_OPT_ON);
+        start = recordStartupPhase("memory", start);
 
         setupTraps();
+        recordStartupPhase("traps", start);
+    }
+
+    /**
+     * capstone engines are created on first use
+     */
+    private synchronized Capstone getCapstone(boolean thumb) {
+        if (!options.isCapstoneEnabled()) {
+            throw new UnsupportedOperationException("capstone disabled");
+        }
+        if (thumb) {
+            if (capstoneThumb == null) {
+                capstoneThumb = new Capstone(Capstone.CS_ARCH_ARM, Capstone.CS_MODE_THUMB);
+            }
+            return capstoneThumb;
+        } else {
+            if (capstoneArm == null) {
+                capstoneArm = new Capstone(Capstone.CS_ARCH_ARM, Capstone.CS_MODE_ARM);
+            }
+            return capstoneArm;
+        }
     }
 
     @Override
@@ -85,18 +112,14 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
         return dlfcn;
     }
 
+    private static final int MOV_PC_0 = 0xe3a0f000; // mov pc, #0
+
+    private static final byte[] TRAP_PAGE = ARM.fillInstruction(0x10000, MOV_PC_0);
+
     protected void setupTraps() {
-        try (Keystone keystone = new Keystone(KeystoneArchitecture.Arm, KeystoneMode.Arm)) {
-            unicorn.mem_map(LR, 0x10000, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_EXEC);
-            KeystoneEncoded encoded = keystone.assemble("mov pc, #0");
-            byte[] b0 = encoded.getMachineCode();
-            ByteBuffer buffer = ByteBuffer.allocate(0x10000);
-            // write "mov pc, #0" to all kernel trap addresses so they will throw exception
-            for (int i = 0; i < 0x10000; i += 4) {
-                buffer.put(b0);
-            }
-            unicorn.mem_write(LR, buffer.array());
-        }
+        unicorn.mem_map(LR, 0x10000, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_EXEC);
+        // write "mov pc, #0" to all kernel trap addresses so they will throw exception
+        unicorn.mem_write(LR, TRAP_PAGE);
     }
 
     @Override
@@ -125,8 +148,12 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
             io.close();
         }
 
-        capstoneThumb.close();
-        capstoneArm.close();
+        if (capstoneThumb != null) {
+            capstoneThumb.close();
+        }
+        if (capstoneArm != null) {
+            capstoneArm.close();
+        }
     }
 
     @Override
@@ -165,6 +192,9 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
 
     @Override
     public boolean printAssemble(PrintStream out, long address, int size) {
+        if (!options.isCapstoneEnabled()) {
+            return false;
+        }
         printAssemble(out, disassemble(address, size, 0), address, ARM.isThumb(unicorn));
         return true;
     }
@@ -173,12 +203,12 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
     public Capstone.CsInsn[] disassemble(long address, int size, long count) {
         boolean thumb = ARM.isThumb(unicorn);
         byte[] code = unicorn.mem_read(address, size);
-        return thumb ? capstoneThumb.disasm(code, address, count) : capstoneArm.disasm(code, address, count);
+        return getCapstone(thumb).disasm(code, address, count);
     }
 
     @Override
     public Capstone.CsInsn[] disassemble(long address, byte[] code, boolean thumb) {
-        return thumb ? capstoneThumb.disasm(code, address) : capstoneArm.disasm(code, address);
+        return getCapstone(thumb).disasm(code, address);
     }
 
     private void printAssemble(PrintStream out, Capstone.CsInsn[] insns, long address, boolean thumb) {
@@ -195,27 +225,37 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
     @Override
     public Number[] eFunc(long begin, Number... arguments) {
         long spBackup = memory.getStackPoint();
+        long arenaMark = memory.getArgumentArena().mark();
         try {
             unicorn.reg_write(ArmConst.UC_ARM_REG_LR, LR);
             final Arguments args = ARM.initArgs(this, arguments);
             return eFunc(begin, args, LR, true);
         } finally {
             memory.setStackPoint(spBackup);
+            memory.getArgumentArena().release(arenaMark);
         }
     }
 
     @Override
     public void eInit(long begin, Number... arguments) {
         long spBackup = memory.getStackPoint();
+        long arenaMark = memory.getArgumentArena().mark();
         try {
             unicorn.reg_write(ArmConst.UC_ARM_REG_LR, LR);
             final Arguments args = ARM.initArgs(this, arguments);
             eFunc(begin, args, LR, false);
         } finally {
             memory.setStackPoint(spBackup);
+            memory.getArgumentArena().release(arenaMark);
         }
     }
 
+    @Override
+    protected Number eCall(long begin) {
+        unicorn.reg_write(ArmConst.UC_ARM_REG_LR, LR);
+        return emulate(begin, LR, timeout, true);
+    }
+
     @Override
     public Number eEntry(long begin, long sp) {
         long spBackup = memory.getStackPoint();
@@ -240,6 +280,20 @@ public abstract class AbstractARMEmulator extends AbstractEmulator implements AR
         }
     }
 
+    @Override
+    protected int countInstructions(Unicorn unicorn, long address, int size) {
+        if (!ARM.isThumb(unicorn)) {
+            return size / 4;
+        }
+        byte[] code = unicorn.mem_read(address, size); // thumb-2 mixes 16 and 32-bit instructions
+        int count = 0;
+        for (int i = 0; i + 1 < code.length; count++) {
+            short ins = (short) ((code[i] & 0xff) | (code[i + 1] << 8));
+            i += ARM.isThumb32(ins) ? 4 : 2;
+        }
+        return count;
+    }
+
     @Override
     public int getPointerSize() {
         return 4;
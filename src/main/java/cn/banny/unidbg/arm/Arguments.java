@@ -1,6 +1,7 @@
 package cn.banny.unidbg.arm;
 
 import cn.banny.unidbg.ByteArrayNumber;
+import cn.banny.unidbg.memory.ArgumentArena;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.StringNumber;
 import cn.banny.unidbg.pointer.UnicornPointer;
@@ -17,12 +18,16 @@ public class Arguments {
 
     public final Number[] args;
 
+    /**
+     * strings and byte arrays are written to the {@link ArgumentArena} of the memory
+     */
     public Arguments(Memory memory, Number[] args) {
+        ArgumentArena arena = memory.getArgumentArena();
         int i = 0;
         while (args != null && i < args.length) {
             if (args[i] instanceof StringNumber) {
                 StringNumber str = (StringNumber) args[i];
-                UnicornPointer pointer = memory.writeStackString(str.value);
+                UnicornPointer pointer = arena.writeString(str.value);
                 if (log.isDebugEnabled()) {
                     log.debug("map arg" + (i+1) + ": " + pointer + " -> " + args[i]);
                 }
@@ -30,7 +35,7 @@ public class Arguments {
                 pointers.add(pointer.peer);
             } else if (args[i] instanceof ByteArrayNumber) {
                 ByteArrayNumber array = (ByteArrayNumber) args[i];
-                UnicornPointer pointer = memory.writeStackBytes(array.value);
+                UnicornPointer pointer = arena.writeBytes(array.value);
                 if (log.isDebugEnabled()) {
                     log.debug("map arg" + (i+1) + ": " + pointer + " -> " + Hex.encodeHexString(array.value));
                 }
@@ -3,12 +3,12 @@ package cn.banny.unidbg.file;
 import cn.banny.auxiliary.Inspector;
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.ios.struct.kernel.StatFS;
+import cn.banny.unidbg.memory.AddressSpace;
 import cn.banny.unidbg.memory.MemoryMap;
 import com.sun.jna.Pointer;
 import unicorn.Unicorn;
 
 import java.io.IOException;
-import java.util.Map;
 
 public abstract class AbstractFileIO implements FileIO {
 
@@ -117,11 +117,11 @@ public abstract class AbstractFileIO implements FileIO {
     }
 
     @Override
-    public final long mmap2(Unicorn unicorn, long addr, int aligned, int prot, int offset, int length, Map<Long, MemoryMap> memoryMap) throws IOException {
+    public final long mmap2(Emulator emulator, long addr, int aligned, int prot, int offset, int length, AddressSpace addressSpace) throws IOException {
         byte[] data = getMmapData(offset, length);
-        unicorn.mem_map(addr, aligned, prot);
-        memoryMap.put(addr, new MemoryMap(addr, aligned, prot));
-        unicorn.mem_write(addr, data);
+        emulator.getUnicorn().mem_map(addr, aligned, prot);
+        addressSpace.add(new MemoryMap(addr, aligned, prot));
+        emulator.getMemory().write(addr, data);
         return addr;
     }
 
@@ -2,12 +2,11 @@ package cn.banny.unidbg.file;
 
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.ios.struct.kernel.StatFS;
-import cn.banny.unidbg.memory.MemoryMap;
+import cn.banny.unidbg.memory.AddressSpace;
 import com.sun.jna.Pointer;
 import unicorn.Unicorn;
 
 import java.io.IOException;
-import java.util.Map;
 
 public interface FileIO {
 
@@ -56,7 +55,7 @@ public interface FileIO {
 
     int getsockname(Pointer addr, Pointer addrlen);
 
-    long mmap2(Unicorn unicorn, long addr, int aligned, int prot, int offset, int length, Map<Long, MemoryMap> memoryMap) throws IOException;
+    long mmap2(Emulator emulator, long addr, int aligned, int prot, int offset, int length, AddressSpace addressSpace) throws IOException;
 
     int llseek(long offset_high, long offset_low, Pointer result, int whence);
 
@@ -13,7 +13,7 @@ public abstract class StatStructure extends UnicornStructure {
     public int st_dev; /* [XSI] ID of device containing file */
     public short st_mode; /* [XSI] Mode of file (see below) */
     public short st_nlink; /* [XSI] Number of hard links */
-    public Pointer st_ino; /* [XSI] File serial number */
+    public long st_ino; /* [XSI] File serial number, ino_t */
 
     public int st_uid; /* [XSI] User ID of the file */
     public int st_gid; /* [XSI] Group ID of the file */
@@ -24,8 +24,8 @@ public abstract class StatStructure extends UnicornStructure {
     public TimeSpec st_ctimespec; /* time of last status change */
     public TimeSpec st_birthtimespec; /* time of file creation(birth) */
 
-    public Pointer st_size; /* [XSI] file size, in bytes */
-    public Pointer st_blocks; /* [XSI] blocks allocated for file */
+    public long st_size; /* [XSI] file size, in bytes, off_t */
+    public long st_blocks; /* [XSI] blocks allocated for file, blkcnt_t */
     public int st_blksize; /* [XSI] optimal blocksize for I/O */
 
     public int st_flags; /* user defined flags for file */
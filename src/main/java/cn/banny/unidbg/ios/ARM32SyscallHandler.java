@@ -80,10 +80,12 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
         int NR = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R12)).intValue();
         String syscall = null;
         Throwable exception = null;
+        emulator.getStringReader().beginCache();
         try {
             if (svcNumber != DARWIN_SWI_SYSCALL) {
                 Svc svc = svcMemory.getSvc(svcNumber);
                 if (svc != null) {
+                    countSvc(emulator, svc);
                     u.reg_write(ArmConst.UC_ARM_REG_R0, (int) svc.handle(emulator));
                     return;
                 }
@@ -96,6 +98,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
             }
 
             Cpsr.getArm(u).setCarry(false);
+            countSyscall(emulator, NR);
             switch (NR) {
                 case -3:
                     u.reg_write(ArmConst.UC_ARM_REG_R0, mach_absolute_time(emulator));
@@ -290,7 +293,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
                     u.reg_write(ArmConst.UC_ARM_REG_R0, close_NOCANCEL(emulator));
                     return;
                 case 423:
-                    u.reg_write(ArmConst.UC_ARM_REG_R0, semwait_signal_nocancel());
+                    u.reg_write(ArmConst.UC_ARM_REG_R0, semwait_signal_nocancel(emulator));
                     return;
                 case 428:
                     u.reg_write(ArmConst.UC_ARM_REG_R0, audit_session_self());
@@ -312,6 +315,8 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
         } catch (Throwable e) {
             u.emu_stop();
             exception = e;
+        } finally {
+            emulator.getStringReader().endCache();
         }
 
         Module module = emulator.getMemory().findModuleByAddress(pc.peer);
@@ -702,9 +707,18 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
         }
     }
 
-    private int semwait_signal_nocancel() {
-        // TODO: implement
-        log.info("semwait_signal_nocancel");
+    private int semwait_signal_nocancel(Emulator emulator) {
+        Arm32RegisterContext context = emulator.getContext();
+        int timeout = context.getR2Int();
+        int relative = context.getR3Int();
+        long tv_sec = (context.getR5Long() << 32) | context.getR4Long(); // int64_t in r4:r5
+        int tv_nsec = context.getR6Int();
+        if (log.isDebugEnabled()) {
+            log.debug("semwait_signal_nocancel timeout=" + timeout + ", relative=" + relative + ", tv_sec=" + tv_sec + ", tv_nsec=" + tv_nsec);
+        }
+        if (timeout != 0 && relative != 0) { // nanosleep
+            clock.sleep(tv_sec * 1000000000L + tv_nsec);
+        }
         return 0;
     }
 
@@ -1172,13 +1186,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 header.msgh_id += 100; // reply Id always equals reqId+100
                 header.pack();
 
-                MemoryMap memoryMap = null;
-                for (MemoryMap mm : emulator.getMemory().getMemoryMap()) {
-                    if (args.address >= mm.base && args.address < mm.base + mm.size) {
-                        memoryMap = mm;
-                        break;
-                    }
-                }
+                MemoryMap memoryMap = emulator.getMemory().findMemoryMap(args.address);
 
                 if (log.isDebugEnabled()) {
                     log.debug("vm_region_recurse_64 header=" + header + ", memoryMap=" + memoryMap);
@@ -1268,7 +1276,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 }
 
                 byte[] data = unicorn.mem_read(args.source_address, args.size);
-                unicorn.mem_write(args.dest_address, data);
+                emulator.getMemory().write(args.dest_address, data);
 
                 VmCopyReply reply = new VmCopyReply(request);
                 reply.unpack();
@@ -1301,11 +1309,12 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
                     throw new UnsupportedOperationException();
                 }
 
+                emulator.getMemory().markDirty(args.target_address, args.size);
                 unicorn.mem_unmap(args.target_address, args.size);
                 unicorn.mem_map(args.target_address, args.size, args.inheritance);
                 if (args.copy != 0) {
                     byte[] data = unicorn.mem_read(args.getSourceAddress(), args.size);
-                    unicorn.mem_write(args.target_address, data);
+                    emulator.getMemory().write(args.target_address, data);
                 }
 
                 VmRemapReply reply = new VmRemapReply(request);
@@ -1382,7 +1391,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
 
     private int gettimeofday(Emulator emulator) {
         EditableArm32RegisterContext context = emulator.getContext();
-        long currentTimeMillis = System.currentTimeMillis();
+        long currentTimeMillis = clock.currentTimeMillis();
         long tv_sec = currentTimeMillis / 1000;
         long tv_usec = (currentTimeMillis % 1000) * 1000;
         context.setR1((int) tv_usec);
@@ -1393,7 +1402,7 @@ public class ARM32SyscallHandler extends UnixSyscallHandler implements SyscallHa
     }
 
     private int mach_absolute_time(Emulator emulator) {
-        long nanoTime = System.nanoTime();
+        long nanoTime = clock.nanoTime();
         log.debug("mach_absolute_time nanoTime=" + nanoTime);
         emulator.getUnicorn().reg_write(ArmConst.UC_ARM_REG_R1, (int) (nanoTime >> 32));
         return (int) (nanoTime);
@@ -63,10 +63,12 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
         int NR = ((Number) u.reg_read(Arm64Const.UC_ARM64_REG_X16)).intValue();
         String syscall = null;
         Throwable exception = null;
+        emulator.getStringReader().beginCache();
         try {
             if (svcNumber != DARWIN_SWI_SYSCALL) {
                 Svc svc = svcMemory.getSvc(svcNumber);
                 if (svc != null) {
+                    countSvc(emulator, svc);
                     u.reg_write(Arm64Const.UC_ARM64_REG_X0, svc.handle(emulator));
                     return;
                 }
@@ -79,6 +81,7 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
             }
 
             Cpsr.getArm64(u).setCarry(false);
+            countSyscall(emulator, NR);
             switch (NR) {
                 case -3888:
                     u.reg_write(ArmConst.UC_ARM_REG_R0, mach_absolute_time(emulator));
@@ -233,8 +236,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 case 399:
                     u.reg_write(Arm64Const.UC_ARM64_REG_X0, close_NOCANCEL(emulator));
                     return;
-                case 42388:
-                    u.reg_write(ArmConst.UC_ARM_REG_R0, semwait_signal_nocancel());
+                case 423:
+                    u.reg_write(Arm64Const.UC_ARM64_REG_X0, semwait_signal_nocancel(emulator));
                     return;
                 case 428:
                     u.reg_write(Arm64Const.UC_ARM64_REG_X0, audit_session_self());
@@ -256,6 +259,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
         } catch (Throwable e) {
             u.emu_stop();
             exception = e;
+        } finally {
+            emulator.getStringReader().endCache();
         }
 
         Module module = emulator.getMemory().findModuleByAddress(pc.peer);
@@ -517,9 +522,18 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
         }
     }
 
-    private int semwait_signal_nocancel() {
-        // TODO: implement
-        log.info("semwait_signal_nocancel");
+    private int semwait_signal_nocancel(Emulator emulator) {
+        Arm64RegisterContext context = emulator.getContext();
+        int timeout = context.getXInt(2);
+        int relative = context.getXInt(3);
+        long tv_sec = context.getXLong(4);
+        int tv_nsec = context.getXInt(5);
+        if (log.isDebugEnabled()) {
+            log.debug("semwait_signal_nocancel timeout=" + timeout + ", relative=" + relative + ", tv_sec=" + tv_sec + ", tv_nsec=" + tv_nsec);
+        }
+        if (timeout != 0 && relative != 0) { // nanosleep
+            clock.sleep(tv_sec * 1000000000L + tv_nsec);
+        }
         return 0;
     }
 
@@ -965,13 +979,7 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 header.msgh_id += 100; // reply Id always equals reqId+100
                 header.pack();
 
-                MemoryMap memoryMap = null;
-                for (MemoryMap mm : emulator.getMemory().getMemoryMap()) {
-                    if (args.address >= mm.base && args.address < mm.base + mm.size) {
-                        memoryMap = mm;
-                        break;
-                    }
-                }
+                MemoryMap memoryMap = emulator.getMemory().findMemoryMap(args.address);
 
                 if (memoryMap == null) {
                     break;
@@ -1094,7 +1102,7 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
 
     private long gettimeofday(Emulator emulator) {
         EditableArm64RegisterContext context = emulator.getContext();
-        long currentTimeMillis = System.currentTimeMillis();
+        long currentTimeMillis = clock.currentTimeMillis();
         long tv_sec = currentTimeMillis / 1000;
         long tv_usec = (currentTimeMillis % 1000) * 1000;
         context.setXLong(1, tv_usec);
@@ -1105,7 +1113,7 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
     }
 
     private int mach_absolute_time(Emulator emulator) {
-        long nanoTime = System.nanoTime();
+        long nanoTime = clock.nanoTime();
         log.debug("mach_absolute_time nanoTime=" + nanoTime);
         emulator.getUnicorn().reg_write(ArmConst.UC_ARM_REG_R1, (int) (nanoTime >> 32));
         return (int) (nanoTime);
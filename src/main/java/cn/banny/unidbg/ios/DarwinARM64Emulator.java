@@ -1,5 +1,6 @@
 package cn.banny.unidbg.ios;
 
+import cn.banny.unidbg.EmulatorBuilder;
 import cn.banny.unidbg.arm.AbstractARM64Emulator;
 import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.memory.Memory;
@@ -9,39 +10,27 @@ import cn.banny.unidbg.spi.Dlfcn;
 import cn.banny.unidbg.spi.LibraryFile;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
 import com.sun.jna.Pointer;
-import keystone.Keystone;
-import keystone.KeystoneArchitecture;
-import keystone.KeystoneEncoded;
-import keystone.KeystoneMode;
-import unicorn.UnicornConst;
 
 import java.io.File;
 import java.net.URL;
-import java.nio.ByteBuffer;
 
 public class DarwinARM64Emulator extends AbstractARM64Emulator {
 
     public DarwinARM64Emulator() {
-        this(null);
+        this((String) null);
     }
 
     public DarwinARM64Emulator(String processName) {
         super(processName);
+    }
 
-        setupTraps();
+    public DarwinARM64Emulator(EmulatorBuilder options) {
+        super(options);
     }
 
-    private void setupTraps() {
-        try (Keystone keystone = new Keystone(KeystoneArchitecture.Arm64, KeystoneMode.LittleEndian)) {
-            unicorn.mem_map(LR, 0x10000, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_EXEC);
-            KeystoneEncoded encoded = keystone.assemble("b #0");
-            byte[] b0 = encoded.getMachineCode();
-            ByteBuffer buffer = ByteBuffer.allocate(0x10000);
-            for (int i = 0; i < 0x10000; i += b0.length) {
-                buffer.put(b0);
-            }
-            unicorn.mem_write(LR, buffer.array());
-        }
+    @Override
+    protected void setupTraps() {
+        super.setupTraps();
 
         long _COMM_PAGE_MEMORY_SIZE = (MachO._COMM_PAGE64_BASE_ADDRESS+0x038);	// uint64_t max memory size */
         Pointer commPageMemorySize = UnicornPointer.pointer(this, _COMM_PAGE_MEMORY_SIZE);
@@ -90,7 +79,7 @@ public class DarwinARM64Emulator extends AbstractARM64Emulator {
     }
 
     @Override
-    public VM createDalvikVM(File apkFile) {
+    protected VM createDalvikVMInternal(File apkFile) {
         throw new UnsupportedOperationException();
     }
 
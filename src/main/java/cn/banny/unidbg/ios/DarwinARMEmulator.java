@@ -1,5 +1,6 @@
 package cn.banny.unidbg.ios;
 
+import cn.banny.unidbg.EmulatorBuilder;
 import cn.banny.unidbg.arm.AbstractARMEmulator;
 import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.memory.Memory;
@@ -16,13 +17,17 @@ import java.net.URL;
 public class DarwinARMEmulator extends AbstractARMEmulator {
 
     public DarwinARMEmulator() {
-        this(null);
+        this((String) null);
     }
 
     public DarwinARMEmulator(String processName) {
         super(processName);
     }
 
+    public DarwinARMEmulator(EmulatorBuilder options) {
+        super(options);
+    }
+
     @Override
     protected void setupTraps() {
         super.setupTraps();
@@ -74,7 +79,7 @@ public class DarwinARMEmulator extends AbstractARMEmulator {
     }
 
     @Override
-    public VM createDalvikVM(File apkFile) {
+    protected VM createDalvikVMInternal(File apkFile) {
         throw new UnsupportedOperationException();
     }
 
@@ -571,7 +571,7 @@ public class Dyld32 extends Dyld {
 
     private DyldImageInfo[] generateDyldImageInfo(Emulator emulator, int state, UnicornPointer handler) {
         List<DyldImageInfo> list = new ArrayList<>(loader.getLoadedModules().size());
-        int elementSize = UnicornStructure.calculateSize(DyldImageInfo.class);
+        int elementSize = UnicornStructure.calculateSize(emulator, DyldImageInfo.class);
         Pointer pointer = emulator.getSvcMemory().allocate(elementSize * loader.getLoadedModules().size(), "DyldImageInfo");
         for (Module module : loader.getLoadedModules()) {
             MachOModule mm = (MachOModule) module;
@@ -593,7 +593,7 @@ public class Dyld64 extends Dyld {
 
     private DyldImageInfo[] generateDyldImageInfo(Emulator emulator) {
         List<DyldImageInfo> list = new ArrayList<>(loader.getLoadedModules().size());
-        int elementSize = UnicornStructure.calculateSize(DyldImageInfo.class);
+        int elementSize = UnicornStructure.calculateSize(emulator, DyldImageInfo.class);
         Pointer pointer = emulator.getSvcMemory().allocate(elementSize * loader.getLoadedModules().size(), "DyldImageInfo");
         for (Module module : loader.getLoadedModules()) {
             MachOModule mm = (MachOModule) module;
@@ -49,6 +49,7 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
 
         final long stackSize = STACK_SIZE_OF_PAGE * emulator.getPageAlign();
         unicorn.mem_map(stackBase - stackSize, stackSize, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE);
+        memoryStats.onMap(MemoryStats.Category.STACK, stackSize);
 
         setStackPoint(stackBase);
         initializeTSD();
@@ -525,6 +526,7 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
         MachOModule module = new MachOModule(machO, dyId, loadBase, loadSize, new HashMap<String, Module>(neededLibraries), regions,
                 symtabCommand, dysymtabCommand, buffer, lazyLoadNeededList, upwardLibraries, exportModules, dylibPath, emulator, dyldInfoCommand, null, null, vars, machHeader, isExecutable);
         modules.put(dyId, module);
+        indexModule(module);
 
         if (isExecutable) {
             setExecuteModule(module);
@@ -1217,7 +1219,7 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
             buffer.position(offset);
             byte[] data = new byte[size];
             buffer.get(data);
-            unicorn.mem_write(begin, data);
+            write(begin, data);
         }
     }
 
@@ -1241,7 +1243,7 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
     @Override
     public MemoryBlock malloc(int length, boolean runtime) {
         if (runtime) {
-            return MemoryBlockImpl.alloc(this, length);
+            return mallocRuntime(length);
         } else {
             return MemoryAllocBlock.malloc(emulator, malloc, free, length);
         }
@@ -1275,13 +1277,10 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
             return loaded;
         }
 
-        for (Module module : getLoadedModules()) {
-            for (cn.banny.unidbg.memory.MemRegion memRegion : module.getRegions()) {
-                if (path.equals(memRegion.getName())) {
-                    module.addReferenceCount();
-                    return module;
-                }
-            }
+        Module mapped = findModuleByPath(path);
+        if (mapped != null) {
+            mapped.addReferenceCount();
+            return mapped;
         }
 
         LibraryFile libraryFile = libraryResolver == null ? null : libraryResolver.resolveLibrary(emulator, path);
@@ -1329,11 +1328,9 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
 
     @Override
     public Symbol dlsym(long handle, String symbolName) throws IOException {
-        for (Module module : modules.values()) {
-            MachOModule mm = (MachOModule) module;
-            if (mm.machHeader == handle) {
-                return module.findSymbolByName(symbolName, false);
-            }
+        Module loaded = findModuleByBase(handle);
+        if (loaded != null) {
+            return loaded.findSymbolByName(symbolName, false);
         }
         if (handle == RTLD_DEFAULT) {
             for (Module module : modules.values()) {
@@ -1382,7 +1379,7 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
     final List<UnicornPointer> initializedHandlers = new ArrayList<>();
 
     private void notifySingle(int state, MachOModule module) {
-        int elementSize = UnicornStructure.calculateSize(DyldImageInfo.class);
+        int elementSize = UnicornStructure.calculateSize(emulator, DyldImageInfo.class);
         Pointer pointer = emulator.getSvcMemory().allocate(elementSize, "notifySingle");
         DyldImageInfo info = new DyldImageInfo(pointer);
         info.imageFilePath = module.createPathMemory(emulator.getSvcMemory());
@@ -1444,7 +1441,8 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
         long address = allocateMapAddress(mask, size);
         int prot = UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE;
         unicorn.mem_map(address, size,prot );
-        memoryMap.put(address, new MemoryMap(address, size, prot));
+        addressSpace.add(new MemoryMap(address, size, prot));
+        memoryStats.onMap(MemoryStats.Category.ANONYMOUS, size);
         return address;
     }
 
@@ -1455,12 +1453,21 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
     @Override
     public long mmap2(long start, int length, int prot, int flags, int fd, int offset) {
         int aligned = (int) ARM.alignSize(length, emulator.getPageAlign());
+        EmulationStats stats = emulator.getRunningStats();
+        if (stats != null) {
+            stats.onMap(aligned);
+        }
 
+        boolean fixed = (flags & cn.banny.unidbg.ios.MachO.MAP_FIXED) != 0 && start != 0;
         if (((flags & cn.banny.unidbg.ios.MachO.MAP_ANONYMOUS) != 0) || (start == 0 && fd <= 0 && offset == 0)) {
-            long addr = allocateMapAddress(0, aligned);
+            if (fixed) {
+                unmapFixed(start, aligned);
+            }
+            long addr = fixed ? start : allocateMapAddress(0, aligned);
             log.debug("mmap2 addr=0x" + Long.toHexString(addr) + ", mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress) + ", start=" + start + ", fd=" + fd + ", offset=" + offset + ", aligned=" + aligned);
             unicorn.mem_map(addr, aligned, prot);
-            memoryMap.put(addr, new MemoryMap(addr, aligned, prot));
+            addressSpace.add(new MemoryMap(addr, aligned, prot));
+            memoryStats.onMap(MemoryStats.Category.ANONYMOUS, aligned);
             return addr;
         }
         try {
@@ -1468,27 +1475,18 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
             if (start == 0 && fd > 0 && (file = syscallHandler.fdMap.get(fd)) != null) {
                 long addr = allocateMapAddress(0, aligned);
                 log.debug("mmap2 addr=0x" + Long.toHexString(addr) + ", mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress));
-                return file.mmap2(unicorn, addr, aligned, prot, offset, length, memoryMap);
+                return mmapFile(file, addr, aligned, prot, offset, length);
             }
 
-            if ((flags & MAP_FIXED) != 0) {
+            if ((flags & cn.banny.unidbg.ios.MachO.MAP_FIXED) != 0) {
                 if (log.isDebugEnabled()) {
                     log.debug("mmap2 MAP_FIXED start=0x" + Long.toHexString(start) + ", length=" + length + ", prot=" + prot + ", fd=" + fd + ", offset=0x" + Long.toHexString(offset));
                 }
 
-                MemoryMap mapped = null;
-                for (MemoryMap map : memoryMap.values()) {
-                    if (start >= map.base && start + aligned < map.base + map.size) {
-                        mapped = map;
-                    }
-                }
-
-                if (mapped != null) {
-                    unicorn.mem_unmap(start, aligned);
-                }
                 FileIO io = syscallHandler.fdMap.get(fd);
                 if (io != null) {
-                    return io.mmap2(unicorn, start, aligned, prot, offset, length, memoryMap);
+                    unmapFixed(start, aligned);
+                    return mmapFile(io, start, aligned, prot, offset, length);
                 }
             }
         } catch (IOException e) {
@@ -1498,6 +1496,35 @@ public class MachOLoader extends AbstractLoader implements Memory, Loader, cn.ba
         throw new AbstractMethodError("mmap2 start=0x" + Long.toHexString(start) + ", length=" + length + ", prot=0x" + Integer.toHexString(prot) + ", flags=0x" + Integer.toHexString(flags) + ", fd=" + fd + ", offset=" + offset);
     }
 
+    private static class MachOLoaderState {
+        final Object loaderState;
+        final Map<String, MachOModule> modules;
+        final String maxDylibName;
+        final long maxSizeOfDylib;
+        MachOLoaderState(Object loaderState, Map<String, MachOModule> modules, String maxDylibName, long maxSizeOfDylib) {
+            this.loaderState = loaderState;
+            this.modules = modules;
+            this.maxDylibName = maxDylibName;
+            this.maxSizeOfDylib = maxSizeOfDylib;
+        }
+    }
+
+    @Override
+    public Object saveState() {
+        return new MachOLoaderState(super.saveState(), new LinkedHashMap<>(modules), maxDylibName, maxSizeOfDylib);
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        MachOLoaderState machOLoaderState = (MachOLoaderState) state;
+        super.restoreState(machOLoaderState.loaderState);
+        this.modules.clear();
+        this.modules.putAll(machOLoaderState.modules);
+        reindexModules(modules.values());
+        this.maxDylibName = machOLoaderState.maxDylibName;
+        this.maxSizeOfDylib = machOLoaderState.maxSizeOfDylib;
+    }
+
     @Override
     protected long getModuleBase(Module module) {
         return ((MachOModule) module).machHeader;
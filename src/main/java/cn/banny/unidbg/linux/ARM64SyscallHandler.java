@@ -67,10 +67,12 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
         int NR = ((Number) u.reg_read(Arm64Const.UC_ARM64_REG_X8)).intValue();
         String syscall = null;
         Throwable exception = null;
+        emulator.getStringReader().beginCache();
         try {
             if (svcNumber != 0) {
                 Svc svc = svcMemory.getSvc(svcNumber);
                 if (svc != null) {
+                    countSvc(emulator, svc);
                     u.reg_write(Arm64Const.UC_ARM64_REG_X0, svc.handle(emulator));
                     return;
                 }
@@ -82,6 +84,7 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 ARM.showRegs64(u, null);
             }
 
+            countSyscall(emulator, NR);
             switch (NR) {
                 case 1888:
                     int status = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R0)).intValue();
@@ -206,8 +209,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 case 146888:
                     u.reg_write(ArmConst.UC_ARM_REG_R0, writev(u, emulator));
                     return;
-                case 162888:
-                    u.reg_write(ArmConst.UC_ARM_REG_R0, nanosleep(emulator));
+                case 101:
+                    u.reg_write(Arm64Const.UC_ARM64_REG_X0, nanosleep(emulator));
                     return;
                 case 167:
                     u.reg_write(Arm64Const.UC_ARM64_REG_X0, prctl(u, emulator));
@@ -273,8 +276,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
                 case 248888:
                     exit_group(u);
                     return;
-                case 263888:
-                    u.reg_write(ArmConst.UC_ARM_REG_R0, clock_gettime(u, emulator));
+                case 113:
+                    u.reg_write(Arm64Const.UC_ARM64_REG_X0, clock_gettime(u, emulator));
                     return;
                 case 266888:
                     u.reg_write(ArmConst.UC_ARM_REG_R0, statfs(emulator));
@@ -333,6 +336,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
         } catch (Throwable e) {
             u.emu_stop();
             exception = e;
+        } finally {
+            emulator.getStringReader().endCache();
         }
 
         log.warn("handleInterrupt intno=" + intno + ", NR=" + NR + ", svcNumber=0x" + Integer.toHexString(svcNumber) + ", PC=" + pc + ", LR=" + UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_LR) + ", syscall=" + syscall, exception);
@@ -898,17 +903,14 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
     }
 
     private int nanosleep(Emulator emulator) {
-        Pointer req = UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_R0);
-        Pointer rem = UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_R1);
-        int tv_sec = req.getInt(0);
-        int tv_nsec = req.getInt(4);
+        Pointer req = UnicornPointer.register(emulator, Arm64Const.UC_ARM64_REG_X0);
+        Pointer rem = UnicornPointer.register(emulator, Arm64Const.UC_ARM64_REG_X1);
+        long tv_sec = req.getLong(0);
+        long tv_nsec = req.getLong(8);
         if (log.isDebugEnabled()) {
             log.debug("nanosleep req=" + req + ", rem=" + rem + ", tv_sec=" + tv_sec + ", tv_nsec=" + tv_nsec);
         }
-        try {
-            Thread.sleep(tv_sec * 1000L + tv_nsec / 1000000L);
-        } catch (InterruptedException ignored) {
-        }
+        clock.sleep(tv_sec * 1000000000L + tv_nsec);
         return 0;
     }
 
@@ -1192,12 +1194,10 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
     private static final int CLOCK_MONOTONIC_COARSE = 6;
     private static final int CLOCK_BOOTTIME = 7;
 
-    private long nanoTime = System.nanoTime();
-
     private int clock_gettime(Unicorn u, Emulator emulator) {
-        int clk_id = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R0)).intValue();
-        Pointer tp = UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_R1);
-        long offset = System.nanoTime() - nanoTime;
+        int clk_id = ((Number) u.reg_read(Arm64Const.UC_ARM64_REG_X0)).intValue();
+        Pointer tp = UnicornPointer.register(emulator, Arm64Const.UC_ARM64_REG_X1);
+        long offset = clk_id == CLOCK_REALTIME ? clock.currentTimeNanos() : clock.nanoTime(); // monotonic clocks start at 0
         long tv_sec = offset / 1000000000L;
         long tv_nsec = offset % 1000000000L;
         if (log.isDebugEnabled()) {
@@ -1209,8 +1209,8 @@ public class ARM64SyscallHandler extends UnixSyscallHandler implements SyscallHa
             case CLOCK_MONOTONIC_RAW:
             case CLOCK_MONOTONIC_COARSE:
             case CLOCK_BOOTTIME:
-                tp.setInt(0, (int) tv_sec);
-                tp.setInt(4, (int) tv_nsec);
+                tp.setLong(0, tv_sec);
+                tp.setLong(8, tv_nsec);
                 return 0;
         }
         throw new UnsupportedOperationException("clk_id=" + clk_id);
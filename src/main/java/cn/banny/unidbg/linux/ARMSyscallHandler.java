@@ -83,10 +83,12 @@ public class ARMSyscallHandler extends UnixSyscallHandler implements SyscallHand
         int NR = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R7)).intValue();
         String syscall = null;
         Throwable exception = null;
+        emulator.getStringReader().beginCache();
         try {
             if (svcNumber != 0) {
                 Svc svc = svcMemory.getSvc(svcNumber);
                 if (svc != null) {
+                    countSvc(emulator, svc);
                     u.reg_write(ArmConst.UC_ARM_REG_R0, (int) svc.handle(emulator));
                     return;
                 }
@@ -98,6 +100,7 @@ public class ARMSyscallHandler extends UnixSyscallHandler implements SyscallHand
                 ARM.showThumbRegs(u);
             }
 
+            countSyscall(emulator, NR);
             switch (NR) {
                 case 1:
                     int status = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R0)).intValue();
@@ -372,6 +375,8 @@ public class ARMSyscallHandler extends UnixSyscallHandler implements SyscallHand
         } catch (Throwable e) {
             u.emu_stop();
             exception = e;
+        } finally {
+            emulator.getStringReader().endCache();
         }
 
         log.warn("handleInterrupt intno=" + intno + ", NR=" + NR + ", svcNumber=0x" + Integer.toHexString(svcNumber) + ", PC=" + pc + ", syscall=" + syscall, exception);
@@ -1038,10 +1043,7 @@ public class ARMSyscallHandler extends UnixSyscallHandler implements SyscallHand
         if (log.isDebugEnabled()) {
             log.debug("nanosleep req=" + req + ", rem=" + rem + ", tv_sec=" + tv_sec + ", tv_nsec=" + tv_nsec);
         }
-        try {
-            java.lang.Thread.sleep(tv_sec * 1000L + tv_nsec / 1000000L);
-        } catch (InterruptedException ignored) {
-        }
+        clock.sleep(tv_sec * 1000000000L + tv_nsec);
         return 0;
     }
 
@@ -1327,12 +1329,10 @@ public class ARMSyscallHandler extends UnixSyscallHandler implements SyscallHand
     private static final int CLOCK_MONOTONIC_COARSE = 6;
     private static final int CLOCK_BOOTTIME = 7;
 
-    private long nanoTime = System.nanoTime();
-
     private int clock_gettime(Unicorn u, Emulator emulator) {
         int clk_id = ((Number) u.reg_read(ArmConst.UC_ARM_REG_R0)).intValue();
         Pointer tp = UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_R1);
-        long offset = System.nanoTime() - nanoTime;
+        long offset = clk_id == CLOCK_REALTIME ? clock.currentTimeNanos() : clock.nanoTime(); // monotonic clocks start at 0
         long tv_sec = offset / 1000000000L;
         long tv_nsec = offset % 1000000000L;
         if (log.isDebugEnabled()) {
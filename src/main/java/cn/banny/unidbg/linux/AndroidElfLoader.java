@@ -3,16 +3,21 @@ package cn.banny.unidbg.linux;
 import cn.banny.auxiliary.Inspector;
 import cn.banny.unidbg.*;
 import cn.banny.unidbg.arm.ARMEmulator;
+import cn.banny.unidbg.arm.ArmHook;
+import cn.banny.unidbg.arm.HookStatus;
 import cn.banny.unidbg.hook.HookListener;
 import cn.banny.unidbg.linux.android.ElfLibraryFile;
 import cn.banny.unidbg.memory.MemRegion;
 import cn.banny.unidbg.memory.*;
 import cn.banny.unidbg.pointer.UnicornPointer;
+import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.spi.AbstractLoader;
+import cn.banny.unidbg.spi.ImageSerializable;
 import cn.banny.unidbg.spi.InitFunction;
 import cn.banny.unidbg.spi.LibraryFile;
 import cn.banny.unidbg.spi.Loader;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
+import cn.banny.utils.Hex;
 import com.sun.jna.Pointer;
 import net.fornwall.jelf.*;
 import org.apache.commons.io.FileUtils;
@@ -21,13 +26,17 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import unicorn.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
-public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
+public class AndroidElfLoader extends AbstractLoader implements Memory, Loader, ImageSerializable {
 
     private static final Log log = LogFactory.getLog(AndroidElfLoader.class);
 
@@ -39,6 +48,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         // init stack
         final long stackSize = STACK_SIZE_OF_PAGE * emulator.getPageAlign();
         unicorn.mem_map(STACK_BASE - stackSize, stackSize, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE);
+        memoryStats.onMap(MemoryStats.Category.STACK, stackSize);
 
         setStackPoint(STACK_BASE);
         initializeTLS();
@@ -144,6 +154,51 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
 
     private final Map<String, LinuxModule> modules = new LinkedHashMap<>();
 
+    private static class SymbolHook {
+        final String libraryName;
+        final String symbolName;
+        final long old;
+        final long hook;
+        SymbolHook(String libraryName, String symbolName, long old, long hook) {
+            this.libraryName = libraryName;
+            this.symbolName = symbolName;
+            this.old = old;
+            this.hook = hook;
+        }
+    }
+
+    /**
+     * symbols hooked while resolving, replayed when loading an image
+     */
+    private final List<SymbolHook> symbolHooks = new ArrayList<>();
+
+    private final HookListener symbolHookListener = new HookListener() {
+        @Override
+        public long hook(SvcMemory svcMemory, String libraryName, String symbolName, long old) {
+            long hook = 0;
+            for (HookListener listener : hookListeners) {
+                hook = listener.hook(svcMemory, libraryName, symbolName, old);
+                if (hook > 0) {
+                    break;
+                }
+            }
+            if (hook <= 0 && "libdl.so".equals(libraryName) && "android_get_application_target_sdk_version".equals(symbolName)) {
+                hook = svcMemory.registerSvc(new ArmHook() {
+                    @Override
+                    protected HookStatus hook(Emulator emulator) {
+                        return HookStatus.LR(emulator, 0);
+                    }
+                }).peer;
+            }
+            if (hook > 0) {
+                symbolHooks.add(new SymbolHook(libraryName, symbolName, old, hook));
+            }
+            return hook;
+        }
+    };
+
+    private final List<HookListener> resolveListeners = Collections.singletonList(symbolHookListener);
+
     @Override
     public byte[] unpack(File elfFile) throws IOException {
         final byte[] fileData = FileUtils.readFileToByteArray(elfFile);
@@ -183,7 +238,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         for (LinuxModule m : modules.values()) {
             for (Iterator<ModuleSymbol> iterator = m.getUnresolvedSymbol().iterator(); iterator.hasNext(); ) {
                 ModuleSymbol moduleSymbol = iterator.next();
-                ModuleSymbol resolved = moduleSymbol.resolve(new HashSet<Module>(modules.values()), true, hookListeners, emulator.getSvcMemory());
+                ModuleSymbol resolved = moduleSymbol.resolve(new HashSet<Module>(modules.values()), true, resolveListeners, emulator.getSvcMemory());
                 if (resolved != null) {
                     log.debug("[" + moduleSymbol.soName + "]" + moduleSymbol.symbol.getName() + " symbol resolved to " + resolved.toSoName);
                     resolved.relocation(emulator);
@@ -203,13 +258,10 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
             return loaded;
         }
 
-        for (Module module : getLoadedModules()) {
-            for (cn.banny.unidbg.memory.MemRegion memRegion : module.getRegions()) {
-                if (filename.equals(memRegion.getName())) {
-                    module.addReferenceCount();
-                    return module;
-                }
-            }
+        Module mapped = findModuleByPath(filename);
+        if (mapped != null) {
+            mapped.addReferenceCount();
+            return mapped;
         }
 
         LibraryFile file = libraryResolver == null ? null : libraryResolver.resolveLibrary(emulator, filename);
@@ -242,32 +294,30 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
 
     @Override
     public LinuxSymbol dlsym(long handle, String symbol) throws IOException {
-        for (LinuxModule module : modules.values()) {
-            if (module.base == handle) {
-                ElfSymbol elfSymbol = module.getELFSymbolByName(symbol);
-                if (elfSymbol == null) {
-                    return null;
-                } else {
-                    return new LinuxSymbol(module, elfSymbol);
-                }
-            }
+        LinuxModule module = (LinuxModule) findModuleByBase(handle);
+        if (module == null) {
+            return null;
+        }
+        ElfSymbol elfSymbol = module.getELFSymbolByName(symbol);
+        if (elfSymbol == null) {
+            return null;
+        } else {
+            return new LinuxSymbol(module, elfSymbol);
         }
-        return null;
     }
 
     @Override
     public boolean dlclose(long handle) {
-        for (Iterator<Map.Entry<String, LinuxModule>> iterator = modules.entrySet().iterator(); iterator.hasNext(); ) {
-            LinuxModule module = iterator.next().getValue();
-            if (module.base == handle) {
-                if (module.decrementReferenceCount() <= 0) {
-                    module.unload(unicorn);
-                    iterator.remove();
-                }
-                return true;
-            }
+        LinuxModule module = (LinuxModule) findModuleByBase(handle);
+        if (module == null) {
+            return false;
         }
-        return false;
+        if (module.decrementReferenceCount() <= 0) {
+            unloadModule(module);
+            modules.values().remove(module);
+            unindexModule(module);
+        }
+        return true;
     }
 
     private LinuxModule loadInternal(LibraryFile libraryFile, final WriteHook unpackHook) throws IOException {
@@ -325,7 +375,9 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
                     final long begin = load_base + ph.virtual_address;
                     final long end = begin + ph.mem_size;
                     Alignment alignment = this.mem_map(begin, ph.mem_size, prot, libraryFile.getName());
-                    unicorn.mem_write(begin, ph.getPtLoadData());
+                    // every emulator keeps its own copy: uc_mem_map_ptr would share read only segments, but the unicorn 1.0.1 binding
+                    // takes a byte[] there and copies it, so nothing can be shared without a native binding accepting a direct buffer
+                    write(begin, ph.getPtLoadData());
 
                     regions.add(new MemRegion(alignment.address, alignment.address + alignment.size, prot, libraryFile, ph.virtual_address));
 
@@ -384,7 +436,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         for (LinuxModule module : modules.values()) {
             for (Iterator<ModuleSymbol> iterator = module.getUnresolvedSymbol().iterator(); iterator.hasNext(); ) {
                 ModuleSymbol moduleSymbol = iterator.next();
-                ModuleSymbol resolved = moduleSymbol.resolve(module.getNeededLibraries(), false, hookListeners, emulator.getSvcMemory());
+                ModuleSymbol resolved = moduleSymbol.resolve(module.getNeededLibraries(), false, resolveListeners, emulator.getSvcMemory());
                 if (resolved != null) {
                     log.debug("[" + moduleSymbol.soName + "]" + moduleSymbol.symbol.getName() + " symbol resolved to " + resolved.toSoName);
                     resolved.relocation(emulator);
@@ -538,6 +590,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         }
 
         modules.put(soName, module);
+        indexModule(module);
         if (maxSoName == null || soName.length() > maxSoName.length()) {
             maxSoName = soName;
         }
@@ -563,7 +616,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         }
 
         if (!symbol.isUndef()) {
-            for (HookListener listener : hookListeners) {
+            for (HookListener listener : resolveListeners) {
                 long hook = listener.hook(emulator.getSvcMemory(), soName, symbol.getName(), load_base + symbol.value + offset);
                 if (hook > 0) {
                     return new ModuleSymbol(soName, ModuleSymbol.WEAK_BASE, symbol, relocationAddr, soName, hook);
@@ -572,7 +625,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
             return new ModuleSymbol(soName, load_base, symbol, relocationAddr, soName, offset);
         }
 
-        return new ModuleSymbol(soName, load_base, symbol, relocationAddr, null, offset).resolve(neededLibraries, false, hookListeners, emulator.getSvcMemory());
+        return new ModuleSymbol(soName, load_base, symbol, relocationAddr, null, offset).resolve(neededLibraries, false, resolveListeners, emulator.getSvcMemory());
     }
 
     private int get_segment_protection(int flags) {
@@ -586,7 +639,7 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
     @Override
     public MemoryBlock malloc(int length, boolean runtime) {
         if (runtime) {
-            return MemoryBlockImpl.alloc(this, length);
+            return mallocRuntime(length);
         } else {
             return MemoryAllocBlock.malloc(emulator, malloc, free, length);
         }
@@ -607,9 +660,11 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
 
         if (address > brk) {
             unicorn.mem_map(brk, address - brk, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE);
+            memoryStats.onMap(MemoryStats.Category.BRK, address - brk);
             this.brk = address;
         } else if(address < brk) {
             unicorn.mem_unmap(address, brk - address);
+            memoryStats.onUnmap(MemoryStats.Category.BRK, brk - address);
             this.brk = address;
         }
 
@@ -633,8 +688,238 @@ public class AndroidElfLoader extends AbstractLoader implements Memory, Loader {
         return maxSizeOfSo;
     }
 
+    private static class ElfLoaderState {
+        final Object loaderState;
+        final long brk;
+        final Map<String, LinuxModule> modules;
+        final String maxSoName;
+        final long maxSizeOfSo;
+        final List<SymbolHook> symbolHooks;
+        ElfLoaderState(Object loaderState, long brk, Map<String, LinuxModule> modules, String maxSoName, long maxSizeOfSo, List<SymbolHook> symbolHooks) {
+            this.loaderState = loaderState;
+            this.brk = brk;
+            this.modules = modules;
+            this.maxSoName = maxSoName;
+            this.maxSizeOfSo = maxSizeOfSo;
+            this.symbolHooks = symbolHooks;
+        }
+    }
+
+    @Override
+    public Object saveState() {
+        return new ElfLoaderState(super.saveState(), brk, new LinkedHashMap<>(modules), maxSoName, maxSizeOfSo, new ArrayList<>(symbolHooks));
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        ElfLoaderState elfLoaderState = (ElfLoaderState) state;
+        super.restoreState(elfLoaderState.loaderState);
+        this.brk = elfLoaderState.brk;
+        this.modules.clear();
+        this.modules.putAll(elfLoaderState.modules);
+        reindexModules(modules.values());
+        this.maxSoName = elfLoaderState.maxSoName;
+        this.maxSizeOfSo = elfLoaderState.maxSizeOfSo;
+        this.symbolHooks.clear();
+        this.symbolHooks.addAll(elfLoaderState.symbolHooks);
+    }
+
+    @Override
+    public void writeImage(DataOutput out) throws IOException {
+        out.writeInt(modules.size());
+        for (LinuxModule module : modules.values()) {
+            if (!module.initFunctionList.isEmpty()) {
+                throw new IllegalStateException("init functions not called: " + module.name);
+            }
+
+            LibraryFile libraryFile = module.getRegions().get(0).getLibraryFile();
+            out.writeUTF(module.name);
+            out.writeUTF(libraryFile instanceof ElfLibraryFile ? ((ElfLibraryFile) libraryFile).getFile().getAbsolutePath() : "");
+            out.writeUTF(sha256(libraryFile.readToByteArray()));
+            out.writeLong(module.base);
+            out.writeLong(module.size);
+            out.writeLong(module.getEntryPoint());
+            out.writeInt(module.getReferenceCount());
+            out.writeBoolean(module.isForceCallInit());
+
+            out.writeInt(module.getRegions().size());
+            for (MemRegion region : module.getRegions()) {
+                out.writeLong(region.begin);
+                out.writeLong(region.end);
+                out.writeInt(region.perms);
+                out.writeLong(region.offset);
+            }
+            out.writeInt(module.getNeededLibraries().size());
+            for (Module needed : module.getNeededLibraries()) {
+                out.writeUTF(needed.name);
+            }
+            out.writeInt(module.getUnresolvedSymbol().size());
+            for (ModuleSymbol moduleSymbol : module.getUnresolvedSymbol()) {
+                out.writeUTF(moduleSymbol.symbol.getName());
+                out.writeUTF(moduleSymbol.soName);
+                out.writeLong(((UnicornPointer) moduleSymbol.relocationAddr).peer);
+                out.writeLong(moduleSymbol.offset);
+            }
+            out.writeInt(module.hookMap.size());
+            for (Map.Entry<String, Long> entry : module.hookMap.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+
+        out.writeInt(symbolHooks.size());
+        for (SymbolHook symbolHook : symbolHooks) {
+            out.writeUTF(symbolHook.libraryName);
+            out.writeUTF(symbolHook.symbolName);
+            out.writeLong(symbolHook.old);
+            out.writeLong(symbolHook.hook);
+        }
+
+        writeLoaderImage(out);
+        out.writeLong(brk);
+        out.writeLong(__thread_entry);
+        out.writeUTF(maxSoName == null ? "" : maxSoName);
+        out.writeLong(maxSizeOfSo);
+    }
+
+    /**
+     * modules are rebuilt from the library headers, nothing is mapped, relocated or initialized:
+     * memory comes from the image.
+     */
+    @Override
+    public void readImage(DataInput in) throws IOException {
+        if (!modules.isEmpty()) {
+            throw new IllegalStateException("libraries already loaded");
+        }
+
+        Map<String, LinuxModule> loaded = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String soName = in.readUTF();
+            String path = in.readUTF();
+            String sha256 = in.readUTF();
+            LibraryFile libraryFile = findImageLibrary(soName, path);
+            byte[] data = libraryFile.readToByteArray();
+            if (!sha256.equals(sha256(data))) {
+                throw new IOException("library changed: " + soName);
+            }
+            SymbolLocator dynsym = getDynamicStructure(ElfFile.fromBytes(data)).getSymbolStructure();
+            if (dynsym == null) {
+                throw new IllegalStateException("dynsym is null");
+            }
+
+            long base = in.readLong();
+            long size = in.readLong();
+            long entryPoint = in.readLong();
+            int referenceCount = in.readInt();
+            boolean forceCallInit = in.readBoolean();
+
+            List<MemRegion> regions = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                regions.add(new MemRegion(in.readLong(), in.readLong(), in.readInt(), libraryFile, in.readLong()));
+            }
+            Map<String, Module> neededLibraries = new HashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String neededSoName = in.readUTF();
+                LinuxModule needed = loaded.get(neededSoName);
+                if (needed == null) {
+                    throw new IOException(soName + " dependency not found: " + neededSoName);
+                }
+                neededLibraries.put(FilenameUtils.getBaseName(needed.name), needed);
+            }
+            List<ModuleSymbol> unresolvedSymbol = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                ElfSymbol symbol = dynsym.getELFSymbolByName(in.readUTF());
+                String symbolSoName = in.readUTF();
+                Pointer relocationAddr = UnicornPointer.pointer(emulator, in.readLong());
+                unresolvedSymbol.add(new ModuleSymbol(symbolSoName, base, symbol, relocationAddr, null, in.readLong()));
+            }
+
+            LinuxModule module = new LinuxModule(base, size, soName, dynsym, unresolvedSymbol, new ArrayList<InitFunction>(), neededLibraries, regions);
+            for (int n = in.readInt(); n > 0; n--) {
+                module.hookMap.put(in.readUTF(), in.readLong());
+            }
+            module.setEntryPoint(entryPoint);
+            for (int n = 0; n < referenceCount; n++) {
+                module.addReferenceCount();
+            }
+            if (forceCallInit) {
+                module.setForceCallInit();
+            }
+            loaded.put(soName, module);
+        }
+
+        List<SymbolHook> hooks = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            hooks.add(new SymbolHook(in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+        }
+        for (SymbolHook symbolHook : hooks) {
+            long hook = symbolHookListener.hook(emulator.getSvcMemory(), symbolHook.libraryName, symbolHook.symbolName, symbolHook.old);
+            if (hook != symbolHook.hook) {
+                throw new IOException("svc layout differs: [" + symbolHook.libraryName + "]" + symbolHook.symbolName + " hook=0x" + Long.toHexString(hook) + "/0x" + Long.toHexString(symbolHook.hook));
+            }
+        }
+
+        readLoaderImage(in);
+        this.brk = in.readLong();
+        this.__thread_entry = in.readLong();
+        String maxSoName = in.readUTF();
+        this.maxSoName = maxSoName.isEmpty() ? null : maxSoName;
+        this.maxSizeOfSo = in.readLong();
+
+        modules.putAll(loaded);
+        reindexModules(modules.values());
+        LinuxModule libc = modules.get("libc.so");
+        if (libc != null) {
+            malloc = libc.findSymbolByName("malloc");
+            free = libc.findSymbolByName("free");
+        }
+        if (moduleListener != null) {
+            for (LinuxModule module : modules.values()) {
+                moduleListener.onLoaded(emulator, module);
+            }
+        }
+    }
+
+    private LibraryFile findImageLibrary(String soName, String path) throws IOException {
+        LibraryFile libraryFile = null;
+        if (!path.isEmpty()) {
+            File file = new File(path);
+            libraryFile = file.canRead() ? new ElfLibraryFile(file) : null;
+        } else {
+            VM vm = emulator.getDalvikVM();
+            if (vm != null) {
+                libraryFile = vm.findLibrary(soName);
+            }
+            if (libraryFile == null && libraryResolver != null) {
+                libraryFile = libraryResolver.resolveLibrary(emulator, soName);
+            }
+        }
+        if (libraryFile == null) {
+            throw new IOException("library not found: " + soName + (path.isEmpty() ? "" : (", path=" + path)));
+        }
+        return libraryFile;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ElfDynamicStructure getDynamicStructure(ElfFile elfFile) throws IOException {
+        for (int i = 0; i < elfFile.num_ph; i++) {
+            ElfSegment ph = elfFile.getProgramHeader(i);
+            if (ph.type == ElfSegment.PT_DYNAMIC) {
+                return ph.getDynamicStructure();
+            }
+        }
+        throw new IllegalStateException("dynamicStructure is empty.");
+    }
+
     @Override
     public Collection<Module> getLoadedModules() {
-        return new HashSet<Module>(modules.values());
+        return new ArrayList<Module>(modules.values());
     }
 }
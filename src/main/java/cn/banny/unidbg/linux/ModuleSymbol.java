@@ -2,8 +2,6 @@ package cn.banny.unidbg.linux;
 
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
-import cn.banny.unidbg.arm.ArmHook;
-import cn.banny.unidbg.arm.HookStatus;
 import cn.banny.unidbg.memory.SvcMemory;
 import cn.banny.unidbg.hook.HookListener;
 import com.sun.jna.Pointer;
@@ -78,16 +76,6 @@ public class ModuleSymbol {
                         return new ModuleSymbol(soName, WEAK_BASE, symbol, relocationAddr, "libdl.so", hook);
                     }
                 }
-
-                if ("android_get_application_target_sdk_version".equals(symbolName)) {
-                    long hook = svcMemory.registerSvc(new ArmHook() {
-                        @Override
-                        protected HookStatus hook(Emulator emulator) {
-                            return HookStatus.LR(emulator, 0);
-                        }
-                    }).peer;
-                    return new ModuleSymbol(soName, WEAK_BASE, symbol, relocationAddr, "libdl.so", hook);
-                }
             }
         }
 
@@ -1,5 +1,6 @@
 package cn.banny.unidbg.linux.android;
 
+import cn.banny.unidbg.EmulatorBuilder;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
 import cn.banny.unidbg.arm.ARMEmulator;
 import cn.banny.unidbg.arm.AbstractARM64Emulator;
@@ -11,15 +12,9 @@ import cn.banny.unidbg.spi.Dlfcn;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.memory.SvcMemory;
 import cn.banny.unidbg.spi.LibraryFile;
-import keystone.Keystone;
-import keystone.KeystoneArchitecture;
-import keystone.KeystoneEncoded;
-import keystone.KeystoneMode;
-import unicorn.UnicornConst;
 
 import java.io.File;
 import java.net.URL;
-import java.nio.ByteBuffer;
 
 /**
  * android arm emulator
@@ -29,13 +24,15 @@ import java.nio.ByteBuffer;
 public class AndroidARM64Emulator extends AbstractARM64Emulator implements ARMEmulator {
 
     public AndroidARM64Emulator() {
-        this(null);
+        this((String) null);
     }
 
     public AndroidARM64Emulator(String processName) {
         super(processName);
+    }
 
-        setupTraps();
+    public AndroidARM64Emulator(EmulatorBuilder options) {
+        super(options);
     }
 
     @Override
@@ -54,26 +51,10 @@ public class AndroidARM64Emulator extends AbstractARM64Emulator implements ARMEm
     }
 
     @Override
-    public VM createDalvikVM(File apkFile) {
+    protected VM createDalvikVMInternal(File apkFile) {
         return new DalvikVM64(this, apkFile);
     }
 
-    /**
-     * https://github.com/lunixbochs/usercorn/blob/master/go/arch/arm/linux.go
-     */
-    private void setupTraps() {
-        try (Keystone keystone = new Keystone(KeystoneArchitecture.Arm64, KeystoneMode.LittleEndian)) {
-            unicorn.mem_map(LR, 0x10000, UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_EXEC);
-            KeystoneEncoded encoded = keystone.assemble("b #0");
-            byte[] b0 = encoded.getMachineCode();
-            ByteBuffer buffer = ByteBuffer.allocate(0x10000);
-            for (int i = 0; i < 0x10000; i += b0.length) {
-                buffer.put(b0);
-            }
-            unicorn.mem_write(LR, buffer.array());
-        }
-    }
-
     @Override
     public String getLibraryExtension() {
         return ".so";
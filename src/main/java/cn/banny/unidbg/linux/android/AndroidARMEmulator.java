@@ -1,5 +1,7 @@
 package cn.banny.unidbg.linux.android;
 
+import cn.banny.unidbg.EmulatorBuilder;
+import cn.banny.unidbg.arm.ARM;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
 import cn.banny.unidbg.linux.ARMSyscallHandler;
 import cn.banny.unidbg.spi.Dlfcn;
@@ -10,16 +12,11 @@ import cn.banny.unidbg.linux.android.dvm.VM;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.memory.SvcMemory;
 import cn.banny.unidbg.spi.LibraryFile;
-import keystone.Keystone;
-import keystone.KeystoneArchitecture;
-import keystone.KeystoneEncoded;
-import keystone.KeystoneMode;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.net.URL;
-import java.util.Arrays;
 
 /**
  * android arm emulator
@@ -31,13 +28,17 @@ public class AndroidARMEmulator extends AbstractARMEmulator {
     private static final Log log = LogFactory.getLog(AndroidARMEmulator.class);
 
     public AndroidARMEmulator() {
-        this(null);
+        this((String) null);
     }
 
     public AndroidARMEmulator(String processName) {
         super(processName);
     }
 
+    public AndroidARMEmulator(EmulatorBuilder options) {
+        super(options);
+    }
+
     @Override
     protected Memory createMemory(UnixSyscallHandler syscallHandler) {
         return new AndroidElfLoader(this, syscallHandler);
@@ -54,7 +55,7 @@ public class AndroidARMEmulator extends AbstractARMEmulator {
     }
 
     @Override
-    public VM createDalvikVM(File apkFile) {
+    protected VM createDalvikVMInternal(File apkFile) {
         return new DalvikVM(this, apkFile);
     }
 
@@ -65,32 +66,28 @@ public class AndroidARMEmulator extends AbstractARMEmulator {
     protected final void setupTraps() {
         super.setupTraps();
 
-        try (Keystone keystone = new Keystone(KeystoneArchitecture.Arm, KeystoneMode.Arm)) {
-            KeystoneEncoded encoded = keystone.assemble("bx lr", 0xffff0fa0);
-            byte[] __kuser_memory_barrier = encoded.getMachineCode();
-
-            encoded = keystone.assemble(Arrays.asList(
-                    "dmb sy",
-                    "ldrex r3, [r2]",
-                    "subs r3, r3, r0",
-                    "strexeq r3, r1, [r2]",
-                    "teqeq r3, #1",
-                    "beq #0xffff0fc4",
-                    "rsbs r0, r3, #0",
-                    "b #0xffff0fa0"), 0xffff0fc0);
-            byte[] __kuser_cmpxchg = encoded.getMachineCode();
-            unicorn.mem_write(0xffff0fa0L, __kuser_memory_barrier);
-            unicorn.mem_write(0xffff0fc0L, __kuser_cmpxchg);
-
-            if (log.isDebugEnabled()) {
-                log.debug("__kuser_memory_barrier");
-                for (int i = 0; i < __kuser_memory_barrier.length; i += 4) {
-                    printAssemble(System.err, 0xffff0fa0L + i, 4);
-                }
-                log.debug("__kuser_cmpxchg");
-                for (int i = 0; i < __kuser_cmpxchg.length; i += 4) {
-                    printAssemble(System.err, 0xffff0fc0L + i, 4);
-                }
+        byte[] __kuser_memory_barrier = ARM.toMachineCode(
+                0xe12fff1e); // bx lr
+        byte[] __kuser_cmpxchg = ARM.toMachineCode(
+                0xf57ff05f, // dmb sy
+                0xe1923f9f, // ldrex r3, [r2]
+                0xe0533000, // subs r3, r3, r0
+                0x01823f91, // strexeq r3, r1, [r2]
+                0x03330001, // teqeq r3, #1
+                0x0afffffa, // beq #0xffff0fc4
+                0xe2730000, // rsbs r0, r3, #0
+                0xeaffffef); // b #0xffff0fa0
+        unicorn.mem_write(0xffff0fa0L, __kuser_memory_barrier);
+        unicorn.mem_write(0xffff0fc0L, __kuser_cmpxchg);
+
+        if (log.isDebugEnabled() && options.isCapstoneEnabled()) {
+            log.debug("__kuser_memory_barrier");
+            for (int i = 0; i < __kuser_memory_barrier.length; i += 4) {
+                printAssemble(System.err, 0xffff0fa0L + i, 4);
+            }
+            log.debug("__kuser_cmpxchg");
+            for (int i = 0; i < __kuser_cmpxchg.length; i += 4) {
+                printAssemble(System.err, 0xffff0fc0L + i, 4);
             }
         }
     }
@@ -4,7 +4,14 @@ import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
 import cn.banny.unidbg.linux.android.ElfLibraryFile;
 import cn.banny.unidbg.linux.android.dvm.api.Signature;
+import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.memory.MemoryBlock;
+import cn.banny.unidbg.memory.MemoryStats;
+import cn.banny.unidbg.pointer.UnicornPointer;
+import cn.banny.unidbg.spi.ImageSerializable;
 import cn.banny.unidbg.spi.LibraryFile;
+import cn.banny.unidbg.spi.Snapshotable;
+import com.sun.jna.Pointer;
 import net.dongliu.apk.parser.ApkFile;
 import net.dongliu.apk.parser.bean.ApkMeta;
 import net.dongliu.apk.parser.bean.ApkSigner;
@@ -13,6 +20,8 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -22,7 +31,7 @@ import java.nio.ByteBuffer;
 import java.security.cert.CertificateException;
 import java.util.*;
 
-public abstract class BaseVM implements VM {
+public abstract class BaseVM implements VM, Snapshotable, ImageSerializable {
 
     private static final Log log = LogFactory.getLog(BaseVM.class);
 
@@ -40,6 +49,49 @@ public abstract class BaseVM implements VM {
     private final Emulator emulator;
     private final File apkFile;
 
+    private boolean jniArena;
+
+    @Override
+    public final void setJniArena(boolean enabled, boolean strictRelease) {
+        this.jniArena = enabled;
+        emulator.getMemory().getArgumentArena().setStrictRelease(enabled && strictRelease);
+    }
+
+    /**
+     * guest buffer returned by Get*Chars and Get*ArrayElements, freed by the matching Release function.
+     * Counted as {@link MemoryStats.Category#JNI} until freed, buffers the guest never releases stay counted.
+     */
+    final MemoryBlock allocateJniBuffer(int length) {
+        Memory memory = emulator.getMemory();
+        MemoryBlock block = jniArena ? memory.getArgumentArena().allocateBlock(length) : memory.malloc(length);
+        memory.onBufferAllocated(MemoryStats.Category.JNI, length);
+        return new JniBuffer(memory, block, length);
+    }
+
+    private static class JniBuffer implements MemoryBlock {
+        private final Memory memory;
+        private final MemoryBlock block;
+        private final int length;
+        JniBuffer(Memory memory, MemoryBlock block, int length) {
+            this.memory = memory;
+            this.block = block;
+            this.length = length;
+        }
+        @Override
+        public UnicornPointer getPointer() {
+            return block.getPointer();
+        }
+        @Override
+        public boolean isSame(Pointer pointer) {
+            return block.isSame(pointer);
+        }
+        @Override
+        public void free(boolean runtime) {
+            block.free(runtime);
+            memory.onBufferFreed(MemoryStats.Category.JNI, length);
+        }
+    }
+
     BaseVM(Emulator emulator, File apkFile) {
         this.emulator = emulator;
         this.apkFile = apkFile;
@@ -108,13 +160,14 @@ public abstract class BaseVM implements VM {
         localObjectMap.clear();
     }
 
+    /**
+     * holds the library bytes, the apk is opened again to resolve needed libraries
+     */
     private class ApkLibraryFile implements LibraryFile {
-        private final ApkFile apkFile;
         private final String soName;
         private final byte[] soData;
         private final String packageName;
         ApkLibraryFile(ApkFile apkFile, String soName, byte[] soData) throws IOException {
-            this.apkFile = apkFile;
             this.soName = soName;
             this.soData = soData;
             this.packageName = apkFile.getApkMeta().getPackageName();
@@ -129,8 +182,7 @@ public abstract class BaseVM implements VM {
         }
         @Override
         public LibraryFile resolveLibrary(Emulator emulator, String soName) throws IOException {
-            byte[] libData = findLibrary(apkFile, soName);
-            return libData == null ? null : new ApkLibraryFile(apkFile, soName, libData);
+            return findLibrary(soName);
         }
         @Override
         public byte[] readToByteArray() {
@@ -171,6 +223,22 @@ public abstract class BaseVM implements VM {
         }
     }
 
+    @Override
+    public final LibraryFile findLibrary(String soName) throws IOException {
+        if (apkFile == null) {
+            return null;
+        }
+
+        ApkFile apkFile = null;
+        try {
+            apkFile = new ApkFile(this.apkFile);
+            byte[] libData = findLibrary(apkFile, soName);
+            return libData == null ? null : new ApkLibraryFile(apkFile, soName, libData);
+        } finally {
+            IOUtils.closeQuietly(apkFile);
+        }
+    }
+
     private Signature[] signatures;
 
     Signature[] getSignatures() {
@@ -275,4 +343,75 @@ public abstract class BaseVM implements VM {
     public void callJNI_OnLoad(Emulator emulator, Module module) throws IOException {
         new DalvikModule(this, module).callJNI_OnLoad(emulator);
     }
+
+    private static class VMState {
+        final Map<Long, DvmClass> classMap;
+        final Map<Long, DvmObject> globalObjectMap;
+        final Map<Long, DvmObject> localObjectMap;
+        final Map<DvmClass, Map<String, UnicornPointer>> nativesMap;
+        final DvmObject<?> jthrowable;
+        VMState(Map<Long, DvmClass> classMap, Map<Long, DvmObject> globalObjectMap, Map<Long, DvmObject> localObjectMap,
+                Map<DvmClass, Map<String, UnicornPointer>> nativesMap, DvmObject<?> jthrowable) {
+            this.classMap = classMap;
+            this.globalObjectMap = globalObjectMap;
+            this.localObjectMap = localObjectMap;
+            this.nativesMap = nativesMap;
+            this.jthrowable = jthrowable;
+        }
+    }
+
+    @Override
+    public Object saveState() {
+        Map<DvmClass, Map<String, UnicornPointer>> nativesMap = new HashMap<>();
+        for (DvmClass dvmClass : classMap.values()) {
+            nativesMap.put(dvmClass, new HashMap<>(dvmClass.nativesMap));
+        }
+        return new VMState(new HashMap<>(classMap), new HashMap<>(globalObjectMap), new HashMap<>(localObjectMap), nativesMap, jthrowable);
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        VMState vmState = (VMState) state;
+        classMap.clear();
+        classMap.putAll(vmState.classMap);
+        globalObjectMap.clear();
+        globalObjectMap.putAll(vmState.globalObjectMap);
+        localObjectMap.clear();
+        localObjectMap.putAll(vmState.localObjectMap);
+        for (Map.Entry<DvmClass, Map<String, UnicornPointer>> entry : vmState.nativesMap.entrySet()) {
+            Map<String, UnicornPointer> natives = entry.getKey().nativesMap;
+            natives.clear();
+            natives.putAll(entry.getValue());
+        }
+        jthrowable = vmState.jthrowable;
+    }
+
+    /**
+     * classes and registered natives, other global references are java objects and not saved
+     */
+    @Override
+    public void writeImage(DataOutput out) throws IOException {
+        out.writeInt(classMap.size());
+        for (DvmClass dvmClass : classMap.values()) {
+            out.writeUTF(dvmClass.getClassName());
+            out.writeInt(dvmClass.nativesMap.size());
+            for (Map.Entry<String, UnicornPointer> entry : dvmClass.nativesMap.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().peer);
+            }
+        }
+        if (globalObjectMap.size() > classMap.size()) {
+            log.warn("writeImage skip global objects: " + (globalObjectMap.size() - classMap.size()));
+        }
+    }
+
+    @Override
+    public void readImage(DataInput in) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            DvmClass dvmClass = resolveClass(in.readUTF());
+            for (int n = in.readInt(); n > 0; n--) {
+                dvmClass.nativesMap.put(in.readUTF(), UnicornPointer.pointer(emulator, in.readLong()));
+            }
+        }
+    }
 }
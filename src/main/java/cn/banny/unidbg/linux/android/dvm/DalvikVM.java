@@ -952,7 +952,7 @@ public class DalvikVM extends BaseVM implements VM {
                     log.debug("GetStringUTFChars string=" + string + ", isCopy=" + isCopy + ", value=" + value + ", lr=" + UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_LR));
                 }
                 byte[] data = Arrays.copyOf(bytes, bytes.length + 1);
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(data.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(data.length);
                 memoryBlock.getPointer().write(0, data, 0, data.length);
                 string.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().peer;
@@ -1044,7 +1044,7 @@ public class DalvikVM extends BaseVM implements VM {
                     isCopy.setInt(0, JNI_TRUE);
                 }
                 byte[] value = array.value;
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(value.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(value.length);
                 memoryBlock.getPointer().write(0, value, 0, value.length);
                 array.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().peer;
@@ -1082,7 +1082,7 @@ public class DalvikVM extends BaseVM implements VM {
                     log.debug("GetStringChars string=" + string + ", isCopy=" + isCopy + ", value=" + value + ", lr=" + UnicornPointer.register(emulator, ArmConst.UC_ARM_REG_LR));
                 }
                 byte[] data = Arrays.copyOf(bytes, bytes.length + 1);
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(data.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(data.length);
                 memoryBlock.getPointer().write(0, data, 0, data.length);
                 string.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().peer;
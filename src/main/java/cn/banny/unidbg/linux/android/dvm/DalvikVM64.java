@@ -949,7 +949,7 @@ public class DalvikVM64 extends BaseVM implements VM {
                     log.debug("GetStringUTFChars string=" + string + ", isCopy=" + isCopy + ", value=" + value + ", lr=" + UnicornPointer.register(emulator, Arm64Const.UC_ARM64_REG_LR));
                 }
                 byte[] data = Arrays.copyOf(bytes, bytes.length + 1);
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(data.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(data.length);
                 memoryBlock.getPointer().write(0, data, 0, data.length);
                 string.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().toUIntPeer();
@@ -1042,7 +1042,7 @@ public class DalvikVM64 extends BaseVM implements VM {
                 }
                 ByteArray array = getObject(arrayPointer.toUIntPeer());
                 byte[] value = array.value;
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(value.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(value.length);
                 memoryBlock.getPointer().write(0, value, 0, value.length);
                 array.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().peer;
@@ -1080,7 +1080,7 @@ public class DalvikVM64 extends BaseVM implements VM {
                     log.debug("GetStringUTFChars string=" + string + ", isCopy=" + isCopy + ", value=" + value + ", lr=" + UnicornPointer.register(emulator, Arm64Const.UC_ARM64_REG_LR));
                 }
                 byte[] data = Arrays.copyOf(bytes, bytes.length + 1);
-                MemoryBlock memoryBlock = emulator.getMemory().malloc(data.length);
+                MemoryBlock memoryBlock = allocateJniBuffer(data.length);
                 memoryBlock.getPointer().write(0, data, 0, data.length);
                 string.memoryBlock = memoryBlock;
                 return memoryBlock.getPointer().peer;
@@ -1,7 +1,9 @@
 package cn.banny.unidbg.linux.android.dvm;
 
+import cn.banny.unidbg.BatchCallback;
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
+import cn.banny.unidbg.NativeCallHandle;
 import cn.banny.unidbg.Symbol;
 import cn.banny.unidbg.linux.LinuxModule;
 import cn.banny.unidbg.pointer.UnicornPointer;
@@ -140,4 +142,27 @@ public class DvmClass extends DvmObject<String> implements Hashable {
         return LinuxModule.emulateFunction(emulator, fnPtr.peer, list.toArray())[0];
     }
 
+    /**
+     * resolve the native method once, JNIEnv and jclass are bound.
+     */
+    public NativeCallHandle createStaticCallHandle(Emulator emulator, String method, NativeCallHandle.Type... types) {
+        UnicornPointer fnPtr = findNativeFunction(emulator, method);
+        return NativeCallHandle.createJni(emulator, this, fnPtr.peer, types);
+    }
+
+    /**
+     * call the static native method once per argument tuple, argument types are taken from the first tuple
+     * @return count of calls
+     */
+    public int callStaticJniMethodBatch(Emulator emulator, String method, Iterable<Object[]> tuples, BatchCallback callback) {
+        Iterator<Object[]> iterator = tuples.iterator();
+        if (!iterator.hasNext()) {
+            return 0;
+        }
+        Object[] first = iterator.next();
+        try (NativeCallHandle handle = createStaticCallHandle(emulator, method, NativeCallHandle.typesOf(first))) {
+            return handle.batch(first, iterator, callback);
+        }
+    }
+
 }
@@ -2,6 +2,7 @@ package cn.banny.unidbg.linux.android.dvm;
 
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
+import cn.banny.unidbg.spi.LibraryFile;
 import com.sun.jna.Pointer;
 
 import java.io.File;
@@ -32,6 +33,14 @@ public interface VM {
 
     void setJni(Jni jni);
 
+    /**
+     * take GetStringUTFChars, GetStringChars and GetByteArrayElements buffers from the argument arena,
+     * they are released in bulk when the outermost call returns, even if the native code never releases them.
+     * Buffers kept by the native code after the call become invalid.
+     * @param strictRelease throw when the call returns with a buffer not released
+     */
+    void setJniArena(boolean enabled, boolean strictRelease);
+
     void printMemoryInfo();
 
     void deleteLocalRefs();
@@ -41,6 +50,11 @@ public interface VM {
 
     int addLocalObject(DvmObject object);
 
+    /**
+     * @return library in the apk, <code>null</code> if not found or no apk
+     */
+    LibraryFile findLibrary(String soName) throws IOException;
+
     void callJNI_OnLoad(Emulator emulator, Module module) throws IOException;
 
     /**
@@ -4,10 +4,11 @@ import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.arm.ARM;
 import cn.banny.unidbg.file.AbstractFileIO;
 import cn.banny.unidbg.file.FileIO;
+import cn.banny.unidbg.spi.Snapshotable;
 import com.sun.jna.Pointer;
 import unicorn.Unicorn;
 
-public class ByteArrayFileIO extends AbstractFileIO {
+public class ByteArrayFileIO extends AbstractFileIO implements Snapshotable {
 
     private final byte[] bytes;
     private final String path;
@@ -25,6 +26,16 @@ public class ByteArrayFileIO extends AbstractFileIO {
         pos = 0;
     }
 
+    @Override
+    public Object saveState() {
+        return pos;
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        pos = (Integer) state;
+    }
+
     @Override
     public int write(byte[] data) {
         throw new UnsupportedOperationException();
@@ -12,6 +12,8 @@ import org.apache.commons.io.FilenameUtils;
 import unicorn.Unicorn;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -48,23 +50,30 @@ public class DirectoryFileIO extends AbstractFileIO {
 
     @Override
     public int getdents64(Pointer dirp, int count) {
-        int read = 0;
-        Pointer entryPointer = dirp;
+        ByteBuffer buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
         for (Iterator<DirectoryEntry> iterator = this.entries.iterator(); iterator.hasNext(); ) {
             DirectoryEntry entry = iterator.next();
             byte[] data = entry.name.getBytes(StandardCharsets.UTF_8);
-            long d_reclen = ARM.alignSize(data.length + 20, 8);
-
-            entryPointer.setLong(0, 0); // d_ino
-            entryPointer.setLong(8, 0); // d_off
-            entryPointer.setShort(16, (short) d_reclen);
-            entryPointer.setByte(18, (byte) (entry.isFile ? DT_REG : DT_DIR));
-            entryPointer.write(19, Arrays.copyOf(data, data.length + 1), 0, data.length + 1);
-            read += d_reclen;
-            entryPointer = entryPointer.share(d_reclen);
+            int d_reclen = (int) ARM.alignSize(data.length + 20, 8);
+            if (d_reclen > buffer.remaining()) {
+                break;
+            }
+
+            int begin = buffer.position();
+            buffer.putLong(0); // d_ino
+            buffer.putLong(0); // d_off
+            buffer.putShort((short) d_reclen);
+            buffer.put((byte) (entry.isFile ? DT_REG : DT_DIR));
+            buffer.put(data);
+            buffer.position(begin + d_reclen); // name is zero terminated by the padding
             iterator.remove();
         }
 
+        buffer.flip();
+        int read = buffer.remaining();
+        if (read > 0) {
+            ((UnicornPointer) dirp).writeFrom(0, buffer);
+        }
         return read;
     }
 
@@ -77,9 +86,9 @@ public class DirectoryFileIO extends AbstractFileIO {
     public int fstat(Emulator emulator, StatStructure stat) {
         stat.st_dev = 1;
         stat.st_mode = IO.S_IFDIR | 0x777;
-        stat.st_size = null;
+        stat.st_size = 0;
         stat.st_blksize = 0;
-        stat.st_ino = UnicornPointer.pointer(emulator, 1);
+        stat.st_ino = 1;
         stat.pack();
         return 0;
     }
@@ -6,7 +6,7 @@ import cn.banny.unidbg.arm.ARM;
 import cn.banny.unidbg.file.AbstractFileIO;
 import cn.banny.unidbg.file.FileIO;
 import cn.banny.unidbg.file.StatStructure;
-import cn.banny.unidbg.pointer.UnicornPointer;
+import cn.banny.unidbg.spi.Snapshotable;
 import cn.banny.unidbg.unix.IO;
 import com.sun.jna.Pointer;
 import org.apache.commons.io.FileUtils;
@@ -18,13 +18,14 @@ import unicorn.Unicorn;
 import java.io.*;
 import java.util.Arrays;
 
-public class SimpleFileIO extends AbstractFileIO implements FileIO {
+public class SimpleFileIO extends AbstractFileIO implements FileIO, Snapshotable {
 
     private static final Log log = LogFactory.getLog(SimpleFileIO.class);
 
     final File file;
     final String path;
-    private final RandomAccessFile randomAccessFile;
+    private RandomAccessFile randomAccessFile;
+    private boolean closed;
 
     public SimpleFileIO(int oflags, File file, String path) {
         super(oflags);
@@ -54,6 +55,7 @@ public class SimpleFileIO extends AbstractFileIO implements FileIO {
     @Override
     public void close() {
         IOUtils.closeQuietly(randomAccessFile);
+        closed = true;
 
         if (debugStream != null) {
             try {
@@ -63,6 +65,34 @@ public class SimpleFileIO extends AbstractFileIO implements FileIO {
         }
     }
 
+    /**
+     * @return the file offset
+     */
+    @Override
+    public Object saveState() {
+        try {
+            return closed ? 0L : randomAccessFile.getFilePointer();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * reopens the file if it was closed after the snapshot, then seeks back to the saved offset
+     */
+    @Override
+    public void restoreState(Object state) {
+        try {
+            if (closed) {
+                randomAccessFile = new RandomAccessFile(file, "rws");
+                closed = false;
+            }
+            randomAccessFile.seek((Long) state);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public int write(byte[] data) {
         try {
@@ -240,10 +270,10 @@ public class SimpleFileIO extends AbstractFileIO implements FileIO {
     public int fstat(Emulator emulator, StatStructure stat) {
         stat.st_dev = 1;
         stat.st_mode = (short) (IO.S_IFREG | 0x777);
-        stat.st_size = UnicornPointer.pointer(emulator, file.length());
-        stat.st_blocks = UnicornPointer.pointer(emulator, file.length());
+        stat.st_size = file.length();
+        stat.st_blocks = file.length();
         stat.st_blksize = 0;
-        stat.st_ino = UnicornPointer.pointer(emulator, 1);
+        stat.st_ino = 1;
         stat.pack();
         return 0;
     }
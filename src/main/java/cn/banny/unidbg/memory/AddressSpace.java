@@ -0,0 +1,232 @@
+package cn.banny.unidbg.memory;
+
+import java.util.*;
+
+/**
+ * mapped ranges of the guest: non-overlapping {@link MemoryMap} intervals indexed by base,
+ * plus the free gaps between them indexed by start and by size.
+ * Lookup, add, remove, split and protect are O(log n) plus the number of ranges touched.
+ */
+public class AddressSpace {
+
+    private final NavigableMap<Long, MemoryMap> maps = new TreeMap<>();
+
+    /**
+     * gap start to gap end, only the holes between two mapped ranges
+     */
+    private final NavigableMap<Long, Long> gaps = new TreeMap<>();
+    private final NavigableMap<Long, NavigableSet<Long>> gapsBySize = new TreeMap<>();
+
+    /**
+     * @return the range containing address, <code>null</code> if not mapped
+     */
+    public MemoryMap find(long address) {
+        Map.Entry<Long, MemoryMap> entry = maps.floorEntry(address);
+        if (entry == null) {
+            return null;
+        }
+        MemoryMap map = entry.getValue();
+        return address < map.base + map.size ? map : null;
+    }
+
+    /**
+     * @return the range starting at base, <code>null</code> if no range starts there
+     */
+    public MemoryMap get(long base) {
+        return maps.get(base);
+    }
+
+    /**
+     * @throws IllegalStateException if the range overlaps a mapped one
+     */
+    public void add(MemoryMap map) {
+        if (map.size <= 0) {
+            throw new IllegalArgumentException("size=" + map.size);
+        }
+        if (!overlapping(map.base, map.size).isEmpty()) {
+            throw new IllegalStateException("overlap: " + map + ", mapped=" + overlapping(map.base, map.size));
+        }
+        insert(map);
+    }
+
+    /**
+     * unmap <code>[address, address + size)</code>, ranges partially covered are split.
+     * @return the removed pieces, empty if nothing was mapped
+     */
+    public List<MemoryMap> remove(long address, long size) {
+        long end = address + size;
+        List<MemoryMap> removed = new ArrayList<>();
+        for (MemoryMap map : overlapping(address, size)) {
+            delete(map);
+            long mapEnd = map.base + map.size;
+            if (map.base < address) {
+                insert(new MemoryMap(map.base, address - map.base, map.prot));
+            }
+            if (mapEnd > end) {
+                insert(new MemoryMap(end, mapEnd - end, map.prot));
+            }
+            long begin = Math.max(map.base, address);
+            removed.add(new MemoryMap(begin, Math.min(mapEnd, end) - begin, map.prot));
+        }
+        return removed;
+    }
+
+    /**
+     * set the protection of <code>[address, address + size)</code>, ranges partially covered are split.
+     * @return bytes covered by mapped ranges
+     */
+    public long protect(long address, long size, int prot) {
+        long end = address + size;
+        long covered = 0;
+        for (MemoryMap map : overlapping(address, size)) {
+            long mapEnd = map.base + map.size;
+            long begin = Math.max(map.base, address);
+            long until = Math.min(mapEnd, end);
+            covered += until - begin;
+            if (map.prot == prot) {
+                continue;
+            }
+
+            delete(map);
+            if (map.base < begin) {
+                insert(new MemoryMap(map.base, begin - map.base, map.prot));
+            }
+            insert(new MemoryMap(begin, until - begin, prot));
+            if (mapEnd > until) {
+                insert(new MemoryMap(until, mapEnd - until, map.prot));
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * best fit: the smallest hole between mapped ranges that fits length at an address aligned to mask.
+     * @param mask alignment mask, e.g. <code>0xfff</code>
+     * @return -1 if no hole fits, map above {@link #getEnd()}
+     */
+    public long findFree(long length, long mask) {
+        for (Map.Entry<Long, NavigableSet<Long>> entry : gapsBySize.tailMap(length, true).entrySet()) {
+            for (long start : entry.getValue()) {
+                long address = (start + mask) & ~mask;
+                if (address + length <= gaps.get(start)) {
+                    return address;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return end of the highest range, 0 if nothing is mapped
+     */
+    public long getEnd() {
+        Map.Entry<Long, MemoryMap> last = maps.lastEntry();
+        return last == null ? 0 : last.getValue().base + last.getValue().size;
+    }
+
+    public Collection<MemoryMap> values() {
+        return Collections.unmodifiableCollection(maps.values());
+    }
+
+    public int size() {
+        return maps.size();
+    }
+
+    public boolean isEmpty() {
+        return maps.isEmpty();
+    }
+
+    public void clear() {
+        maps.clear();
+        gaps.clear();
+        gapsBySize.clear();
+    }
+
+    /**
+     * replace all ranges, used to restore snapshots
+     */
+    public void reset(Collection<MemoryMap> mapped) {
+        clear();
+        for (MemoryMap map : mapped) {
+            add(map);
+        }
+    }
+
+    private List<MemoryMap> overlapping(long address, long size) {
+        long end = address + size;
+        Long from = maps.floorKey(address);
+        if (from == null) {
+            from = address;
+        }
+        List<MemoryMap> list = new ArrayList<>();
+        for (MemoryMap map : maps.subMap(from, true, end, false).values()) {
+            if (map.base + map.size > address) {
+                list.add(map);
+            }
+        }
+        return list;
+    }
+
+    private void insert(MemoryMap map) {
+        long end = map.base + map.size;
+        Map.Entry<Long, MemoryMap> prev = maps.lowerEntry(map.base);
+        Map.Entry<Long, MemoryMap> next = maps.higherEntry(map.base);
+        if (prev != null) {
+            long prevEnd = prev.getValue().base + prev.getValue().size;
+            removeGap(prevEnd);
+            addGap(prevEnd, map.base);
+        }
+        if (next != null) {
+            addGap(end, next.getKey());
+        }
+        maps.put(map.base, map);
+    }
+
+    private void delete(MemoryMap map) {
+        maps.remove(map.base);
+        Map.Entry<Long, MemoryMap> prev = maps.lowerEntry(map.base);
+        Map.Entry<Long, MemoryMap> next = maps.higherEntry(map.base);
+        removeGap(map.base + map.size);
+        if (prev != null) {
+            long prevEnd = prev.getValue().base + prev.getValue().size;
+            removeGap(prevEnd);
+            if (next != null) {
+                addGap(prevEnd, next.getKey());
+            }
+        }
+    }
+
+    private void addGap(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        gaps.put(start, end);
+        NavigableSet<Long> starts = gapsBySize.get(end - start);
+        if (starts == null) {
+            starts = new TreeSet<>();
+            gapsBySize.put(end - start, starts);
+        }
+        starts.add(start);
+    }
+
+    private void removeGap(long start) {
+        Long end = gaps.remove(start);
+        if (end == null) {
+            return;
+        }
+        NavigableSet<Long> starts = gapsBySize.get(end - start);
+        starts.remove(start);
+        if (starts.isEmpty()) {
+            gapsBySize.remove(end - start);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AddressSpace{" +
+                "maps=" + maps.values() +
+                ", gaps=" + gaps.size() +
+                '}';
+    }
+
+}
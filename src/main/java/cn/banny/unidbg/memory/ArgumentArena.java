@@ -0,0 +1,209 @@
+package cn.banny.unidbg.memory;
+
+import cn.banny.unidbg.pointer.UnicornPointer;
+import com.sun.jna.Pointer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * bump allocated guest memory for string and byte array call arguments, off the stack.
+ * Allocations are released with {@link #release(long)} to the {@link #mark()} taken before the call, so nested calls
+ * work like a stack, released memory stays readable until the next allocation.
+ * Grows by adding chunks, the chunks are merged into one when allocating from an empty arena.
+ * The VM can take JNI buffers from the arena with {@link #allocateBlock(int)}, see {@link cn.banny.unidbg.linux.android.dvm.VM#setJniArena(boolean, boolean)}.
+ */
+public class ArgumentArena {
+
+    private static final Log log = LogFactory.getLog(ArgumentArena.class);
+
+    private static final int MIN_CHUNK_SIZE = 0x10000;
+    private static final int ALIGN = 16;
+
+    private final Memory memory;
+    private final List<MemoryBlock> chunks = new ArrayList<>();
+
+    private int current; // index of the chunk allocated from
+    private long offset; // bytes used in the current chunk
+
+    private final List<ScratchBlock> blocks = new ArrayList<>();
+    private boolean strictRelease;
+
+    public ArgumentArena(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * @return position to {@link #release(long)} to
+     */
+    public long mark() {
+        return ((long) current << 32) | offset;
+    }
+
+    public void release(long mark) {
+        int index = (int) (mark >>> 32);
+        long offset = mark & 0xffffffffL;
+        if (index > current || index == current && offset > this.offset) { // arena reset by a restore during the call
+            return;
+        }
+        this.current = index;
+        this.offset = offset;
+
+        List<ScratchBlock> leaked = null;
+        while (!blocks.isEmpty() && blocks.get(blocks.size() - 1).position >= mark) {
+            ScratchBlock block = blocks.remove(blocks.size() - 1);
+            if (!block.freed) {
+                if (leaked == null) {
+                    leaked = new ArrayList<>();
+                }
+                leaked.add(block);
+            }
+        }
+        if (leaked != null) {
+            if (strictRelease) {
+                throw new IllegalStateException("buffers not released before the call returned: " + leaked);
+            } else if (log.isDebugEnabled()) {
+                log.debug("released buffers not freed by the call: " + leaked);
+            }
+        }
+    }
+
+    /**
+     * @param strictRelease throw {@link IllegalStateException} from {@link #release(long)}
+     *                      when a block of {@link #allocateBlock(int)} was not freed before
+     */
+    public void setStrictRelease(boolean strictRelease) {
+        this.strictRelease = strictRelease;
+    }
+
+    /**
+     * memory released with the call frame, {@link MemoryBlock#free(boolean)} only marks the block as released
+     */
+    public MemoryBlock allocateBlock(int size) {
+        long position = mark();
+        ScratchBlock block = new ScratchBlock(allocate(size), position);
+        blocks.add(block);
+        return block;
+    }
+
+    /**
+     * @return uninitialized memory, valid until released
+     */
+    public UnicornPointer allocate(int size) {
+        int aligned = (size + ALIGN - 1) & -ALIGN;
+        if (current == 0 && offset == 0 && chunks.size() > 1) {
+            merge(); // not on release: results of the last call may still be read from the chunks
+        }
+        if (chunks.isEmpty()) {
+            chunks.add(MemoryBlockImpl.alloc(memory, chunkSize(aligned, MIN_CHUNK_SIZE)));
+        } else if (offset + aligned > chunkSize(current)) {
+            if (current + 1 < chunks.size() && aligned > chunkSize(current + 1)) {
+                freeChunks(current + 1); // too small and not in use
+            }
+            if (current + 1 == chunks.size()) {
+                chunks.add(MemoryBlockImpl.alloc(memory, chunkSize(aligned, chunkSize(current) * 2)));
+            }
+            current++;
+            offset = 0;
+        }
+
+        UnicornPointer pointer = chunks.get(current).getPointer().share(offset, size);
+        offset += aligned;
+        return pointer;
+    }
+
+    public UnicornPointer writeString(String str) {
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        UnicornPointer pointer = allocate(data.length + 1);
+        pointer.write(0, data, 0, data.length);
+        pointer.setByte(data.length, (byte) 0);
+        return pointer;
+    }
+
+    public UnicornPointer writeBytes(byte[] data) {
+        UnicornPointer pointer = allocate(data.length);
+        pointer.write(0, data, 0, data.length);
+        return pointer;
+    }
+
+    /**
+     * @return bytes mapped by the arena
+     */
+    public long getCapacity() {
+        long capacity = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            capacity += chunkSize(i);
+        }
+        return capacity;
+    }
+
+    private void merge() {
+        long capacity = getCapacity();
+        freeChunks(0);
+        chunks.add(MemoryBlockImpl.alloc(memory, chunkSize((int) Math.min(capacity, Integer.MAX_VALUE), MIN_CHUNK_SIZE)));
+        if (log.isDebugEnabled()) {
+            log.debug("merged argument arena: capacity=0x" + Long.toHexString(capacity));
+        }
+    }
+
+    private void freeChunks(int from) {
+        while (chunks.size() > from) {
+            chunks.remove(chunks.size() - 1).free(false);
+        }
+    }
+
+    private long chunkSize(int index) {
+        return chunks.get(index).getPointer().getSize();
+    }
+
+    private static int chunkSize(int size, long min) {
+        return (int) Math.min(Math.max(size, min), Integer.MAX_VALUE); // page aligned by mmap
+    }
+
+    /**
+     * forget chunks no longer mapped after a snapshot restore or image load, chunks in reservations included
+     */
+    public void retainMapped() {
+        for (Iterator<MemoryBlock> iterator = chunks.iterator(); iterator.hasNext(); ) {
+            UnicornPointer pointer = iterator.next().getPointer();
+            MemoryMap map = memory.findMemoryMap(pointer.peer);
+            if (map == null || map.base != pointer.peer || map.size != pointer.getSize()) {
+                iterator.remove();
+            }
+        }
+        current = 0;
+        offset = 0;
+        blocks.clear();
+    }
+
+    private static class ScratchBlock implements MemoryBlock {
+        private final UnicornPointer pointer;
+        private final long position;
+        private boolean freed;
+        ScratchBlock(UnicornPointer pointer, long position) {
+            this.pointer = pointer;
+            this.position = position;
+        }
+        @Override
+        public UnicornPointer getPointer() {
+            return pointer;
+        }
+        @Override
+        public boolean isSame(Pointer pointer) {
+            return this.pointer.equals(pointer);
+        }
+        @Override
+        public void free(boolean runtime) {
+            freed = true;
+        }
+        @Override
+        public String toString() {
+            return String.valueOf(pointer);
+        }
+    }
+
+}
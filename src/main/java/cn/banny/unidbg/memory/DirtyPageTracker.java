@@ -0,0 +1,290 @@
+package cn.banny.unidbg.memory;
+
+import cn.banny.unidbg.Snapshot;
+import cn.banny.unidbg.arm.ARMEmulator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import unicorn.EventMemHook;
+import unicorn.MemRegion;
+import unicorn.Unicorn;
+import unicorn.UnicornConst;
+
+import java.util.*;
+
+/**
+ * write-protects the writable regions of a snapshot and records the pages the guest writes,
+ * so that {@link #reset()} only copies back touched pages and unmaps mappings created after the snapshot.
+ * Host writes bypass unicorn permissions and must be reported with {@link #markDirty(long, long)}.
+ */
+public class DirtyPageTracker implements EventMemHook {
+
+    private static final Log log = LogFactory.getLog(DirtyPageTracker.class);
+
+    private static final long PAGE_SIZE = ARMEmulator.PAGE_ALIGN;
+    private static final long PAGE_MASK = -PAGE_SIZE;
+
+    private final Unicorn unicorn;
+
+    private Snapshot snapshot;
+    private final NavigableMap<Long, Snapshot.Region> regions = new TreeMap<>();
+    private final NavigableSet<Long> dirtyPages = new TreeSet<>(); // write protection removed or permission changed by guest
+    private final NavigableSet<Long> writtenPages = new TreeSet<>(); // written by host, still write protected
+
+    private boolean hookInstalled;
+
+    public DirtyPageTracker(Unicorn unicorn) {
+        this.unicorn = unicorn;
+    }
+
+    public boolean isTracking(Snapshot snapshot) {
+        return snapshot != null && this.snapshot == snapshot;
+    }
+
+    public int getDirtyPageCount() {
+        Set<Long> pages = new HashSet<>(dirtyPages);
+        pages.addAll(writtenPages);
+        return pages.size();
+    }
+
+    /**
+     * memory must be identical to the snapshot, e.g. right after it was taken or restored
+     */
+    public void track(Snapshot snapshot) {
+        stop();
+
+        for (Snapshot.Region region : snapshot.getRegions()) {
+            regions.put(region.begin, region);
+        }
+        if (!hookInstalled) {
+            unicorn.hook_add(this, UnicornConst.UC_HOOK_MEM_WRITE_PROT, null); // unicorn-1.0.1 java binding cannot remove hooks
+            hookInstalled = true;
+        }
+        for (Snapshot.Region region : regions.values()) {
+            if (isWritable(region)) {
+                unicorn.mem_protect(region.begin, region.getSize(), armedPerms(region));
+            }
+        }
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * give back write permission to pages still protected by the tracker
+     */
+    public void stop() {
+        if (snapshot == null) {
+            return;
+        }
+
+        for (MemRegion current : unicorn.mem_regions()) {
+            if ((current.perms & UnicornConst.UC_PROT_WRITE) != 0) {
+                continue;
+            }
+            long end = current.end + 1;
+            for (Snapshot.Region region : overlapping(current.begin, end)) {
+                if (!isWritable(region) || current.perms != armedPerms(region)) {
+                    continue;
+                }
+                long begin = Math.max(current.begin, region.begin);
+                long until = Math.min(end, region.end);
+                long runStart = -1;
+                for (long page = begin; page < until; page += PAGE_SIZE) {
+                    if (dirtyPages.contains(page)) {
+                        if (runStart != -1) {
+                            unicorn.mem_protect(runStart, page - runStart, region.perms);
+                            runStart = -1;
+                        }
+                    } else if (runStart == -1) {
+                        runStart = page;
+                    }
+                }
+                if (runStart != -1) {
+                    unicorn.mem_protect(runStart, until - runStart, region.perms);
+                }
+            }
+        }
+
+        snapshot = null;
+        regions.clear();
+        dirtyPages.clear();
+        writtenPages.clear();
+    }
+
+    /**
+     * record a host write, cheap no-op when not tracking
+     */
+    public void markDirty(long address, long size) {
+        mark(writtenPages, address, size);
+    }
+
+    /**
+     * record a guest mprotect or munmap: the pages are restored on reset and write faults on them are not ours
+     */
+    public void markProtectionChanged(long address, long size) {
+        mark(dirtyPages, address, size);
+    }
+
+    private void mark(Set<Long> pages, long address, long size) {
+        if (snapshot == null || size <= 0) {
+            return;
+        }
+
+        long end = address + size;
+        for (long page = address & PAGE_MASK; page < end; page += PAGE_SIZE) {
+            if (findRegion(page) != null) {
+                pages.add(page);
+            }
+        }
+    }
+
+    @Override
+    public boolean hook(Unicorn u, long address, int size, long value, Object user) {
+        if (snapshot == null) {
+            return false;
+        }
+
+        boolean handled = false;
+        long end = address + Math.max(size, 1);
+        for (long page = address & PAGE_MASK; page < end; page += PAGE_SIZE) {
+            Snapshot.Region region = findRegion(page);
+            if (region == null || !isWritable(region)) {
+                return false;
+            }
+            if (dirtyPages.add(page)) {
+                u.mem_protect(page, PAGE_SIZE, region.perms);
+                handled = true;
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * bring memory back to the tracked snapshot and re-arm the write protection
+     * @return count of pages copied back
+     */
+    public int reset() {
+        if (snapshot == null) {
+            throw new IllegalStateException("not tracking");
+        }
+
+        // unmap memory mapped after the snapshot
+        for (MemRegion current : unicorn.mem_regions()) {
+            long cursor = current.begin;
+            long end = current.end + 1;
+            for (Snapshot.Region region : overlapping(current.begin, end)) {
+                if (region.begin > cursor) {
+                    unicorn.mem_unmap(cursor, region.begin - cursor);
+                }
+                cursor = Math.max(cursor, region.end);
+            }
+            if (cursor < end) {
+                unicorn.mem_unmap(cursor, end - cursor);
+            }
+        }
+
+        // map memory unmapped after the snapshot
+        NavigableMap<Long, Long> mapped = new TreeMap<>();
+        for (MemRegion current : unicorn.mem_regions()) {
+            mapped.put(current.begin, current.end + 1);
+        }
+        int pages = 0;
+        for (Snapshot.Region region : regions.values()) {
+            long cursor = region.begin;
+            Long floor = mapped.floorKey(region.begin);
+            for (Map.Entry<Long, Long> entry : mapped.subMap(floor == null ? region.begin : floor, true, region.end, false).entrySet()) {
+                if (entry.getValue() <= cursor) {
+                    continue;
+                }
+                if (entry.getKey() > cursor) {
+                    pages += remap(region, cursor, entry.getKey());
+                }
+                cursor = entry.getValue();
+            }
+            if (cursor < region.end) {
+                pages += remap(region, cursor, region.end);
+            }
+        }
+
+        // copy back dirty pages, adjacent pages with one write
+        NavigableSet<Long> touched = new TreeSet<>(dirtyPages);
+        touched.addAll(writtenPages);
+        long runStart = -1;
+        long runEnd = -1;
+        Snapshot.Region runRegion = null;
+        for (long page : touched) {
+            Snapshot.Region region = findRegion(page);
+            if (region == null) {
+                continue;
+            }
+            if (runRegion == region && runEnd == page) {
+                runEnd += PAGE_SIZE;
+            } else {
+                writeBack(runRegion, runStart, runEnd);
+                runRegion = region;
+                runStart = page;
+                runEnd = page + PAGE_SIZE;
+            }
+            pages++;
+        }
+        writeBack(runRegion, runStart, runEnd);
+        dirtyPages.clear();
+        writtenPages.clear();
+
+        // restore permissions changed by guest mprotect and re-arm the dirtied pages
+        for (MemRegion current : unicorn.mem_regions()) {
+            long end = current.end + 1;
+            for (Snapshot.Region region : overlapping(current.begin, end)) {
+                int perms = armedPerms(region);
+                if (current.perms != perms) {
+                    long begin = Math.max(current.begin, region.begin);
+                    unicorn.mem_protect(begin, Math.min(end, region.end) - begin, perms);
+                }
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("reset pages=" + pages + ", snapshot=" + snapshot);
+        }
+        return pages;
+    }
+
+    private int remap(Snapshot.Region region, long begin, long end) {
+        unicorn.mem_map(begin, end - begin, armedPerms(region));
+        writeBack(region, begin, end);
+        return (int) ((end - begin) / PAGE_SIZE);
+    }
+
+    private void writeBack(Snapshot.Region region, long begin, long end) {
+        if (region != null) {
+            int offset = (int) (begin - region.begin);
+            unicorn.mem_write(begin, Arrays.copyOfRange(region.data, offset, offset + (int) (end - begin)));
+        }
+    }
+
+    private Snapshot.Region findRegion(long address) {
+        Map.Entry<Long, Snapshot.Region> entry = regions.floorEntry(address);
+        if (entry == null || address >= entry.getValue().end) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    private Collection<Snapshot.Region> overlapping(long begin, long end) {
+        Long floor = regions.floorKey(begin);
+        List<Snapshot.Region> list = new ArrayList<>();
+        for (Snapshot.Region region : regions.subMap(floor == null ? begin : floor, true, end, false).values()) {
+            if (region.end > begin) {
+                list.add(region);
+            }
+        }
+        return list;
+    }
+
+    private static boolean isWritable(Snapshot.Region region) {
+        return (region.perms & UnicornConst.UC_PROT_WRITE) != 0;
+    }
+
+    private static int armedPerms(Snapshot.Region region) {
+        return region.perms & ~UnicornConst.UC_PROT_WRITE;
+    }
+
+}
@@ -28,6 +28,10 @@ public class MemRegion implements Comparable<MemRegion> {
         return libraryFile.readToByteArray();
     }
 
+    public LibraryFile getLibraryFile() {
+        return libraryFile;
+    }
+
     @Override
     public int compareTo(MemRegion o) {
         return (int) (begin - o.begin);
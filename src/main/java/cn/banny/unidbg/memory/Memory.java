@@ -1,5 +1,6 @@
 package cn.banny.unidbg.memory;
 
+import cn.banny.unidbg.Snapshot;
 import cn.banny.unidbg.spi.Loader;
 import cn.banny.unidbg.unix.IO;
 import cn.banny.unidbg.pointer.UnicornPointer;
@@ -34,6 +35,18 @@ public interface Memory extends IO, Loader {
     UnicornPointer mmap(int length, int prot);
     int munmap(long start, int length);
 
+    /**
+     * serve small read write anonymous mappings from large reservations mapped once,
+     * so unicorn keeps a few big regions instead of one per mapping. Free pages of a reservation stay accessible.
+     * mprotect of coalesced pages to anything but read write splits the region, munmap gives the pages read write back.
+     */
+    void setCoalesceMappings(boolean coalesceMappings);
+
+    /**
+     * guest memory for string and byte array call arguments
+     */
+    ArgumentArena getArgumentArena();
+
     /**
      * set errno
      */
@@ -44,4 +57,43 @@ public interface Memory extends IO, Loader {
 
     Collection<MemoryMap> getMemoryMap();
 
+    /**
+     * @return guest memory by category with peaks, a copy
+     */
+    MemoryStats getMemoryStats();
+
+    /**
+     * count a buffer handed out to the guest inside memory already mapped, e.g. a jni buffer
+     */
+    void onBufferAllocated(MemoryStats.Category category, int size);
+
+    void onBufferFreed(MemoryStats.Category category, int size);
+
+    /**
+     * @return the mapped range containing address, <code>null</code> if not mapped
+     */
+    MemoryMap findMemoryMap(long address);
+
+    /**
+     * track pages written after the snapshot, memory must match the snapshot.
+     * @param snapshot <code>null</code> to stop tracking
+     */
+    void trackDirtyPages(Snapshot snapshot);
+
+    /**
+     * copy back only the pages written since the snapshot and unmap newer mappings
+     * @return <code>false</code> if the snapshot is not tracked
+     */
+    boolean resetDirtyPages(Snapshot snapshot);
+
+    /**
+     * report memory written by host code, unicorn does not fault on host writes
+     */
+    void markDirty(long address, long size);
+
+    /**
+     * host write of guest memory, reported to the dirty page tracker. Every write not done by the guest goes here.
+     */
+    void write(long address, byte[] data);
+
 }
@@ -16,6 +16,13 @@ public class MemoryBlockImpl implements MemoryBlock {
         return new MemoryBlockImpl(memory, pointer);
     }
 
+    /**
+     * wrap a mapping restored from an image
+     */
+    static MemoryBlock mapped(Memory memory, UnicornPointer pointer) {
+        return new MemoryBlockImpl(memory, pointer);
+    }
+
     private final Memory memory;
     private final UnicornPointer pointer;
 
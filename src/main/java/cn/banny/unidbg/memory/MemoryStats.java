@@ -0,0 +1,202 @@
+package cn.banny.unidbg.memory;
+
+import unicorn.MemRegion;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * guest memory held by one emulator, by category, read with {@link Memory#getMemoryStats()}.
+ * Stack, brk, anonymous, module and file bytes are counted as they are mapped and unmapped, jni buffers as the vm
+ * hands them out and they are released, svc bytes are sampled when the stats are read.
+ * JNI buffers live in anonymous mappings and are counted there too.
+ */
+public class MemoryStats {
+
+    /**
+     * configured estimate of the translation cache unicorn allocates per instance besides the guest pages,
+     * not measured: the binding does not report it. Defaults to qemu's default code buffer.
+     */
+    private static volatile long translationCacheEstimate = 32 * 1024 * 1024;
+
+    /**
+     * set the estimate to the code buffer size of the unicorn build in use
+     */
+    public static void setTranslationCacheEstimate(long translationCacheEstimate) {
+        MemoryStats.translationCacheEstimate = translationCacheEstimate;
+    }
+
+    public static long getTranslationCacheEstimate() {
+        return translationCacheEstimate;
+    }
+
+    public enum Category {
+        STACK,
+        BRK,
+        /**
+         * mmap without a file, pages handed out by reservations included
+         */
+        ANONYMOUS,
+        MODULE,
+        FILE,
+        SVC,
+        /**
+         * buffers of Get*Chars and Get*ArrayElements not released yet, from the argument arena or runtime malloc
+         */
+        JNI
+    }
+
+    private final long[] bytes = new long[Category.values().length];
+    private final long[] peakBytes = new long[bytes.length];
+    private final int[] mapCounts = new int[bytes.length];
+    private long peakTotal;
+
+    private Map<String, Long> moduleBytes = Collections.emptyMap();
+    private long reservedFree;
+    private long unicornBytes;
+    private int unicornRegions;
+
+    public void onMap(Category category, long size) {
+        int index = category.ordinal();
+        bytes[index] += size;
+        mapCounts[index]++;
+        updatePeak(index);
+    }
+
+    public void onUnmap(Category category, long size) {
+        int index = category.ordinal();
+        bytes[index] = Math.max(0, bytes[index] - size);
+    }
+
+    private void updatePeak(int index) {
+        peakBytes[index] = Math.max(peakBytes[index], bytes[index]);
+        peakTotal = Math.max(peakTotal, getTotal());
+    }
+
+    /**
+     * sample the categories not counted on map and the unicorn regions
+     * @return a copy, later mappings do not change it
+     */
+    public MemoryStats snapshot(long svcBytes, Map<String, Long> moduleBytes, long reservedFree, MemRegion[] regions) {
+        bytes[Category.SVC.ordinal()] = svcBytes;
+        updatePeak(Category.SVC.ordinal());
+
+        MemoryStats copy = copy();
+        copy.moduleBytes = Collections.unmodifiableMap(new TreeMap<>(moduleBytes));
+        copy.reservedFree = reservedFree;
+        for (MemRegion region : regions) {
+            copy.unicornBytes += region.end + 1 - region.begin;
+        }
+        copy.unicornRegions = regions.length;
+        return copy;
+    }
+
+    public MemoryStats copy() {
+        MemoryStats copy = new MemoryStats();
+        System.arraycopy(bytes, 0, copy.bytes, 0, bytes.length);
+        System.arraycopy(peakBytes, 0, copy.peakBytes, 0, peakBytes.length);
+        System.arraycopy(mapCounts, 0, copy.mapCounts, 0, mapCounts.length);
+        copy.peakTotal = peakTotal;
+        return copy;
+    }
+
+    public long getBytes(Category category) {
+        return bytes[category.ordinal()];
+    }
+
+    public long getPeakBytes(Category category) {
+        return peakBytes[category.ordinal()];
+    }
+
+    /**
+     * @return mappings created since the loader was created, sampled categories count 0
+     */
+    public int getMapCount(Category category) {
+        return mapCounts[category.ordinal()];
+    }
+
+    /**
+     * @return bytes of all categories, jni excluded as it is part of anonymous
+     */
+    public long getTotal() {
+        long total = 0;
+        for (Category category : Category.values()) {
+            if (category != Category.JNI) {
+                total += bytes[category.ordinal()];
+            }
+        }
+        return total;
+    }
+
+    public long getPeakTotal() {
+        return peakTotal;
+    }
+
+    /**
+     * @return mapped segment bytes by module name
+     */
+    public Map<String, Long> getModuleBytes() {
+        return moduleBytes;
+    }
+
+    /**
+     * @return pages of reservations not handed out, mapped in unicorn but not counted as anonymous
+     */
+    public long getReservedFree() {
+        return reservedFree;
+    }
+
+    public long getUnicornBytes() {
+        return unicornBytes;
+    }
+
+    public int getUnicornRegions() {
+        return unicornRegions;
+    }
+
+    /**
+     * upper bound of the host native memory of the unicorn instance: guest pages are committed by the os when first touched,
+     * plus the {@link #getTranslationCacheEstimate() configured translation cache estimate}
+     */
+    public long getHostNativeEstimate() {
+        return unicornBytes + translationCacheEstimate;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            out.writeLong(bytes[i]);
+            out.writeLong(peakBytes[i]);
+            out.writeInt(mapCounts[i]);
+        }
+        out.writeLong(peakTotal);
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = in.readLong();
+            peakBytes[i] = in.readLong();
+            mapCounts[i] = in.readInt();
+        }
+        peakTotal = in.readLong();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("MemoryStats{");
+        for (Category category : Category.values()) {
+            builder.append(category.name().toLowerCase()).append("=0x").append(Long.toHexString(getBytes(category)));
+            builder.append("/0x").append(Long.toHexString(getPeakBytes(category))).append(", ");
+        }
+        return builder.append("peakTotal=0x").append(Long.toHexString(peakTotal))
+                .append(", reservedFree=0x").append(Long.toHexString(reservedFree))
+                .append(", unicornBytes=0x").append(Long.toHexString(unicornBytes))
+                .append(", unicornRegions=").append(unicornRegions)
+                .append(", modules=").append(moduleBytes.keySet())
+                .append('}').toString();
+    }
+
+}
@@ -0,0 +1,163 @@
+package cn.banny.unidbg.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * a large anonymous range mapped once as a single unicorn region and sub-allocated by small mmap requests.
+ * The allocations are bookkept here with the protection set by mprotect, which is also applied to the unicorn region.
+ * Free pages stay mapped in unicorn.
+ */
+public class Reservation {
+
+    public final long base;
+    public final long size;
+
+    private final AddressSpace allocations = new AddressSpace();
+    private long top; // bump allocation above the highest allocation
+    private long highWater; // pages below were handed out before and may be dirty
+
+    public Reservation(long base, long size) {
+        this.base = base;
+        this.size = size;
+        this.top = base;
+        this.highWater = base;
+    }
+
+    /**
+     * first hole that fits, then the space above the highest allocation.
+     * Memory below {@link #getHighWater()} sampled before the call must be zeroed by the caller.
+     * @param length page aligned
+     * @return -1 if the reservation is full
+     */
+    public long allocate(long length, int prot) {
+        long address = allocations.findFree(length, 0);
+        if (address == -1) {
+            MemoryMap first = allocations.isEmpty() ? null : allocations.values().iterator().next();
+            if (first != null && first.base - base >= length) {
+                address = base;
+            } else if (top + length <= base + size) {
+                address = top;
+            } else {
+                return -1;
+            }
+        }
+        allocations.add(new MemoryMap(address, length, prot));
+        top = Math.max(top, address + length);
+        highWater = Math.max(highWater, top);
+        return address;
+    }
+
+    /**
+     * @return the freed pieces with the protection they had, empty if nothing was allocated there
+     */
+    public List<MemoryMap> free(long address, long length) {
+        List<MemoryMap> removed = allocations.remove(address, length);
+        top = allocations.isEmpty() ? base : allocations.getEnd();
+        return removed;
+    }
+
+    /**
+     * @return <code>true</code> if an allocation in the range had another protection before
+     */
+    public boolean protect(long address, long length, int prot) {
+        boolean changed = false;
+        for (MemoryMap map : allocations.values()) {
+            if (map.base >= address + length) {
+                break;
+            }
+            if (map.base + map.size > address && map.prot != prot) {
+                changed = true;
+            }
+        }
+        allocations.protect(address, length, prot);
+        return changed;
+    }
+
+    /**
+     * @return the allocation containing address, <code>null</code> if the page is free
+     */
+    public MemoryMap find(long address) {
+        return allocations.find(address);
+    }
+
+    public boolean contains(long address, long length) {
+        return address >= base && address + length <= base + size;
+    }
+
+    public boolean overlaps(long address, long length) {
+        return address < base + size && address + length > base;
+    }
+
+    public boolean isEmpty() {
+        return allocations.isEmpty();
+    }
+
+    public long getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * @return bytes handed out to the guest
+     */
+    public long getAllocated() {
+        long allocated = 0;
+        for (MemoryMap map : allocations.values()) {
+            allocated += map.size;
+        }
+        return allocated;
+    }
+
+    public Collection<MemoryMap> getAllocations() {
+        return allocations.values();
+    }
+
+    /**
+     * @return pages of the reservation not allocated, as <code>[base, base + size)</code> pieces
+     */
+    public List<MemoryMap> getFreeRanges() {
+        List<MemoryMap> list = new ArrayList<>();
+        long cursor = base;
+        for (MemoryMap map : allocations.values()) {
+            if (map.base > cursor) {
+                list.add(new MemoryMap(cursor, map.base - cursor, 0));
+            }
+            cursor = map.base + map.size;
+        }
+        if (cursor < base + size) {
+            list.add(new MemoryMap(cursor, base + size - cursor, 0));
+        }
+        return list;
+    }
+
+    public Reservation copy() {
+        Reservation copy = new Reservation(base, size);
+        copy.allocations.reset(allocations.values());
+        copy.top = top;
+        copy.highWater = highWater;
+        return copy;
+    }
+
+    /**
+     * rebuild from persisted allocations, all handed out pages count as dirty
+     */
+    public static Reservation restore(long base, long size, long highWater, Collection<MemoryMap> allocated) {
+        Reservation reservation = new Reservation(base, size);
+        reservation.allocations.reset(allocated);
+        reservation.top = allocated.isEmpty() ? base : reservation.allocations.getEnd();
+        reservation.highWater = Math.max(highWater, reservation.top);
+        return reservation;
+    }
+
+    @Override
+    public String toString() {
+        return "Reservation{" +
+                "base=0x" + Long.toHexString(base) +
+                ", size=0x" + Long.toHexString(size) +
+                ", allocations=" + allocations.size() +
+                ", top=0x" + Long.toHexString(top) +
+                '}';
+    }
+
+}
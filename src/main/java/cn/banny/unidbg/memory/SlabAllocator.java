@@ -0,0 +1,211 @@
+package cn.banny.unidbg.memory;
+
+import cn.banny.unidbg.Emulator;
+import cn.banny.unidbg.pointer.UnicornPointer;
+import com.sun.jna.Pointer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * host managed runtime allocations: blocks up to {@link #MAX_SIZE} bytes are carved from 64K slabs mapped once,
+ * one power of two size class per slab, freed blocks go to the free list of their class.
+ * Larger blocks are mapped with {@link MemoryBlockImpl} as before.
+ */
+public class SlabAllocator {
+
+    private static final Log log = LogFactory.getLog(SlabAllocator.class);
+
+    private static final int MIN_SIZE = 16;
+    public static final int MAX_SIZE = 2048;
+    private static final int SLAB_SIZE = 0x10000;
+
+    private final Memory memory;
+    private SizeClass[] classes;
+    private List<MemoryBlock> slabs = new ArrayList<>();
+    private int epoch;
+
+    public SlabAllocator(Memory memory) {
+        this.memory = memory;
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    public MemoryBlock malloc(int length) {
+        if (length > MAX_SIZE) {
+            return MemoryBlockImpl.alloc(memory, length);
+        }
+
+        int index = classIndex(length);
+        SizeClass sizeClass = classes[index];
+        UnicornPointer pointer;
+        if (sizeClass.freeCount > 0) {
+            pointer = sizeClass.free[--sizeClass.freeCount];
+            sizeClass.free[sizeClass.freeCount] = null;
+            memory.write(pointer.peer, new byte[sizeClass.size]); // runtime blocks read as zero like a fresh mapping
+        } else {
+            if (sizeClass.slab == null || sizeClass.offset + sizeClass.size > sizeClass.slab.getSize()) {
+                MemoryBlock slab = MemoryBlockImpl.alloc(memory, SLAB_SIZE);
+                slabs.add(slab);
+                sizeClass.slab = slab.getPointer();
+                sizeClass.offset = 0;
+                if (log.isDebugEnabled()) {
+                    log.debug("new slab: size=" + sizeClass.size + ", base=" + sizeClass.slab + ", slabs=" + slabs.size());
+                }
+            }
+            pointer = sizeClass.slab.share(sizeClass.offset, sizeClass.size);
+            sizeClass.offset += sizeClass.size;
+        }
+        return new SlabBlock(pointer, index, epoch);
+    }
+
+    private static int classIndex(int length) {
+        int size = Math.max(length, MIN_SIZE);
+        int rounded = Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(rounded / MIN_SIZE);
+    }
+
+    /**
+     * @return bytes mapped for slabs
+     */
+    public long getCapacity() {
+        return (long) slabs.size() * SLAB_SIZE;
+    }
+
+    public Object saveState() {
+        SizeClass[] copy = new SizeClass[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            copy[i] = classes[i].copy();
+        }
+        return new SlabState(copy, new ArrayList<>(slabs));
+    }
+
+    /**
+     * blocks allocated before the restore are not returned to the free lists when freed
+     */
+    public void restoreState(Object state) {
+        SlabState slabState = (SlabState) state;
+        this.classes = new SizeClass[slabState.classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = slabState.classes[i].copy();
+        }
+        this.slabs = new ArrayList<>(slabState.slabs);
+        epoch++;
+    }
+
+    public void writeImage(DataOutput out) throws IOException {
+        out.writeInt(slabs.size());
+        for (MemoryBlock slab : slabs) {
+            out.writeLong(slab.getPointer().peer);
+        }
+        out.writeInt(classes.length);
+        for (SizeClass sizeClass : classes) {
+            out.writeLong(sizeClass.slab == null ? 0 : sizeClass.slab.peer);
+            out.writeLong(sizeClass.offset);
+            out.writeInt(sizeClass.freeCount);
+            for (int i = 0; i < sizeClass.freeCount; i++) {
+                out.writeLong(sizeClass.free[i].peer);
+            }
+        }
+    }
+
+    /**
+     * the slabs are mapped by the image, blocks allocated before are not returned to the free lists when freed
+     */
+    public void readImage(DataInput in, Emulator emulator) throws IOException {
+        List<MemoryBlock> slabs = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            slabs.add(MemoryBlockImpl.mapped(memory, UnicornPointer.pointer(emulator, in.readLong()).setSize(SLAB_SIZE)));
+        }
+        SizeClass[] classes = new SizeClass[in.readInt()];
+        if (classes.length != this.classes.length) {
+            throw new IOException("size classes mismatch: " + classes.length);
+        }
+        for (int i = 0; i < classes.length; i++) {
+            SizeClass sizeClass = new SizeClass(MIN_SIZE << i);
+            long slab = in.readLong();
+            sizeClass.slab = slab == 0 ? null : UnicornPointer.pointer(emulator, slab).setSize(SLAB_SIZE);
+            sizeClass.offset = in.readLong();
+            for (int j = in.readInt(); j > 0; j--) {
+                sizeClass.push(UnicornPointer.pointer(emulator, in.readLong()).setSize(sizeClass.size));
+            }
+            classes[i] = sizeClass;
+        }
+        this.slabs = slabs;
+        this.classes = classes;
+        epoch++;
+    }
+
+    private static class SlabState {
+        final SizeClass[] classes;
+        final List<MemoryBlock> slabs;
+        SlabState(SizeClass[] classes, List<MemoryBlock> slabs) {
+            this.classes = classes;
+            this.slabs = slabs;
+        }
+    }
+
+    private static class SizeClass {
+        final int size;
+        UnicornPointer slab; // bump allocated
+        long offset;
+        UnicornPointer[] free = new UnicornPointer[16];
+        int freeCount;
+        SizeClass(int size) {
+            this.size = size;
+        }
+        void push(UnicornPointer pointer) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = pointer;
+        }
+        SizeClass copy() {
+            SizeClass copy = new SizeClass(size);
+            copy.slab = slab;
+            copy.offset = offset;
+            copy.free = Arrays.copyOf(free, Math.max(freeCount, 16));
+            copy.freeCount = freeCount;
+            return copy;
+        }
+    }
+
+    private class SlabBlock implements MemoryBlock {
+        private final UnicornPointer pointer;
+        private final int index;
+        private final int epoch;
+        private boolean freed;
+        SlabBlock(UnicornPointer pointer, int index, int epoch) {
+            this.pointer = pointer;
+            this.index = index;
+            this.epoch = epoch;
+        }
+        @Override
+        public UnicornPointer getPointer() {
+            return pointer;
+        }
+        @Override
+        public boolean isSame(Pointer pointer) {
+            return this.pointer.equals(pointer);
+        }
+        @Override
+        public void free(boolean runtime) {
+            if (freed) {
+                throw new IllegalStateException("double free: " + pointer);
+            }
+            freed = true;
+            if (epoch == SlabAllocator.this.epoch) {
+                classes[index].push(pointer);
+            }
+        }
+    }
+
+}
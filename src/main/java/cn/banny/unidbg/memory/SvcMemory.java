@@ -13,4 +13,9 @@ public interface SvcMemory {
 
     MemRegion findRegion(long addr);
 
+    /**
+     * @return bytes mapped for trampolines and allocations
+     */
+    long getMappedSize();
+
 }
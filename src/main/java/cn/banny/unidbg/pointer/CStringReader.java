@@ -0,0 +1,107 @@
+package cn.banny.unidbg.pointer;
+
+import unicorn.Unicorn;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * reads zero terminated guest strings in chunks ending at page boundaries, the terminator is searched on the host.
+ * The terminator is a single zero byte, so only ASCII compatible charsets such as UTF-8 or ISO-8859-1 are supported,
+ * UTF-16 and UTF-32 strings would end at the first zero byte.
+ * Between {@link #beginCache()} and {@link #endCache()}, while a syscall or svc is handled and the guest does not run,
+ * the last page read is kept for the next string.
+ */
+public class CStringReader {
+
+    private static final int PAGE_SIZE = 0x1000;
+    private static final long PAGE_MASK = PAGE_SIZE - 1;
+
+    private final Unicorn unicorn;
+
+    private boolean caching;
+    private long cachedPage = -1;
+    private byte[] cachedData;
+
+    public CStringReader(Unicorn unicorn) {
+        this.unicorn = unicorn;
+    }
+
+    public void beginCache() {
+        invalidate();
+        caching = true;
+    }
+
+    public void endCache() {
+        caching = false;
+        invalidate();
+    }
+
+    /**
+     * guest memory was written by the host
+     */
+    public void invalidate() {
+        cachedPage = -1;
+        cachedData = null;
+    }
+
+    /**
+     * @param charset ASCII compatible, decodes the bytes before the first zero byte
+     * @param maxLength bytes before the terminator
+     * @return <code>null</code> if no terminator is found within maxLength bytes
+     */
+    public String read(long address, Charset charset, int maxLength) {
+        long page = address & ~PAGE_MASK;
+        byte[] data = readPage(address, page);
+        int offset = caching ? (int) (address - page) : 0;
+        int end = indexOfZero(data, offset);
+        if (end != -1) { // terminated in the first page, no copy
+            return end - offset > maxLength ? null : new String(data, offset, end - offset, charset);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE * 2);
+        baos.write(data, offset, data.length - offset);
+        while (baos.size() <= maxLength) {
+            page += PAGE_SIZE;
+            data = readPage(page, page);
+            end = indexOfZero(data, 0);
+            if (end != -1) {
+                baos.write(data, 0, end);
+                return baos.size() > maxLength ? null : new String(baos.toByteArray(), charset);
+            }
+            baos.write(data, 0, data.length);
+        }
+        return null;
+    }
+
+    /**
+     * @return whole page when caching, otherwise from address to the end of the page
+     */
+    private byte[] readPage(long address, long page) {
+        if (!caching) {
+            return unicorn.mem_read(address, page + PAGE_SIZE - address);
+        }
+        if (page != cachedPage) {
+            cachedData = unicorn.mem_read(page, PAGE_SIZE);
+            cachedPage = page;
+        }
+        return cachedData;
+    }
+
+    private static int indexOfZero(byte[] data, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read without an emulator, nothing is cached
+     */
+    public static String read(Unicorn unicorn, long address, Charset charset, int maxLength) {
+        return new CStringReader(unicorn).read(address, charset, maxLength);
+    }
+
+}
@@ -11,16 +11,18 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import unicorn.Unicorn;
 
-import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 public class UnicornPointer extends Pointer {
 
     private static final Log log = LogFactory.getLog(UnicornPointer.class);
 
+    private static final int MAX_STRING_LENGTH = 0x10000;
+
     private final Emulator emulator;
     private final Unicorn unicorn;
     public final long peer;
@@ -39,6 +41,14 @@ public class UnicornPointer extends Pointer {
         this.pointerSize = pointerSize;
     }
 
+    final Emulator getEmulator() {
+        return emulator;
+    }
+
+    final int getPointerSize() {
+        return pointerSize;
+    }
+
     private long size;
 
     public UnicornPointer setSize(long size) {
@@ -78,45 +88,63 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public void read(long offset, short[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        getByteBuffer(offset, length * 2L).asShortBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, char[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        getByteBuffer(offset, length * 2L).asCharBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, int[] buf, int index, int length) {
-        for (int i = index; i < length; i++) {
-            buf[i] = getInt((i - index) * 4 + offset);
-        }
+        getByteBuffer(offset, length * 4L).asIntBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, long[] buf, int index, int length) {
-        for (int i = index; i < length; i++) {
-            buf[i] = getLong((i - index) * 8 + offset);
-        }
+        getByteBuffer(offset, length * 8L).asLongBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, float[] buf, int index, int length) {
-    	 for (int i = index; i < length; i++) {
-             buf[i] = getFloat((i - index) * 4 + offset);
-         }
+        getByteBuffer(offset, length * 4L).asFloatBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, double[] buf, int index, int length) {
-    	  for (int i = index; i < length; i++) {
-              buf[i] = getDouble((i - index) * 8 + offset);
-          }
+        getByteBuffer(offset, length * 8L).asDoubleBuffer().get(buf, index, length);
     }
 
     @Override
     public void read(long offset, Pointer[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = getByteBuffer(offset, (long) length * pointerSize);
+        for (int i = 0; i < length; i++) {
+            buf[index + i] = pointer(emulator, pointerSize == 4 ? buffer.getInt() & 0xffffffffL : buffer.getLong());
+        }
+    }
+
+    /**
+     * fill the remaining bytes of the buffer with one read, the position is advanced to the limit
+     */
+    public void readInto(long offset, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        buffer.put(getByteArray(offset, length));
+    }
+
+    /**
+     * write the remaining bytes of the buffer with one write, the position is advanced to the limit
+     */
+    public void writeFrom(long offset, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            write(offset, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+        } else {
+            byte[] data = new byte[length];
+            buffer.get(data);
+            write(offset, data, 0, length);
+        }
     }
 
     @Override
@@ -131,50 +159,77 @@ public class UnicornPointer extends Pointer {
             }
         }
 
+        byte[] data;
         if (index == 0 && buf.length == length) {
-            unicorn.mem_write(peer + offset, buf);
+            data = buf;
         } else {
-            byte[] data = new byte[length];
+            data = new byte[length];
             System.arraycopy(buf, index, data, 0, length);
+        }
+        Memory memory = emulator.getMemory();
+        if (memory != null) {
+            memory.write(peer + offset, data);
+        } else { // loader not created yet, nothing to track
+            emulator.getStringReader().invalidate();
             unicorn.mem_write(peer + offset, data);
         }
     }
 
     @Override
     public void write(long offset, short[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * 2);
+        buffer.asShortBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, char[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * 2);
+        buffer.asCharBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, int[] buf, int index, int length) {
-        for (int i = index; i < length; i++) {
-            setInt((i - index) * 4 + offset, buf[i]);
-        }
+        ByteBuffer buffer = allocateBuffer(length * 4);
+        buffer.asIntBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, long[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * 8);
+        buffer.asLongBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, float[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * 4);
+        buffer.asFloatBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, double[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * 8);
+        buffer.asDoubleBuffer().put(buf, index, length);
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
     public void write(long offset, Pointer[] buf, int index, int length) {
-        throw new AbstractMethodError();
+        ByteBuffer buffer = allocateBuffer(length * pointerSize);
+        for (int i = 0; i < length; i++) {
+            Pointer pointer = buf[index + i];
+            long value = pointer == null ? 0 : ((UnicornPointer) pointer).peer;
+            if (pointerSize == 4) {
+                buffer.putInt((int) value);
+            } else {
+                buffer.putLong(value);
+            }
+        }
+        write(offset, buffer.array(), 0, buffer.capacity());
     }
 
     @Override
@@ -184,22 +239,28 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public char getChar(long offset) {
-        return getByteBuffer(offset, 2).getChar();
+        return (char) getShort(offset);
     }
 
     @Override
     public short getShort(long offset) {
-        return getByteBuffer(offset, 2).getShort();
+        byte[] data = getByteArray(offset, 2);
+        return (short) ((data[0] & 0xff) | (data[1] << 8));
     }
 
     @Override
     public int getInt(long offset) {
-        return getByteBuffer(offset, 4).getInt();
+        return toInt(getByteArray(offset, 4), 0);
     }
 
     @Override
     public long getLong(long offset) {
-        return getByteBuffer(offset, 8).getLong();
+        byte[] data = getByteArray(offset, 8);
+        return (toInt(data, 0) & 0xffffffffL) | ((long) toInt(data, 4) << 32);
+    }
+
+    private static int toInt(byte[] data, int index) {
+        return (data[index] & 0xff) | (data[index + 1] & 0xff) << 8 | (data[index + 2] & 0xff) << 16 | data[index + 3] << 24;
     }
 
     @Override
@@ -209,12 +270,12 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public float getFloat(long offset) {
-        return getByteBuffer(offset, 4).getFloat();
+        return Float.intBitsToFloat(getInt(offset));
     }
 
     @Override
     public double getDouble(long offset) {
-        return getByteBuffer(offset, 8).getDouble();
+        return Double.longBitsToDouble(getLong(offset));
     }
 
     @Override
@@ -234,9 +295,7 @@ public class UnicornPointer extends Pointer {
     @Override
     public int[] getIntArray(long offset, int arraySize) {
         int[] array = new int[arraySize];
-        for (int i = 0; i < arraySize; i++) {
-            array[i] = getInt(offset + i * 4);
-        }
+        read(offset, array, 0, arraySize);
         return array;
     }
 
@@ -257,41 +316,18 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public String getString(long offset, String encoding) {
-        long addr = peer + offset;
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while (true) {
-            byte[] data = unicorn.mem_read(addr, 0x100);
-            int length = data.length;
-            for (int i = 0; i < data.length; i++) {
-                if (data[i] == 0) {
-                    length = i;
-                    break;
-                }
-            }
-            baos.write(data, 0, length);
-            addr += length;
-
-            if (length < data.length) { // reach zero
-                break;
-            }
-
-            if (baos.size() > 0x10000) { // 64k
-                throw new IllegalStateException("buffer overflow");
-            }
-
-            if (size > 0 && offset + baos.size() > size) {
+        int maxLength = size > 0 ? (int) Math.min(size - offset, MAX_STRING_LENGTH) : MAX_STRING_LENGTH;
+        String ret = emulator.getStringReader().read(peer + offset, Charset.forName(encoding), maxLength);
+        if (ret == null) {
+            if (size > 0 && size - offset <= MAX_STRING_LENGTH) {
                 throw new InvalidMemoryAccessException();
             }
+            throw new IllegalStateException("buffer overflow");
         }
-
-        try {
-            String ret = baos.toString(encoding);
-            log.debug("getString pointer=" + this + ", size=" + baos.size() + ", encoding=" + encoding + ", ret=" + ret);
-            return ret;
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
+        if (log.isDebugEnabled()) {
+            log.debug("getString pointer=" + this + ", length=" + ret.length() + ", encoding=" + encoding + ", ret=" + ret);
         }
+        return ret;
     }
 
     private ByteBuffer allocateBuffer(int size) {
@@ -312,22 +348,26 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public void setShort(long offset, short value) {
-        write(offset, allocateBuffer(2).putShort(value).array(), 0, 2);
+        write(offset, new byte[] { (byte) value, (byte) (value >> 8) }, 0, 2);
     }
 
     @Override
     public void setChar(long offset, char value) {
-        write(offset, allocateBuffer(2).putChar(value).array(), 0, 2);
+        setShort(offset, (short) value);
     }
 
     @Override
     public void setInt(long offset, int value) {
-        write(offset, allocateBuffer(4).putInt(value).array(), 0, 4);
+        write(offset, new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24) }, 0, 4);
     }
 
     @Override
     public void setLong(long offset, long value) {
-        write(offset, allocateBuffer(8).putLong(value).array(), 0, 8);
+        byte[] data = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            data[i] = (byte) (value >>> (i * 8));
+        }
+        write(offset, data, 0, 8);
     }
 
     @Override
@@ -337,12 +377,12 @@ public class UnicornPointer extends Pointer {
 
     @Override
     public void setFloat(long offset, float value) {
-        write(offset, allocateBuffer(4).putFloat(value).array(), 0, 4);
+        setInt(offset, Float.floatToRawIntBits(value));
     }
 
     @Override
     public void setDouble(long offset, double value) {
-        write(offset, allocateBuffer(8).putDouble(value).array(), 0, 8);
+        setLong(offset, Double.doubleToRawLongBits(value));
     }
 
     @Override
@@ -1,8 +1,8 @@
 package cn.banny.unidbg.pointer;
 
 import cn.banny.unidbg.AbstractEmulator;
-import com.sun.jna.Pointer;
-import com.sun.jna.Structure;
+import cn.banny.unidbg.Emulator;
+import com.sun.jna.*;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -12,22 +12,88 @@ public abstract class UnicornStructure extends Structure {
     /** Placeholder pointer to help avoid auto-allocation of memory where a
      * Structure needs a valid pointer but want to avoid actually reading from it.
      */
-    private static final Pointer PLACEHOLDER_MEMORY = new Pointer(0) {
+    private static class PlaceholderMemory extends Pointer {
+        private final int pointerSize;
+        PlaceholderMemory(int pointerSize) {
+            super(0);
+            this.pointerSize = pointerSize;
+        }
         @Override
         public Pointer share(long offset, long sz) { return this; }
-    };
+    }
+
+    private static final TypeMapper TYPE_MAPPER_32 = createTypeMapper(4);
+    private static final TypeMapper TYPE_MAPPER_64 = createTypeMapper(8);
+
+    /**
+     * pointer fields take the pointer size of the emulator owning the memory.
+     * The type mapper is part of the jna layout cache key, so 32-bit and 64-bit layouts of one class do not mix.
+     */
+    private static TypeMapper createTypeMapper(final int pointerSize) {
+        DefaultTypeMapper mapper = new DefaultTypeMapper();
+        mapper.addTypeConverter(Pointer.class, new TypeConverter() {
+            @Override
+            public Object toNative(Object value, ToNativeContext context) {
+                long peer = value instanceof UnicornPointer ? ((UnicornPointer) value).peer : Pointer.nativeValue((Pointer) value);
+                if (pointerSize == 4) {
+                    return (int) peer;
+                } else {
+                    return peer;
+                }
+            }
+            @Override
+            public Object fromNative(Object nativeValue, FromNativeContext context) {
+                UnicornPointer memory = (UnicornPointer) ((StructureReadContext) context).getStructure().getPointer();
+                return UnicornPointer.pointer(memory.getEmulator(), (Number) nativeValue);
+            }
+            @Override
+            public Class<?> nativeType() {
+                return pointerSize == 4 ? Integer.class : Long.class;
+            }
+        });
+        return mapper;
+    }
+
+    private static TypeMapper getTypeMapper(Pointer p) {
+        int pointerSize;
+        if (p instanceof UnicornPointer) {
+            pointerSize = ((UnicornPointer) p).getPointerSize();
+        } else if (p instanceof PlaceholderMemory) {
+            pointerSize = ((PlaceholderMemory) p).pointerSize;
+        } else {
+            pointerSize = getDefaultPointerSize();
+        }
+        return pointerSize == 4 ? TYPE_MAPPER_32 : TYPE_MAPPER_64;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int getDefaultPointerSize() {
+        Integer pointerSize = AbstractEmulator.POINTER_SIZE.get();
+        return pointerSize == null ? Native.POINTER_SIZE : pointerSize;
+    }
+
+    public static int calculateSize(Emulator emulator, Class<? extends UnicornStructure> type) {
+        return calculateSize(type, emulator.getPointerSize());
+    }
 
+    /**
+     * pointer size is taken from {@link AbstractEmulator#POINTER_SIZE}, use {@link #calculateSize(Emulator, Class)}
+     */
     public static int calculateSize(Class<? extends UnicornStructure> type) {
+        return calculateSize(type, getDefaultPointerSize());
+    }
+
+    private static int calculateSize(Class<? extends UnicornStructure> type, int pointerSize) {
         try {
             Constructor<? extends UnicornStructure> constructor = type.getConstructor(Pointer.class);
-            return constructor.newInstance(PLACEHOLDER_MEMORY).calculateSize(false);
+            return constructor.newInstance(new PlaceholderMemory(pointerSize)).calculateSize(false);
         } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
             throw new IllegalStateException(e);
         }
     }
 
     protected UnicornStructure(Pointer p) {
-        super(p);
+        super(p, ALIGN_DEFAULT, getTypeMapper(p));
 
         checkPointer(p);
     }
@@ -41,34 +107,20 @@ public abstract class UnicornStructure extends Structure {
         }
     }
 
-    @Override
-    protected int getNativeSize(Class<?> nativeType, Object value) {
-        if (Pointer.class.isAssignableFrom(nativeType)) {
-            return AbstractEmulator.POINTER_SIZE.get();
-        }
-
-        return super.getNativeSize(nativeType, value);
-    }
-
-    @Override
-    protected int getNativeAlignment(Class<?> type, Object value, boolean isFirstElement) {
-        if (Pointer.class.isAssignableFrom(type)) {
-            return AbstractEmulator.POINTER_SIZE.get();
-        }
-
-        return super.getNativeAlignment(type, value, isFirstElement);
-    }
-
     private boolean isPlaceholderMemory(Pointer p) {
-        return "native@0x0".equals(p.toString());
+        return p instanceof PlaceholderMemory || "native@0x0".equals(p.toString());
     }
 
     public void pack() {
-        super.write();
+        if (!isPlaceholderMemory(getPointer())) {
+            super.write();
+        }
     }
 
     public void unpack() {
-        super.read();
+        if (!isPlaceholderMemory(getPointer())) {
+            super.read();
+        }
     }
 
 }
@@ -0,0 +1,121 @@
+package cn.banny.unidbg.server;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * pipelining client of {@link RpcServer}, thread safe.
+ * A BUSY response fails the future with {@link RejectedExecutionException}, an error response with {@link IOException}.
+ */
+public class RpcClient implements Closeable {
+
+    private static final Log log = LogFactory.getLog(RpcClient.class);
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile IOException closed;
+
+    public RpcClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(in);
+            }
+        }, "unidbg-rpc-client-" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @param args Integer, Long, Boolean, byte[] or String
+     */
+    public CompletableFuture<Object> call(String function, Object... args) {
+        int id = nextId.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        pending.put(id, future);
+        if (closed != null && pending.remove(id) != null) {
+            future.completeExceptionally(closed);
+            return future;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(baos);
+            payload.writeInt(id);
+            payload.writeUTF(function);
+            payload.writeByte(args.length);
+            for (Object arg : args) {
+                RpcCodec.writeValue(payload, arg);
+            }
+            synchronized (out) {
+                RpcCodec.writeFrame(out, baos);
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            pending.remove(id);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void read(DataInputStream in) {
+        IOException cause = null;
+        try {
+            byte[] frame;
+            while ((frame = RpcCodec.readFrame(in, Integer.MAX_VALUE)) != null) {
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame));
+                CompletableFuture<Object> future = pending.remove(payload.readInt());
+                if (future == null) {
+                    continue;
+                }
+                byte status = payload.readByte();
+                switch (status) {
+                    case RpcCodec.STATUS_OK:
+                        future.complete(RpcCodec.readValue(payload));
+                        break;
+                    case RpcCodec.STATUS_BUSY:
+                        future.completeExceptionally(new RejectedExecutionException(payload.readUTF()));
+                        break;
+                    default:
+                        future.completeExceptionally(new IOException(payload.readUTF()));
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+            log.debug("read response failed", e);
+        } finally {
+            closed = new IOException("connection closed", cause);
+            for (CompletableFuture<Object> future : pending.values()) {
+                future.completeExceptionally(closed);
+            }
+            pending.clear();
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(socket);
+    }
+
+}
@@ -0,0 +1,99 @@
+package cn.banny.unidbg.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * big endian frames: <code>int length</code> followed by length bytes of payload.
+ * <pre>
+ * request:  int id, UTF function name, byte argc, argc values
+ * response: int id, byte status, value if OK else UTF message
+ * value:    byte tag: 'N' null, 'I' int, 'J' long, 'B' int length + bytes, 'S' int length + UTF-8 bytes
+ * </pre>
+ */
+final class RpcCodec {
+
+    static final char TAG_NULL = 'N';
+    static final char TAG_INT = 'I';
+    static final char TAG_LONG = 'J';
+    static final char TAG_BYTES = 'B';
+    static final char TAG_STRING = 'S';
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_BUSY = 2;
+
+    /**
+     * @return payload, <code>null</code> at end of stream
+     */
+    static byte[] readFrame(DataInputStream in, int maxFrameSize) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > maxFrameSize) {
+            throw new IOException("frame size: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    static void writeFrame(DataOutputStream out, ByteArrayOutputStream payload) throws IOException {
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            byte[] data = (byte[]) value;
+            out.writeByte(TAG_BYTES);
+            out.writeInt(data.length);
+            out.write(data);
+        } else if (value instanceof String) {
+            byte[] data = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(TAG_STRING);
+            out.writeInt(data.length);
+            out.write(data);
+        } else {
+            throw new IllegalArgumentException("unsupported value: " + value.getClass());
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_BYTES:
+            case TAG_STRING:
+                int length = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    throw new IOException("value length: " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                return tag == TAG_BYTES ? data : new String(data, StandardCharsets.UTF_8);
+            default:
+                throw new IOException("value tag: " + tag);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package cn.banny.unidbg.server;
+
+import cn.banny.unidbg.Emulator;
+import cn.banny.unidbg.NativeCallHandle;
+import cn.banny.unidbg.linux.android.dvm.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * static JNI method exposed by {@link RpcServer}, e.g. <code>com/bytedance/frameworks/core/encrypt/TTEncryptUtils->ttEncrypt([BI)[B</code>
+ * Supported types: Z, B, S, C, I, J, [B and Ljava/lang/String;
+ */
+public class RpcFunction {
+
+    public final String name;
+    public final String library;
+    public final String className;
+    public final String method;
+
+    private final char[] argTypes;
+    private final NativeCallHandle.Type[] jniTypes;
+    private final char returnType;
+
+    /**
+     * @param name called by clients
+     * @param library route: the emulators loading the library
+     * @param signature <code>className->method(args)return</code>
+     */
+    RpcFunction(String name, String library, String signature) {
+        int index = signature.indexOf("->");
+        if (index == -1) {
+            throw new IllegalArgumentException("signature: " + signature);
+        }
+        this.name = name;
+        this.library = library;
+        this.className = signature.substring(0, index);
+        this.method = signature.substring(index + 2);
+
+        int open = method.indexOf('(');
+        int close = method.indexOf(')');
+        if (open == -1 || close < open) {
+            throw new IllegalArgumentException("signature: " + signature);
+        }
+        List<Character> types = new ArrayList<>();
+        String args = method.substring(open + 1, close);
+        for (int i = 0; i < args.length(); ) {
+            String type = nextType(args, i);
+            types.add(typeOf(type));
+            i += type.length();
+        }
+        this.argTypes = new char[types.size()];
+        this.jniTypes = new NativeCallHandle.Type[argTypes.length];
+        for (int i = 0; i < argTypes.length; i++) {
+            argTypes[i] = types.get(i);
+            jniTypes[i] = argTypes[i] == RpcCodec.TAG_LONG ? NativeCallHandle.Type.LONG : NativeCallHandle.Type.WORD;
+        }
+        String ret = method.substring(close + 1);
+        this.returnType = "V".equals(ret) ? 'V' : typeOf(ret);
+    }
+
+    private static String nextType(String args, int i) {
+        char c = args.charAt(i);
+        if (c == '[') {
+            return "[" + nextType(args, i + 1);
+        }
+        if (c == 'L') {
+            return args.substring(i, args.indexOf(';', i) + 1);
+        }
+        return String.valueOf(c);
+    }
+
+    /**
+     * @return wire tag of the type
+     */
+    private static char typeOf(String type) {
+        switch (type) {
+            case "Z":
+            case "B":
+            case "S":
+            case "C":
+            case "I":
+                return RpcCodec.TAG_INT;
+            case "J":
+                return RpcCodec.TAG_LONG;
+            case "[B":
+                return RpcCodec.TAG_BYTES;
+            case "Ljava/lang/String;":
+                return RpcCodec.TAG_STRING;
+            default:
+                throw new UnsupportedOperationException("type: " + type);
+        }
+    }
+
+    public int getArgCount() {
+        return argTypes.length;
+    }
+
+    /**
+     * call on the thread owning the emulator, the dalvik vm was created by the factory
+     */
+    Object invoke(Emulator emulator, Object[] args) {
+        if (args.length != argTypes.length) {
+            throw new IllegalArgumentException(name + " expects " + argTypes.length + " args: " + args.length);
+        }
+        VM vm = emulator.getDalvikVM();
+        if (vm == null) {
+            throw new IllegalStateException("dalvik vm not created: " + library);
+        }
+        DvmClass dvmClass = vm.resolveClass(className);
+        // NativeCallHandle passes a jlong in a register pair or an aligned stack slot on arm32
+        try (NativeCallHandle handle = dvmClass.createStaticCallHandle(emulator, method, jniTypes)) {
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                if (arg == null) {
+                    handle.setLong(i, 0);
+                    continue;
+                }
+                switch (argTypes[i]) {
+                    case RpcCodec.TAG_INT:
+                        handle.setInt(i, ((Number) arg).intValue());
+                        break;
+                    case RpcCodec.TAG_LONG:
+                        handle.setLong(i, ((Number) arg).longValue());
+                        break;
+                    case RpcCodec.TAG_BYTES:
+                        handle.set(i, new ByteArray((byte[]) arg));
+                        break;
+                    case RpcCodec.TAG_STRING:
+                        handle.set(i, new StringObject(vm, (String) arg));
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+
+            long ret = handle.call();
+            switch (returnType) {
+                case 'V':
+                    return null;
+                case RpcCodec.TAG_INT:
+                    return (int) ret;
+                case RpcCodec.TAG_LONG:
+                    return ret;
+                default:
+                    DvmObject<?> object = vm.getObject(ret & 0xffffffffL);
+                    return object == null ? null : object.getValue();
+            }
+        } finally {
+            vm.deleteLocalRefs();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + library + ":" + className + "->" + method;
+    }
+
+}
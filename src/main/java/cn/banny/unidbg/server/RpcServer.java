@@ -0,0 +1,282 @@
+package cn.banny.unidbg.server;
+
+import cn.banny.unidbg.Emulator;
+import cn.banny.unidbg.EmulatorFactory;
+import cn.banny.unidbg.EmulatorPool;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * serves registered static JNI methods to local processes over loopback TCP, see {@link RpcCodec} for the frame layout.
+ * <pre>
+ * RpcServer server = new RpcServer(0);
+ * server.addLibrary("libcms.so", factory, 4, 256);
+ * server.register("ttEncrypt", "libcms.so", "com/bytedance/frameworks/core/encrypt/TTEncryptUtils->ttEncrypt([BI)[B");
+ * server.start();
+ * </pre>
+ * Every library has its own emulator pool and worker threads. Requests are pipelined: a connection keeps reading
+ * while earlier requests run and responses are written as they complete, matched by request id.
+ * A connection stops reading when it has maxInFlight requests running, a library answers BUSY when its queue is full.
+ */
+public class RpcServer implements Closeable {
+
+    private static final Log log = LogFactory.getLog(RpcServer.class);
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Route<?>> routes = new ConcurrentHashMap<>();
+    private final Map<String, RpcFunction> functions = new ConcurrentHashMap<>();
+    private final ExecutorService connectionExecutor;
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private int maxInFlight = 64;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private volatile boolean closed;
+
+    /**
+     * @param port 0 means any free port, see {@link #getPort()}
+     */
+    public RpcServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger threadId = new AtomicInteger();
+        this.connectionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unidbg-rpc-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * requests read ahead per connection before waiting for responses
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @param poolSize emulators and worker threads
+     * @param queueCapacity requests waiting for a worker before answering BUSY
+     */
+    public <T extends Emulator> void addLibrary(String library, EmulatorFactory<T> factory, int poolSize, int queueCapacity) {
+        Route<T> route = new Route<>(library, new EmulatorPool<>(factory, poolSize), poolSize, queueCapacity);
+        if (routes.put(library, route) != null) {
+            throw new IllegalStateException("library already added: " + library);
+        }
+    }
+
+    /**
+     * @param signature static native method: <code>className->method(args)return</code>
+     */
+    public RpcFunction register(String name, String library, String signature) {
+        if (!routes.containsKey(library)) {
+            throw new IllegalArgumentException("library not added: " + library);
+        }
+        RpcFunction function = new RpcFunction(name, library, signature);
+        if (functions.put(name, function) != null) {
+            throw new IllegalStateException("function already registered: " + name);
+        }
+        return function;
+    }
+
+    /**
+     * warm up the emulator pools and accept connections
+     */
+    public void start() {
+        for (Route<?> route : routes.values()) {
+            route.pool.warmUp();
+        }
+        connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        sockets.add(socket);
+                        connectionExecutor.execute(new Connection(socket));
+                    } catch (IOException e) {
+                        if (!closed) {
+                            log.warn("accept failed", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private class Route<T extends Emulator> {
+        final String library;
+        final EmulatorPool<T> pool;
+        final ThreadPoolExecutor executor;
+        Route(String library, EmulatorPool<T> pool, int poolSize, int queueCapacity) {
+            this.library = library;
+            this.pool = pool;
+            final AtomicInteger threadId = new AtomicInteger();
+            final String prefix = "unidbg-rpc-" + library + "-";
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, prefix + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        Object invoke(RpcFunction function, Object[] args) throws InterruptedException {
+            T emulator = pool.lease();
+            boolean success = false;
+            try {
+                Object result = function.invoke(emulator, args);
+                success = true;
+                return result;
+            } finally {
+                if (success) {
+                    pool.release(emulator);
+                } else {
+                    pool.invalidate(emulator);
+                }
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final int permits = maxInFlight;
+        private final Semaphore inFlight = new Semaphore(permits);
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] frame;
+                while (!closed) {
+                    inFlight.acquire(); // released by respond
+                    if ((frame = RpcCodec.readFrame(in, maxFrameSize)) == null) {
+                        inFlight.release();
+                        break;
+                    }
+                    dispatch(frame);
+                }
+                inFlight.acquire(permits); // wait for running requests before closing
+            } catch (SocketException e) {
+                log.debug("connection closed", e);
+            } catch (IOException e) {
+                log.warn("read request failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sockets.remove(socket);
+                IOUtils.closeQuietly(socket);
+            }
+        }
+        private void dispatch(byte[] frame) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            final int id = in.readInt();
+            final RpcFunction function = functions.get(in.readUTF());
+            final Object[] args = new Object[in.readUnsignedByte()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = RpcCodec.readValue(in);
+            }
+            if (function == null) {
+                respond(id, RpcCodec.STATUS_ERROR, "function not registered");
+                return;
+            }
+            if (args.length != function.getArgCount()) {
+                respond(id, RpcCodec.STATUS_ERROR, function.name + " expects " + function.getArgCount() + " args: " + args.length);
+                return;
+            }
+
+            final Route<?> route = routes.get(function.library);
+            try {
+                route.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            respond(id, RpcCodec.STATUS_OK, route.invoke(function, args));
+                        } catch (Throwable t) {
+                            log.warn("invoke failed: " + function, t);
+                            respond(id, RpcCodec.STATUS_ERROR, String.valueOf(t));
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                respond(id, RpcCodec.STATUS_BUSY, "library busy: " + route.library);
+            }
+        }
+        private void respond(int id, byte status, Object value) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(baos);
+                payload.writeInt(id);
+                payload.writeByte(status);
+                if (status == RpcCodec.STATUS_OK) {
+                    RpcCodec.writeValue(payload, value);
+                } else {
+                    payload.writeUTF((String) value);
+                }
+                synchronized (out) {
+                    RpcCodec.writeFrame(out, baos);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.debug("write response failed", e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    public EmulatorPool<?> getPool(String library) {
+        Route<?> route = routes.get(library);
+        return route == null ? null : route.pool;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        IOUtils.closeQuietly(serverSocket);
+        for (Socket socket : sockets) {
+            IOUtils.closeQuietly(socket);
+        }
+        connectionExecutor.shutdownNow();
+        for (Route<?> route : routes.values()) {
+            route.executor.shutdownNow();
+            try {
+                route.executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            route.pool.close();
+        }
+    }
+
+}
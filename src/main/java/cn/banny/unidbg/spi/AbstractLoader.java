@@ -5,9 +5,17 @@ import cn.banny.unidbg.arm.ARM;
 import cn.banny.unidbg.arm.ARMEmulator;
 import cn.banny.unidbg.file.FileIO;
 import cn.banny.unidbg.hook.HookListener;
+import cn.banny.unidbg.memory.AddressSpace;
+import cn.banny.unidbg.memory.ArgumentArena;
+import cn.banny.unidbg.memory.DirtyPageTracker;
+import cn.banny.unidbg.memory.MemRegion;
 import cn.banny.unidbg.memory.Memory;
 import cn.banny.unidbg.memory.MemoryBlock;
 import cn.banny.unidbg.memory.MemoryMap;
+import cn.banny.unidbg.memory.MemoryStats;
+import cn.banny.unidbg.memory.Reservation;
+import cn.banny.unidbg.memory.SlabAllocator;
+import cn.banny.unidbg.memory.SvcMemory;
 import cn.banny.unidbg.pointer.UnicornPointer;
 import cn.banny.unidbg.unix.UnixEmulator;
 import cn.banny.unidbg.unix.UnixSyscallHandler;
@@ -18,15 +26,18 @@ import org.apache.commons.logging.LogFactory;
 import unicorn.Arm64Const;
 import unicorn.ArmConst;
 import unicorn.Unicorn;
+import unicorn.UnicornConst;
 import unicorn.WriteHook;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-public abstract class AbstractLoader implements Memory, Loader {
+public abstract class AbstractLoader implements Memory, Loader, Snapshotable {
 
     private static final Log log = LogFactory.getLog(AbstractLoader.class);
 
@@ -36,19 +47,44 @@ public abstract class AbstractLoader implements Memory, Loader {
 
     protected long sp;
     protected long mmapBaseAddress;
-    protected final Map<Long, MemoryMap> memoryMap = new TreeMap<>();
+    protected final AddressSpace addressSpace = new AddressSpace();
+    protected final DirtyPageTracker dirtyPageTracker;
+
+    protected MemoryStats memoryStats = new MemoryStats();
+    private final AddressSpace fileMappings = new AddressSpace();
+
+    private static final long RESERVATION_SIZE = 0x400000;
+    private static final int RESERVATION_THRESHOLD = 0x40000;
+    private static final int RESERVATION_PROT = UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE;
+
+    private boolean coalesceMappings;
+    private NavigableMap<Long, Reservation> reservations = new TreeMap<>();
+
+    private final NavigableMap<Long, Module> moduleBaseIndex = new TreeMap<>();
+    private final Map<String, Module> moduleNameIndex = new HashMap<>();
+    private final Map<String, Module> modulePathIndex = new HashMap<>();
 
     public AbstractLoader(Emulator emulator, UnixSyscallHandler syscallHandler) {
         this.unicorn = emulator.getUnicorn();
         this.emulator = emulator;
         this.syscallHandler = syscallHandler;
+        this.dirtyPageTracker = new DirtyPageTracker(unicorn);
 
         mmapBaseAddress = MMAP_BASE;
     }
 
     @Override
     public Collection<MemoryMap> getMemoryMap() {
-        return memoryMap.values();
+        return addressSpace.values();
+    }
+
+    /**
+     * inside a reservation the allocation with its own protection is returned, <code>null</code> for free reserved pages
+     */
+    @Override
+    public MemoryMap findMemoryMap(long address) {
+        Reservation reservation = findReservation(address, 1);
+        return reservation == null ? addressSpace.find(address) : reservation.find(address);
     }
 
     @Override
@@ -67,27 +103,15 @@ public abstract class AbstractLoader implements Memory, Loader {
 //    private static final int MAP_ANONYMOUS =	0x20;		/* don't use a file */
 
     protected final long allocateMapAddress(long mask, long length) {
-        Map.Entry<Long, MemoryMap> lastEntry = null;
-        for (Map.Entry<Long, MemoryMap> entry : memoryMap.entrySet()) {
-            if (lastEntry == null) {
-                lastEntry = entry;
-            } else {
-                MemoryMap map = lastEntry.getValue();
-                long mmapAddress = map.base + map.size;
-                if (mmapAddress + length <= entry.getKey() && (mmapAddress & mask) == 0) {
-                    return mmapAddress;
-                } else {
-                    lastEntry = entry;
-                }
-            }
+        long mmapAddress = addressSpace.findFree(length, mask);
+        if (mmapAddress != -1) {
+            return mmapAddress;
         }
-        if (lastEntry != null) {
-            MemoryMap map = lastEntry.getValue();
-            long mmapAddress = map.base + map.size;
-            if (mmapAddress < mmapBaseAddress) {
-                log.debug("allocateMapAddress mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress) + ", mmapAddress=0x" + Long.toHexString(mmapAddress));
-                mmapBaseAddress = mmapAddress;
-            }
+
+        long end = addressSpace.getEnd();
+        if (end != 0 && end < mmapBaseAddress) {
+            log.debug("allocateMapAddress mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress) + ", mmapAddress=0x" + Long.toHexString(end));
+            mmapBaseAddress = end;
         }
 
         long addr = mmapBaseAddress;
@@ -98,25 +122,128 @@ public abstract class AbstractLoader implements Memory, Loader {
         return addr;
     }
 
+    @Override
+    public void setCoalesceMappings(boolean coalesceMappings) {
+        this.coalesceMappings = coalesceMappings;
+    }
+
+    /**
+     * serve a small read write anonymous mapping from a reservation, mapping a new one when all are full
+     */
+    private long mmapReserved(int aligned, int prot) {
+        for (Reservation reservation : reservations.values()) {
+            long dirty = reservation.getHighWater();
+            long addr = reservation.allocate(aligned, prot);
+            if (addr != -1) {
+                if (addr < dirty) { // reused pages must read as zero
+                    int length = (int) Math.min(aligned, dirty - addr);
+                    write(addr, new byte[length]);
+                }
+                return addr;
+            }
+        }
+
+        long base = allocateMapAddress(0, RESERVATION_SIZE);
+        unicorn.mem_map(base, RESERVATION_SIZE, RESERVATION_PROT);
+        addressSpace.add(new MemoryMap(base, RESERVATION_SIZE, RESERVATION_PROT));
+        Reservation reservation = new Reservation(base, RESERVATION_SIZE);
+        reservations.put(base, reservation);
+        if (log.isDebugEnabled()) {
+            log.debug("mmapReserved new " + reservation + ", reservations=" + reservations.size());
+        }
+        return reservation.allocate(aligned, prot);
+    }
+
+    /**
+     * @return the reservation containing the whole range, <code>null</code> if none
+     */
+    private Reservation findReservation(long start, long length) {
+        Map.Entry<Long, Reservation> entry = reservations.floorEntry(start);
+        return entry != null && entry.getValue().contains(start, length) ? entry.getValue() : null;
+    }
+
+    /**
+     * give up the reservations overlapping the range: free pages are unmapped, allocations become plain mappings
+     */
+    private void retireReservations(long start, long length) {
+        Long from = reservations.floorKey(start);
+        List<Reservation> overlapping = new ArrayList<>();
+        for (Reservation reservation : reservations.subMap(from == null ? start : from, true, start + length, false).values()) {
+            if (reservation.overlaps(start, length)) {
+                overlapping.add(reservation);
+            }
+        }
+        for (Reservation reservation : overlapping) {
+            releaseReservation(reservation);
+        }
+    }
+
+    private void releaseReservation(Reservation reservation) {
+        for (MemoryMap free : reservation.getFreeRanges()) {
+            dirtyPageTracker.markProtectionChanged(free.base, free.size);
+            unicorn.mem_unmap(free.base, free.size);
+            addressSpace.remove(free.base, free.size);
+        }
+        reservations.remove(reservation.base);
+        if (log.isDebugEnabled()) {
+            log.debug("releaseReservation " + reservation + ", reservations=" + reservations.size());
+        }
+    }
+
+    /**
+     * unmap whatever is mapped in the range of a MAP_FIXED request
+     */
+    protected final void unmapFixed(long start, long aligned) {
+        retireReservations(start, aligned);
+        List<MemoryMap> removed = addressSpace.remove(start, aligned);
+        for (MemoryMap map : removed) {
+            dirtyPageTracker.markProtectionChanged(map.base, map.size);
+            unicorn.mem_unmap(map.base, map.size);
+        }
+        onUnmapped(removed);
+        if (log.isDebugEnabled() && !removed.isEmpty()) {
+            log.debug("unmapFixed start=0x" + Long.toHexString(start) + ", aligned=0x" + Long.toHexString(aligned) + ", removed=" + removed);
+        }
+    }
+
+    public static final int MAP_FIXED = 0x10;
     public static final int MAP_ANONYMOUS = 0x20;
 
     @Override
     public long mmap2(long start, int length, int prot, int flags, int fd, int offset) {
         int aligned = (int) ARM.alignSize(length, emulator.getPageAlign());
+        EmulationStats stats = emulator.getRunningStats();
+        if (stats != null) {
+            stats.onMap(aligned);
+        }
+
+        boolean fixed = (flags & MAP_FIXED) != 0 && start != 0;
+        if (fixed) {
+            if (start % emulator.getPageAlign() != 0) {
+                throw new IllegalStateException("mmap2 MAP_FIXED start=0x" + Long.toHexString(start));
+            }
+            unmapFixed(start, aligned);
+        }
 
         if (((flags & MAP_ANONYMOUS) != 0) || (start == 0 && fd <= 0 && offset == 0)) {
-            long addr = allocateMapAddress(0, aligned);
+            memoryStats.onMap(MemoryStats.Category.ANONYMOUS, aligned);
+            if (coalesceMappings && !fixed && prot == RESERVATION_PROT && aligned <= RESERVATION_THRESHOLD) {
+                long addr = mmapReserved(aligned, prot);
+                log.debug("mmap2 reserved addr=0x" + Long.toHexString(addr) + ", aligned=" + aligned);
+                return addr;
+            }
+            long addr = fixed ? start : allocateMapAddress(0, aligned);
             log.debug("mmap2 addr=0x" + Long.toHexString(addr) + ", mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress) + ", start=" + start + ", fd=" + fd + ", offset=" + offset + ", aligned=" + aligned);
             unicorn.mem_map(addr, aligned, prot);
-            memoryMap.put(addr, new MemoryMap(addr, aligned, prot));
+            addressSpace.add(new MemoryMap(addr, aligned, prot));
             return addr;
         }
         try {
             FileIO file;
-            if (start == 0 && fd > 0 && (file = syscallHandler.fdMap.get(fd)) != null) {
-                long addr = allocateMapAddress(0, aligned);
+            if ((start == 0 || fixed) && fd > 0 && (file = syscallHandler.fdMap.get(fd)) != null) {
+                long addr = fixed ? start : allocateMapAddress(0, aligned);
                 log.debug("mmap2 addr=0x" + Long.toHexString(addr) + ", mmapBaseAddress=0x" + Long.toHexString(mmapBaseAddress));
-                return file.mmap2(unicorn, addr, aligned, prot, offset, length, memoryMap);
+                return mmapFile(file, addr, aligned, prot, offset, length);
             }
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -128,46 +255,162 @@ public abstract class AbstractLoader implements Memory, Loader {
     @Override
     public final int munmap(long start, int length) {
         int aligned = (int) ARM.alignSize(length, emulator.getPageAlign());
+        EmulationStats stats = emulator.getRunningStats();
+        if (stats != null) {
+            stats.onUnmap(aligned);
+        }
+
+        Reservation reservation = findReservation(start, aligned);
+        if (reservation != null) {
+            return munmapReserved(reservation, start, aligned);
+        }
+        retireReservations(start, aligned);
+
+        dirtyPageTracker.markProtectionChanged(start, aligned);
         unicorn.mem_unmap(start, aligned);
-        MemoryMap removed = memoryMap.remove(start);
-
-        if (removed == null) {
-            Map.Entry<Long, MemoryMap> segment = null;
-            for (Map.Entry<Long, MemoryMap> entry : memoryMap.entrySet()) {
-                MemoryMap map = entry.getValue();
-                if (start > entry.getKey() && start < map.base + map.size) {
-                    segment = entry;
-                    break;
-                }
-            }
-            if (segment == null || segment.getValue().size < aligned) {
-                throw new IllegalStateException("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start));
+        List<MemoryMap> removed = addressSpace.remove(start, aligned);
+        onUnmapped(removed);
+
+        if (removed.isEmpty()) {
+            throw new IllegalStateException("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start) + ", removed=" + removed);
+        }
+
+        if (addressSpace.isEmpty()) {
+            mmapBaseAddress = MMAP_BASE;
+        }
+        return 0;
+    }
+
+    /**
+     * pages go back to the reservation and stay mapped with the protection of the reservation,
+     * an empty reservation is unmapped unless it is the last one
+     */
+    private int munmapReserved(Reservation reservation, long start, int aligned) {
+        List<MemoryMap> removed = reservation.free(start, aligned);
+        if (removed.isEmpty()) {
+            throw new IllegalStateException("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start) + ", " + reservation);
+        }
+        for (MemoryMap map : removed) {
+            memoryStats.onUnmap(MemoryStats.Category.ANONYMOUS, map.size);
+            if (map.prot != RESERVATION_PROT) { // changed by mprotect
+                dirtyPageTracker.markProtectionChanged(map.base, map.size);
+                unicorn.mem_protect(map.base, map.size, RESERVATION_PROT);
+                addressSpace.protect(map.base, map.size, RESERVATION_PROT);
             }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("munmap reserved aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start) + ", removed=" + removed);
+        }
+        if (reservation.isEmpty() && reservations.size() > 1) {
+            releaseReservation(reservation);
+        }
+        return 0;
+    }
+
+    protected final long mmapFile(FileIO file, long addr, int aligned, int prot, int offset, int length) throws IOException {
+        long mapped = file.mmap2(emulator, addr, aligned, prot, offset, length, addressSpace);
+        fileMappings.remove(addr, aligned);
+        fileMappings.add(new MemoryMap(addr, aligned, prot));
+        memoryStats.onMap(MemoryStats.Category.FILE, aligned);
+        return mapped;
+    }
 
-            memoryMap.put(segment.getKey(), new MemoryMap(segment.getKey(), (int) (start - segment.getKey()), segment.getValue().prot));
-            log.debug("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start) + ", base=0x" + Long.toHexString(segment.getKey()) + ", size=" + (start - segment.getKey()));
-            if (start + aligned < segment.getKey() + segment.getValue().size) {
-                log.debug("munmap aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start) + ", base=0x" + Long.toHexString(start + aligned) + ", size=" + (segment.getKey() + segment.getValue().size - start - aligned));
-                memoryMap.put(start + aligned, new MemoryMap(start + aligned, (int) (segment.getKey() + segment.getValue().size - start - aligned), segment.getValue().prot));
+    /**
+     * account pieces removed from the address space: file mappings are known, segments of loaded modules count as module,
+     * everything else as anonymous
+     */
+    private void onUnmapped(List<MemoryMap> removed) {
+        for (MemoryMap map : removed) {
+            long fileBytes = 0;
+            for (MemoryMap file : fileMappings.remove(map.base, map.size)) {
+                fileBytes += file.size;
             }
+            long moduleBytes = getModuleBytes(map.base, map.size);
+            memoryStats.onUnmap(MemoryStats.Category.FILE, fileBytes);
+            memoryStats.onUnmap(MemoryStats.Category.MODULE, moduleBytes);
+            memoryStats.onUnmap(MemoryStats.Category.ANONYMOUS, map.size - fileBytes - moduleBytes);
+        }
+    }
 
-            return 0;
+    /**
+     * @return bytes of <code>[address, address + size)</code> inside segments of loaded modules
+     */
+    private long getModuleBytes(long address, long size) {
+        long end = address + size;
+        Long from = moduleBaseIndex.floorKey(address);
+        long bytes = 0;
+        for (Module module : moduleBaseIndex.subMap(from == null ? address : from, true, end, false).values()) {
+            for (MemRegion region : module.getRegions()) {
+                if (!isMapped(region)) {
+                    continue;
+                }
+                long begin = Math.max(region.begin, address);
+                long until = Math.min(region.end, end);
+                if (until > begin) {
+                    bytes += until - begin;
+                }
+            }
         }
+        return bytes;
+    }
 
-        if(removed.size != aligned) {
-            if (aligned >= removed.size) {
-                throw new IllegalStateException("munmap removed=0x" + Long.toHexString(removed.size) + ", aligned=0x" + Long.toHexString(aligned) + ", start=0x" + Long.toHexString(start));
+    /**
+     * unmap the segments of a module no longer referenced, call before the module is removed from the index
+     */
+    protected final void unloadModule(Module module) {
+        for (MemRegion region : module.getRegions()) {
+            if (!isMapped(region)) {
+                continue;
             }
+            dirtyPageTracker.markProtectionChanged(region.begin, region.end - region.begin);
+            unicorn.mem_unmap(region.begin, region.end - region.begin);
+            onUnmapped(addressSpace.remove(region.begin, region.end - region.begin));
+        }
+    }
 
-            memoryMap.put(start + aligned, new MemoryMap(start + aligned, removed.size - aligned, removed.prot));
-            log.debug("munmap removed=0x" + Long.toHexString(removed.size) + ", aligned=0x" + Long.toHexString(aligned) + ", base=0x" + Long.toHexString(start + aligned) + ", size=" + (removed.size - aligned));
-            return 0;
+    private static long getMappedSize(Module module) {
+        long size = 0;
+        for (MemRegion region : module.getRegions()) {
+            if (isMapped(region)) {
+                size += region.end - region.begin;
+            }
         }
+        return size;
+    }
 
-        if (memoryMap.isEmpty()) {
-            mmapBaseAddress = MMAP_BASE;
+    /**
+     * __PAGEZERO and empty Mach-O segments are kept as regions without protection, they are not mapped
+     */
+    private static boolean isMapped(MemRegion region) {
+        return region.perms != 0 && region.end > region.begin;
+    }
+
+    @Override
+    public MemoryStats getMemoryStats() {
+        Map<String, Long> moduleBytes = new HashMap<>();
+        for (Module module : getLoadedModules()) {
+            moduleBytes.put(module.name, getMappedSize(module));
         }
-        return 0;
+        long reservedFree = 0;
+        for (Reservation reservation : reservations.values()) {
+            reservedFree += reservation.size - reservation.getAllocated();
+        }
+        SvcMemory svcMemory = emulator.getSvcMemory();
+        return memoryStats.snapshot(svcMemory == null ? 0 : svcMemory.getMappedSize(),
+                moduleBytes, reservedFree, unicorn.mem_regions());
+    }
+
+    @Override
+    public void onBufferAllocated(MemoryStats.Category category, int size) {
+        memoryStats.onMap(category, size);
+    }
+
+    @Override
+    public void onBufferFreed(MemoryStats.Category category, int size) {
+        memoryStats.onUnmap(category, size);
     }
 
     @Override
@@ -177,10 +420,55 @@ public abstract class AbstractLoader implements Memory, Loader {
             return -1;
         }
 
+        Reservation reservation = findReservation(address, length);
+        if (reservation != null) {
+            if (!reservation.protect(address, length, prot) && prot == RESERVATION_PROT) {
+                return 0; // read write already, leave the unicorn region whole
+            }
+        } else {
+            retireReservations(address, length);
+        }
+
+        dirtyPageTracker.markProtectionChanged(address, length);
         unicorn.mem_protect(address, length, prot);
+        addressSpace.protect(address, length, prot);
         return 0;
     }
 
+    @Override
+    public final void trackDirtyPages(Snapshot snapshot) {
+        if (snapshot == null) {
+            dirtyPageTracker.stop();
+        } else {
+            dirtyPageTracker.track(snapshot);
+        }
+    }
+
+    @Override
+    public final boolean resetDirtyPages(Snapshot snapshot) {
+        if (!dirtyPageTracker.isTracking(snapshot)) {
+            return false;
+        }
+
+        int pages = dirtyPageTracker.reset();
+        if (log.isDebugEnabled()) {
+            log.debug("resetDirtyPages pages=" + pages);
+        }
+        return true;
+    }
+
+    @Override
+    public final void markDirty(long address, long size) {
+        dirtyPageTracker.markDirty(address, size);
+    }
+
+    @Override
+    public final void write(long address, byte[] data) {
+        dirtyPageTracker.markDirty(address, data.length);
+        emulator.getStringReader().invalidate();
+        unicorn.mem_write(address, data);
+    }
+
     @Override
     public final Module load(File elfFile) throws IOException {
         return load(elfFile,false);
@@ -243,6 +531,25 @@ public abstract class AbstractLoader implements Memory, Loader {
         return pointer.setSize(size);
     }
 
+    private ArgumentArena argumentArena;
+
+    @Override
+    public final ArgumentArena getArgumentArena() {
+        if (argumentArena == null) {
+            argumentArena = new ArgumentArena(this);
+        }
+        return argumentArena;
+    }
+
+    private final SlabAllocator slabAllocator = new SlabAllocator(this);
+
+    /**
+     * runtime allocations: small blocks come from the slabs instead of mapping a page each
+     */
+    protected final MemoryBlock mallocRuntime(int length) {
+        return slabAllocator.malloc(length);
+    }
+
     @Override
     public final UnicornPointer writeStackString(String str) {
         byte[] data = str.getBytes(StandardCharsets.UTF_8);
@@ -324,33 +631,198 @@ public abstract class AbstractLoader implements Memory, Loader {
         log.debug("[" + libraryName + "]0x" + Long.toHexString(alignment.address) + " - 0x" + Long.toHexString(alignment.address + alignment.size) + ", size=0x" + Long.toHexString(alignment.size));
 
         unicorn.mem_map(alignment.address, alignment.size, prot);
-        memoryMap.put(alignment.address, new MemoryMap(alignment.address, (int) alignment.size, prot));
+        addressSpace.add(new MemoryMap(alignment.address, alignment.size, prot));
+        memoryStats.onMap(MemoryStats.Category.MODULE, alignment.size);
         return alignment;
     }
 
     @Override
     public final Module findModuleByAddress(long address) {
-        for (Module module : getLoadedModules()) {
-            long base = getModuleBase(module);
-            if (address >= base && address < base + module.size) {
-                return module;
+        Map.Entry<Long, Module> entry = moduleBaseIndex.floorEntry(address);
+        if (entry == null) {
+            return null;
+        }
+        Module module = entry.getValue();
+        return address < entry.getKey() + module.size ? module : null;
+    }
+
+    /**
+     * @return the module loaded at base, <code>null</code> if none
+     */
+    protected final Module findModuleByBase(long base) {
+        return moduleBaseIndex.get(base);
+    }
+
+    @Override
+    public final Module findModuleByPath(String path) {
+        return modulePathIndex.get(path);
+    }
+
+    /**
+     * add to the address, name and region path indexes, called whenever a module is put into the loaded modules
+     */
+    protected final void indexModule(Module module) {
+        moduleBaseIndex.put(getModuleBase(module), module);
+        if (!moduleNameIndex.containsKey(module.name)) {
+            moduleNameIndex.put(module.name, module);
+        }
+        for (MemRegion region : module.getRegions()) {
+            if (region.getName() != null && !modulePathIndex.containsKey(region.getName())) {
+                modulePathIndex.put(region.getName(), module);
+            }
+        }
+    }
+
+    /**
+     * called after the module was removed from the loaded modules, a name or path it owned goes to another loaded module
+     */
+    protected final void unindexModule(Module module) {
+        moduleBaseIndex.remove(getModuleBase(module));
+        boolean owner = moduleNameIndex.get(module.name) == module;
+        if (owner) {
+            moduleNameIndex.remove(module.name);
+        }
+        for (MemRegion region : module.getRegions()) {
+            if (modulePathIndex.get(region.getName()) == module) {
+                modulePathIndex.remove(region.getName());
+                owner = true;
+            }
+        }
+        if (owner) {
+            for (Module loaded : getLoadedModules()) {
+                indexModule(loaded); // first-wins, only fills the names and paths just removed
             }
         }
-        return null;
+    }
+
+    /**
+     * rebuild the indexes after the loaded modules were replaced, e.g. by restoring a snapshot
+     */
+    protected final void reindexModules(Collection<? extends Module> modules) {
+        moduleBaseIndex.clear();
+        moduleNameIndex.clear();
+        modulePathIndex.clear();
+        for (Module module : modules) {
+            indexModule(module);
+        }
     }
 
     protected long getModuleBase(Module module) {
         return module.base;
     }
 
+    private static class LoaderState {
+        final long sp;
+        final long mmapBaseAddress;
+        final List<MemoryMap> memoryMap;
+        final Object slabState;
+        final List<Reservation> reservations;
+        final MemoryStats memoryStats;
+        final List<MemoryMap> fileMappings;
+        LoaderState(long sp, long mmapBaseAddress, List<MemoryMap> memoryMap, Object slabState, List<Reservation> reservations,
+                    MemoryStats memoryStats, List<MemoryMap> fileMappings) {
+            this.sp = sp;
+            this.mmapBaseAddress = mmapBaseAddress;
+            this.memoryMap = memoryMap;
+            this.slabState = slabState;
+            this.reservations = reservations;
+            this.memoryStats = memoryStats;
+            this.fileMappings = fileMappings;
+        }
+    }
+
     @Override
-    public final Module findModule(String soName) {
-        for (Module module : getLoadedModules()) {
-            if (module.name.equals(soName)) {
-                return module;
+    public Object saveState() {
+        List<Reservation> reserved = new ArrayList<>(reservations.size());
+        for (Reservation reservation : reservations.values()) {
+            reserved.add(reservation.copy());
+        }
+        return new LoaderState(sp, mmapBaseAddress, new ArrayList<>(addressSpace.values()), slabAllocator.saveState(), reserved,
+                memoryStats.copy(), new ArrayList<>(fileMappings.values()));
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        LoaderState loaderState = (LoaderState) state;
+        this.sp = loaderState.sp; // register restored with cpu context
+        this.mmapBaseAddress = loaderState.mmapBaseAddress;
+        this.addressSpace.reset(loaderState.memoryMap);
+        this.slabAllocator.restoreState(loaderState.slabState);
+        this.reservations = new TreeMap<>();
+        for (Reservation reservation : loaderState.reservations) {
+            reservations.put(reservation.base, reservation.copy());
+        }
+        this.memoryStats = loaderState.memoryStats.copy();
+        this.fileMappings.reset(loaderState.fileMappings);
+        if (argumentArena != null) {
+            argumentArena.retainMapped();
+        }
+    }
+
+    protected final void writeLoaderImage(DataOutput out) throws IOException {
+        out.writeLong(sp);
+        out.writeLong(mmapBaseAddress);
+        out.writeInt(addressSpace.size());
+        for (MemoryMap map : addressSpace.values()) {
+            out.writeLong(map.base);
+            out.writeLong(map.size);
+            out.writeInt(map.prot);
+        }
+        out.writeInt(reservations.size());
+        for (Reservation reservation : reservations.values()) {
+            out.writeLong(reservation.base);
+            out.writeLong(reservation.size);
+            out.writeLong(reservation.getHighWater());
+            out.writeInt(reservation.getAllocations().size());
+            for (MemoryMap map : reservation.getAllocations()) {
+                out.writeLong(map.base);
+                out.writeLong(map.size);
+                out.writeInt(map.prot);
+            }
+        }
+        memoryStats.writeTo(out);
+        out.writeInt(fileMappings.size());
+        for (MemoryMap map : fileMappings.values()) {
+            out.writeLong(map.base);
+            out.writeLong(map.size);
+            out.writeInt(map.prot);
+        }
+        slabAllocator.writeImage(out);
+    }
+
+    protected final void readLoaderImage(DataInput in) throws IOException {
+        this.sp = in.readLong(); // register restored by image
+        this.mmapBaseAddress = in.readLong();
+        this.addressSpace.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            addressSpace.add(new MemoryMap(in.readLong(), in.readLong(), in.readInt()));
+        }
+        this.reservations = new TreeMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            long base = in.readLong();
+            long size = in.readLong();
+            long highWater = in.readLong();
+            List<MemoryMap> allocated = new ArrayList<>();
+            for (int j = in.readInt(); j > 0; j--) {
+                allocated.add(new MemoryMap(in.readLong(), in.readLong(), in.readInt()));
             }
+            reservations.put(base, Reservation.restore(base, size, highWater, allocated));
+        }
+        this.memoryStats = new MemoryStats();
+        memoryStats.readFrom(in);
+        this.fileMappings.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            fileMappings.add(new MemoryMap(in.readLong(), in.readLong(), in.readInt()));
         }
-        return null;
+        slabAllocator.readImage(in, emulator);
+        if (argumentArena != null) {
+            argumentArena.retainMapped();
+        }
+    }
+
+    @Override
+    public final Module findModule(String soName) {
+        return moduleNameIndex.get(soName);
     }
 
 }
@@ -0,0 +1,19 @@
+package cn.banny.unidbg.spi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * component section of the image written by {@link cn.banny.unidbg.Emulator#saveImage(java.io.File)}
+ */
+public interface ImageSerializable {
+
+    void writeImage(DataOutput out) throws IOException;
+
+    /**
+     * @throws IOException image is stale or does not match this emulator, discard the emulator then
+     */
+    void readImage(DataInput in) throws IOException;
+
+}
@@ -23,6 +23,12 @@ public interface Loader {
     Module findModuleByAddress(long address);
     Module findModule(String soName);
 
+    /**
+     * @param path name of a memory region, the library path
+     * @return the loaded module mapping the path, <code>null</code> if none
+     */
+    Module findModuleByPath(String path);
+
     Module dlopen(String filename) throws IOException;
     Module dlopen(String filename, boolean calInit) throws IOException;
     boolean dlclose(long handle);
@@ -0,0 +1,15 @@
+package cn.banny.unidbg.spi;
+
+/**
+ * component state captured by {@link cn.banny.unidbg.Emulator#snapshot()}
+ */
+public interface Snapshotable {
+
+    /**
+     * @return opaque point-in-time state, restorable many times
+     */
+    Object saveState();
+
+    void restoreState(Object state);
+
+}
@@ -1,13 +1,16 @@
 package cn.banny.unidbg.unix;
 
 import cn.banny.auxiliary.Inspector;
+import cn.banny.unidbg.EmulationStats;
 import cn.banny.unidbg.Emulator;
 import cn.banny.unidbg.Module;
+import cn.banny.unidbg.Svc;
 import cn.banny.unidbg.file.FileIO;
 import cn.banny.unidbg.file.IOResolver;
 import cn.banny.unidbg.linux.LinuxThread;
 import cn.banny.unidbg.linux.file.*;
 import cn.banny.unidbg.memory.MemRegion;
+import cn.banny.unidbg.spi.Snapshotable;
 import cn.banny.unidbg.spi.SyscallHandler;
 import cn.banny.unidbg.unix.struct.TimeVal;
 import cn.banny.unidbg.unix.struct.TimeZone;
@@ -20,7 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
-public abstract class UnixSyscallHandler implements SyscallHandler {
+public abstract class UnixSyscallHandler implements SyscallHandler, Snapshotable {
 
     private static final Log log = LogFactory.getLog(UnixSyscallHandler.class);
 
@@ -31,6 +34,30 @@ public abstract class UnixSyscallHandler implements SyscallHandler {
     public final Map<Integer, LinuxThread> threadMap = new HashMap<>(5);
     public int lastThread = -1;
 
+    protected VirtualClock clock = VirtualClock.real();
+
+    public void setClock(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    protected final void countSyscall(Emulator emulator, int NR) {
+        EmulationStats stats = emulator.getRunningStats();
+        if (stats != null) {
+            stats.onSyscall(NR);
+        }
+    }
+
+    protected final void countSvc(Emulator emulator, Svc svc) {
+        EmulationStats stats = emulator.getRunningStats();
+        if (stats != null) {
+            stats.onSvc(svc);
+        }
+    }
+
     protected final int getMinFd() {
         int last_fd = -1;
         for (int fd : fdMap.keySet()) {
@@ -58,7 +85,8 @@ public abstract class UnixSyscallHandler implements SyscallHandler {
             }
         }
         if (pathname.endsWith(emulator.getLibraryExtension())) {
-            for (Module module : emulator.getMemory().getLoadedModules()) {
+            Module module = emulator.getMemory().findModuleByPath(pathname);
+            if (module != null) {
                 for (MemRegion memRegion : module.getRegions()) {
                     if (pathname.equals(memRegion.getName())) {
                         try {
@@ -90,7 +118,7 @@ public abstract class UnixSyscallHandler implements SyscallHandler {
             Inspector.inspect(before, "gettimeofday tz");
         }
 
-        long currentTimeMillis = System.currentTimeMillis();
+        long currentTimeMillis = clock.currentTimeMillis();
         long tv_sec = currentTimeMillis / 1000;
         long tv_usec = (currentTimeMillis % 1000) * 1000;
         TimeVal timeVal = new TimeVal(tv);
@@ -323,4 +351,84 @@ public abstract class UnixSyscallHandler implements SyscallHandler {
         return -1;
     }
 
+    /**
+     * @return <code>null</code> if the descriptor cannot be duplicated, the guest then gets EBADF
+     */
+    private static FileIO reopen(int fd, FileIO io) {
+        try {
+            return io.dup2();
+        } catch (AbstractMethodError | UnsupportedOperationException e) {
+            log.warn("descriptor closed after snapshot cannot be reopened: fd=" + fd + ", io=" + io);
+            return null;
+        }
+    }
+
+    private static class SyscallState {
+        final Map<Integer, FileIO> fdMap;
+        final Map<Integer, LinuxThread> threadMap;
+        final int lastThread;
+        final Map<Integer, byte[]> sigMap;
+        final Map<Integer, Object> fileStates;
+        final VirtualClock clock;
+        final Object clockState;
+        SyscallState(Map<Integer, FileIO> fdMap, Map<Integer, LinuxThread> threadMap, int lastThread, Map<Integer, byte[]> sigMap, Map<Integer, Object> fileStates, VirtualClock clock) {
+            this.fdMap = fdMap;
+            this.threadMap = threadMap;
+            this.lastThread = lastThread;
+            this.sigMap = sigMap;
+            this.fileStates = fileStates;
+            this.clock = clock;
+            this.clockState = clock.saveState();
+        }
+    }
+
+    /**
+     * descriptors implementing {@link Snapshotable} keep their offset and are reopened if closed after the snapshot
+     */
+    @Override
+    public Object saveState() {
+        Map<Integer, Object> fileStates = new HashMap<>();
+        for (Map.Entry<Integer, FileIO> entry : fdMap.entrySet()) {
+            if (entry.getValue() instanceof Snapshotable) {
+                fileStates.put(entry.getKey(), ((Snapshotable) entry.getValue()).saveState());
+            }
+        }
+        return new SyscallState(new TreeMap<>(fdMap), new HashMap<>(threadMap), lastThread, new HashMap<>(sigMap), fileStates, clock);
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        SyscallState syscallState = (SyscallState) state;
+        Set<FileIO> saved = Collections.newSetFromMap(new IdentityHashMap<FileIO, Boolean>());
+        saved.addAll(syscallState.fdMap.values());
+        Set<FileIO> open = Collections.newSetFromMap(new IdentityHashMap<FileIO, Boolean>());
+        for (FileIO io : fdMap.values()) {
+            if (saved.contains(io)) {
+                open.add(io);
+            } else { // opened after snapshot
+                io.close();
+            }
+        }
+        fdMap.clear();
+        for (Map.Entry<Integer, FileIO> entry : syscallState.fdMap.entrySet()) {
+            FileIO io = entry.getValue();
+            Object fileState = syscallState.fileStates.get(entry.getKey());
+            if (fileState != null) {
+                ((Snapshotable) io).restoreState(fileState);
+            } else if (!open.contains(io)) { // closed after snapshot
+                io = reopen(entry.getKey(), io);
+            }
+            if (io != null) {
+                fdMap.put(entry.getKey(), io);
+            }
+        }
+        threadMap.clear();
+        threadMap.putAll(syscallState.threadMap);
+        lastThread = syscallState.lastThread;
+        sigMap.clear();
+        sigMap.putAll(syscallState.sigMap);
+        clock = syscallState.clock;
+        clock.restoreState(syscallState.clockState);
+    }
+
 }
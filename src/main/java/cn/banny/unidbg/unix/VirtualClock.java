@@ -0,0 +1,118 @@
+package cn.banny.unidbg.unix;
+
+import cn.banny.unidbg.spi.Snapshotable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * time seen by the guest: gettimeofday, clock_gettime and mach_absolute_time read it,
+ * sleeps advance it instead of blocking the emulator thread.
+ * A clock may be shared by several emulators.
+ * The snapshot of an emulator includes the advanced time, restoring it moves the clock back for every emulator sharing it.
+ * Host time elapsed since the snapshot is kept.
+ */
+public class VirtualClock implements Snapshotable {
+
+    /**
+     * host time
+     */
+    public static VirtualClock real() {
+        return new VirtualClock(System.currentTimeMillis(), 1);
+    }
+
+    /**
+     * host time shifted by offset
+     */
+    public static VirtualClock offset(long offset, TimeUnit unit) {
+        return new VirtualClock(System.currentTimeMillis() + unit.toMillis(offset), 1);
+    }
+
+    /**
+     * time stands still at epochMillis, only sleeps and {@link #advance(long, TimeUnit)} move it: reproducible outputs
+     */
+    public static VirtualClock frozen(long epochMillis) {
+        return new VirtualClock(epochMillis, 0);
+    }
+
+    /**
+     * starting at host time, runs rate times faster than the host
+     */
+    public static VirtualClock fastForward(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate=" + rate);
+        }
+        return new VirtualClock(System.currentTimeMillis(), rate);
+    }
+
+    private final long epochMillis;
+    private final double rate;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong advancedNanos = new AtomicLong();
+
+    private VirtualClock(long epochMillis, double rate) {
+        this.epochMillis = epochMillis;
+        this.rate = rate;
+    }
+
+    /**
+     * @return nanoseconds since the clock was created
+     */
+    public long nanoTime() {
+        long elapsed;
+        if (rate == 0) {
+            elapsed = 0;
+        } else if (rate == 1) {
+            elapsed = System.nanoTime() - startNanos;
+        } else {
+            elapsed = (long) ((System.nanoTime() - startNanos) * rate);
+        }
+        return elapsed + advancedNanos.get();
+    }
+
+    /**
+     * @return wall clock milliseconds since the epoch
+     */
+    public long currentTimeMillis() {
+        return epochMillis + nanoTime() / 1000000L;
+    }
+
+    /**
+     * @return wall clock nanoseconds since the epoch, as precise as {@link #nanoTime()}
+     */
+    public long currentTimeNanos() {
+        return epochMillis * 1000000L + nanoTime();
+    }
+
+    /**
+     * move the clock forward without waiting
+     */
+    public void advance(long duration, TimeUnit unit) {
+        if (duration > 0) {
+            advancedNanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    /**
+     * guest sleep, returns immediately
+     */
+    public void sleep(long nanos) {
+        advance(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Object saveState() {
+        return advancedNanos.get();
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        advancedNanos.set((Long) state);
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualClock{rate=" + rate + ", currentTimeMillis=" + currentTimeMillis() + '}';
+    }
+
+}
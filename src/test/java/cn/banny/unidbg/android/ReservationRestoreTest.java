@@ -0,0 +1,60 @@
+package cn.banny.unidbg.android;
+
+import cn.banny.unidbg.Emulator;
+import cn.banny.unidbg.Snapshot;
+import cn.banny.unidbg.linux.android.AndroidARMEmulator;
+import cn.banny.unidbg.memory.ArgumentArena;
+import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.memory.MemoryMap;
+import cn.banny.unidbg.pointer.UnicornPointer;
+import junit.framework.TestCase;
+import unicorn.MemRegion;
+import unicorn.UnicornConst;
+
+public class ReservationRestoreTest extends TestCase {
+
+    private static final int RW = UnicornConst.UC_PROT_READ | UnicornConst.UC_PROT_WRITE;
+
+    public void testArenaChunkInReservation() throws Exception {
+        Emulator emulator = new AndroidARMEmulator();
+        try {
+            Memory memory = emulator.getMemory();
+            memory.setCoalesceMappings(true);
+            ArgumentArena arena = memory.getArgumentArena();
+            UnicornPointer before = arena.writeString("before");
+            MemoryMap chunk = memory.findMemoryMap(before.peer);
+            assertNotNull(chunk);
+            assertEquals(arena.getCapacity(), chunk.size);
+            int regions = emulator.getUnicorn().mem_regions().length;
+
+            Snapshot snapshot = emulator.snapshot();
+            long mark = arena.mark();
+            arena.allocate((int) chunk.size * 2); // second chunk, taken from the reservation too
+            arena.release(mark);
+            assertEquals(0, memory.mprotect(chunk.base, (int) chunk.size, UnicornConst.UC_PROT_READ));
+            assertEquals(UnicornConst.UC_PROT_READ, memory.findMemoryMap(chunk.base).prot);
+            assertEquals(UnicornConst.UC_PROT_READ, unicornProt(emulator, chunk.base));
+            assertTrue(emulator.getUnicorn().mem_regions().length > regions);
+
+            emulator.restore(snapshot);
+            assertEquals(RW, memory.findMemoryMap(chunk.base).prot);
+            assertEquals(RW, unicornProt(emulator, chunk.base));
+            assertEquals(chunk.size, arena.getCapacity()); // chunk mapped after the snapshot is forgotten
+            UnicornPointer after = arena.writeString("after");
+            assertEquals(before.peer, after.peer);
+            assertEquals("after", after.getString(0));
+        } finally {
+            emulator.close();
+        }
+    }
+
+    private static int unicornProt(Emulator emulator, long address) {
+        for (MemRegion region : emulator.getUnicorn().mem_regions()) {
+            if (address >= region.begin && address <= region.end) {
+                return region.perms;
+            }
+        }
+        throw new IllegalStateException("not mapped: 0x" + Long.toHexString(address));
+    }
+
+}
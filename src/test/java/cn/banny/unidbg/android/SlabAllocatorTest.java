@@ -0,0 +1,34 @@
+package cn.banny.unidbg.android;
+
+import cn.banny.unidbg.Emulator;
+import cn.banny.unidbg.linux.android.AndroidARMEmulator;
+import cn.banny.unidbg.memory.Memory;
+import cn.banny.unidbg.memory.MemoryBlock;
+import cn.banny.unidbg.pointer.UnicornPointer;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class SlabAllocatorTest extends TestCase {
+
+    public void testReusedBlockIsZeroed() throws Exception {
+        Emulator emulator = new AndroidARMEmulator();
+        try {
+            Memory memory = emulator.getMemory();
+            MemoryBlock block = memory.malloc(0x100, true);
+            UnicornPointer pointer = block.getPointer();
+            byte[] data = new byte[0x100];
+            Arrays.fill(data, (byte) 0x5a);
+            pointer.write(0, data, 0, data.length);
+            block.free(true);
+
+            MemoryBlock reused = memory.malloc(0x100, true);
+            assertEquals(pointer.peer, reused.getPointer().peer);
+            assertTrue(Arrays.equals(new byte[0x100], reused.getPointer().getByteArray(0, 0x100)));
+            reused.free(true);
+        } finally {
+            emulator.close();
+        }
+    }
+
+}
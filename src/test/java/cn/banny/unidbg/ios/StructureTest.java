@@ -1,6 +1,7 @@
 package cn.banny.unidbg.ios;
 
 import cn.banny.unidbg.AbstractEmulator;
+import cn.banny.unidbg.ios.struct.DyldImageInfo;
 import cn.banny.unidbg.ios.struct.kernel.Stat;
 import cn.banny.unidbg.ios.struct.kernel.StatFS;
 import cn.banny.unidbg.pointer.UnicornStructure;
@@ -23,4 +24,14 @@ public class StructureTest extends TestCase {
         assertEquals(2136, UnicornStructure.calculateSize(StatFS.class));
     }
 
+    public void testPointerSize() {
+        assertEquals(12, UnicornStructure.calculateSize(DyldImageInfo.class));
+
+        AbstractEmulator.POINTER_SIZE.set(8);
+        assertEquals(24, UnicornStructure.calculateSize(DyldImageInfo.class));
+
+        AbstractEmulator.POINTER_SIZE.set(4);
+        assertEquals(12, UnicornStructure.calculateSize(DyldImageInfo.class));
+    }
+
 }
@@ -0,0 +1,54 @@
+package cn.banny.unidbg.memory;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class AddressSpaceTest extends TestCase {
+
+    private static final int RW = 3;
+    private static final int R = 1;
+
+    public void testRemoveSplitsAndFindsGap() {
+        AddressSpace space = new AddressSpace();
+        space.add(new MemoryMap(0x10000, 0x10000, RW));
+        space.add(new MemoryMap(0x30000, 0x1000, RW));
+        assertEquals(0x20000, space.findFree(0x1000, 0));
+
+        List<MemoryMap> removed = space.remove(0x14000, 0x2000);
+        assertEquals(1, removed.size());
+        assertEquals(0x14000, removed.get(0).base);
+        assertEquals(0x2000, removed.get(0).size);
+        assertEquals(3, space.size());
+        assertNull(space.find(0x15000));
+        assertEquals(0x16000, space.find(0x17000).base);
+
+        assertEquals(0x14000, space.findFree(0x2000, 0)); // best fit
+        assertEquals(0x20000, space.findFree(0x3000, 0));
+        assertEquals(0x20000, space.findFree(0x8000, 0xffff));
+        assertEquals(-1, space.findFree(0x20000, 0));
+
+        space.remove(0x10000, 0x20000);
+        assertEquals(1, space.size());
+        assertEquals(-1, space.findFree(0x1000, 0));
+        assertEquals(0x31000, space.getEnd());
+    }
+
+    public void testProtectSplits() {
+        AddressSpace space = new AddressSpace();
+        space.add(new MemoryMap(0x10000, 0x4000, RW));
+        assertEquals(0x1000, space.protect(0x11000, 0x1000, R));
+        assertEquals(3, space.size());
+        assertEquals(R, space.find(0x11800).prot);
+        assertEquals(RW, space.find(0x12000).prot);
+        assertEquals(0x10000, space.find(0x10fff).base);
+        assertEquals(-1, space.findFree(1, 0));
+
+        try {
+            space.add(new MemoryMap(0x13000, 0x2000, RW));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+}
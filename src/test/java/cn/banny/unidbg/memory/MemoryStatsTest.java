@@ -0,0 +1,34 @@
+package cn.banny.unidbg.memory;
+
+import junit.framework.TestCase;
+import unicorn.MemRegion;
+
+import java.util.Collections;
+
+public class MemoryStatsTest extends TestCase {
+
+    public void testPeaks() {
+        MemoryStats stats = new MemoryStats();
+        stats.onMap(MemoryStats.Category.STACK, 0x200000);
+        stats.onMap(MemoryStats.Category.ANONYMOUS, 0x3000);
+        stats.onMap(MemoryStats.Category.ANONYMOUS, 0x1000);
+        stats.onUnmap(MemoryStats.Category.ANONYMOUS, 0x3000);
+        stats.onMap(MemoryStats.Category.JNI, 0x100);
+        stats.onMap(MemoryStats.Category.JNI, 0x80);
+        stats.onUnmap(MemoryStats.Category.JNI, 0x100);
+
+        MemoryStats snapshot = stats.snapshot(0x10000, Collections.singletonMap("libc.so", 0x80000L), 0, new MemRegion[0]);
+        stats.onMap(MemoryStats.Category.ANONYMOUS, 0x8000);
+
+        assertEquals(0x1000, snapshot.getBytes(MemoryStats.Category.ANONYMOUS));
+        assertEquals(0x4000, snapshot.getPeakBytes(MemoryStats.Category.ANONYMOUS));
+        assertEquals(2, snapshot.getMapCount(MemoryStats.Category.ANONYMOUS));
+        assertEquals(0x80, snapshot.getBytes(MemoryStats.Category.JNI));
+        assertEquals(0x180, snapshot.getPeakBytes(MemoryStats.Category.JNI));
+        assertEquals(0x200000 + 0x1000 + 0x10000, snapshot.getTotal()); // jni is part of anonymous
+        assertEquals(0x200000 + 0x1000 + 0x10000, snapshot.getPeakTotal()); // svc sampled after the peak of anonymous
+        assertEquals(0x80000L, (long) snapshot.getModuleBytes().get("libc.so"));
+        assertEquals(0x9000, stats.getBytes(MemoryStats.Category.ANONYMOUS));
+    }
+
+}
@@ -0,0 +1,46 @@
+package cn.banny.unidbg.memory;
+
+import junit.framework.TestCase;
+
+public class ReservationTest extends TestCase {
+
+    private static final int RW = 3;
+
+    public void testAllocateReusesFreedPages() {
+        Reservation reservation = new Reservation(0x10000, 0x4000);
+        assertEquals(0x10000, reservation.allocate(0x1000, RW));
+        assertEquals(0x11000, reservation.allocate(0x2000, RW));
+        assertEquals(0x13000, reservation.allocate(0x1000, RW));
+        assertEquals(-1, reservation.allocate(0x1000, RW));
+        assertEquals(0x14000, reservation.getHighWater());
+
+        assertEquals(1, reservation.free(0x10000, 0x1000).size());
+        assertEquals(0x10000, reservation.allocate(0x1000, RW)); // below the first allocation
+
+        reservation.free(0x11000, 0x2000);
+        assertEquals(0x11000, reservation.allocate(0x1000, RW)); // hole
+        assertEquals(0x3000, reservation.getAllocated());
+        assertEquals(1, reservation.getFreeRanges().size());
+        assertEquals(0x12000, reservation.getFreeRanges().get(0).base);
+
+        assertTrue(reservation.free(0x12000, 0x1000).isEmpty());
+        reservation.free(0x10000, 0x4000);
+        assertTrue(reservation.isEmpty());
+        assertEquals(0x10000, reservation.allocate(0x4000, RW));
+    }
+
+    public void testProtectTrackedPerAllocation() {
+        Reservation reservation = new Reservation(0x10000, 0x4000);
+        reservation.allocate(0x2000, RW);
+        assertTrue(reservation.protect(0x11000, 0x1000, 1));
+        assertFalse(reservation.protect(0x10000, 0x1000, RW));
+        assertEquals(RW, reservation.find(0x10000).prot);
+        assertEquals(1, reservation.find(0x11000).prot);
+        assertNull(reservation.find(0x12000));
+
+        Reservation copy = reservation.copy();
+        assertTrue(reservation.protect(0x10000, 0x2000, RW));
+        assertEquals(1, copy.find(0x11000).prot);
+    }
+
+}
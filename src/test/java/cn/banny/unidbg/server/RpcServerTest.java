@@ -0,0 +1,44 @@
+package cn.banny.unidbg.server;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RpcServerTest extends TestCase {
+
+    public void testSignature() {
+        RpcFunction function = new RpcFunction("ttEncrypt", "libcms.so", "com/bytedance/frameworks/core/encrypt/TTEncryptUtils->ttEncrypt([BI)[B");
+        assertEquals("com/bytedance/frameworks/core/encrypt/TTEncryptUtils", function.className);
+        assertEquals("ttEncrypt([BI)[B", function.method);
+        assertEquals(2, function.getArgCount());
+
+        assertEquals(3, new RpcFunction("f", "libf.so", "a/B->f(Ljava/lang/String;JZ)V").getArgCount());
+    }
+
+    public void testUnknownFunction() throws Exception {
+        try (RpcServer server = new RpcServer(0)) {
+            server.start();
+            try (RpcClient client = new RpcClient(server.getPort())) {
+                CompletableFuture<Object> first = client.call("missing", 1, "str", new byte[16]);
+                CompletableFuture<Object> second = client.call("missing");
+                assertError(first);
+                assertError(second);
+                assertEquals(0, client.getPendingCount());
+            }
+        }
+    }
+
+    private static void assertError(CompletableFuture<Object> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("function not registered", e.getCause().getMessage());
+        }
+    }
+
+}
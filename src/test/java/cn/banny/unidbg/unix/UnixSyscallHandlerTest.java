@@ -0,0 +1,58 @@
+package cn.banny.unidbg.unix;
+
+import cn.banny.unidbg.file.FileIO;
+import cn.banny.unidbg.linux.ARMSyscallHandler;
+import cn.banny.unidbg.linux.file.SimpleFileIO;
+import com.sun.jna.Memory;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class UnixSyscallHandlerTest extends TestCase {
+
+    public void testRestoreReopensClosedFd() throws Exception {
+        File file = File.createTempFile("unidbg", ".txt");
+        try {
+            FileUtils.writeStringToFile(file, "0123456789", StandardCharsets.UTF_8);
+            UnixSyscallHandler handler = new ARMSyscallHandler(null);
+            SimpleFileIO io = new SimpleFileIO(FileIO.O_RDONLY, file, file.getPath());
+            handler.fdMap.put(3, io);
+            Memory buffer = new Memory(16);
+            assertEquals(2, io.read(null, buffer, 2));
+
+            Object state = handler.saveState();
+            assertEquals(3, io.read(null, buffer, 3));
+            handler.fdMap.remove(3).close();
+
+            handler.restoreState(state);
+            FileIO restored = handler.fdMap.get(3);
+            assertNotNull(restored);
+            assertEquals(4, restored.read(null, buffer, 4));
+            assertEquals("2345", new String(buffer.getByteArray(0, 4), StandardCharsets.UTF_8));
+            restored.close();
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    public void testRestoreRewindsClock() {
+        UnixSyscallHandler handler = new ARMSyscallHandler(null);
+        VirtualClock clock = VirtualClock.frozen(1000);
+        handler.setClock(clock);
+        clock.advance(1, TimeUnit.SECONDS);
+
+        Object state = handler.saveState();
+        clock.advance(5, TimeUnit.SECONDS);
+        handler.setClock(VirtualClock.frozen(0));
+
+        handler.restoreState(state);
+        assertSame(clock, handler.getClock());
+        assertEquals(2000, clock.currentTimeMillis());
+        clock.advance(1500, TimeUnit.NANOSECONDS);
+        assertEquals(2000001500L, clock.currentTimeNanos()); // realtime keeps sub-millisecond precision
+    }
+
+}